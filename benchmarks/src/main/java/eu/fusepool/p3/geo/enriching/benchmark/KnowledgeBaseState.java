@@ -0,0 +1,59 @@
+package eu.fusepool.p3.geo.enriching.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import eu.fusepool.p3.geo.enriching.SpatialDataEnhancer;
+
+/**
+ * An enhancer with a synthetic knowledge base loaded, searched with SPARQL and the spatial index
+ * or with the in-memory indexes.
+ */
+@State(Scope.Benchmark)
+public class KnowledgeBaseState {
+
+    /** The number of points of interest */
+    @Param({ "10000" })
+    public int pois;
+
+    /** The number of points of interest per square kilometer */
+    @Param({ "10", "1000" })
+    public double density;
+
+    /** The number of points of interest within the circle of a search, on average */
+    @Param({ "20" })
+    public int resultSize;
+
+    @Param({ "false", "true" })
+    public boolean inMemoryIndex;
+
+    public SyntheticKnowledgeBase knowledgeBase;
+    public SpatialDataEnhancer enhancer;
+    public String dataSetUrl;
+    public double radius;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void load() throws IOException {
+        knowledgeBase = new SyntheticKnowledgeBase(pois, density);
+        file = knowledgeBase.write();
+        dataSetUrl = file.toURI().toString();
+        radius = knowledgeBase.radiusFor(resultSize);
+        enhancer = new SpatialDataEnhancer();
+        enhancer.setInMemoryIndex(inMemoryIndex);
+        enhancer.ensureKnowledgeBase(dataSetUrl);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        file.delete();
+    }
+
+}
@@ -0,0 +1,73 @@
+package eu.fusepool.p3.geo.enriching.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.fusepool.p3.geo.enriching.SpatialDataEnhancer;
+
+/**
+ * Loads a synthetic knowledge base into an empty enhancer, triple by triple or in bulk.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoadBenchmark {
+
+    /** The number of points of interest */
+    @Param({ "10000" })
+    public int pois;
+
+    /** The number of points of interest per square kilometer */
+    @Param({ "10", "1000" })
+    public double density;
+
+    /** The number of threads parsing in bulk, 0 to load triple by triple */
+    @Param({ "0", "4" })
+    public int bulkThreads;
+
+    private File file;
+    private String dataSetUrl;
+    private SpatialDataEnhancer enhancer;
+
+    @Setup(Level.Trial)
+    public void write() throws IOException {
+        file = new SyntheticKnowledgeBase(pois, density).write();
+        dataSetUrl = file.toURI().toString();
+    }
+
+    @Setup(Level.Iteration)
+    public void createEnhancer() throws IOException {
+        enhancer = new SpatialDataEnhancer();
+        enhancer.setBulkLoad(bulkThreads);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        file.delete();
+    }
+
+    @Benchmark
+    public long loadKnowledgeBase() {
+        enhancer.loadKnowledgeBase(enhancer.getDataset(), dataSetUrl, dataSetUrl);
+        return enhancer.getTripleCount();
+    }
+
+}
@@ -0,0 +1,76 @@
+package eu.fusepool.p3.geo.enriching.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.clerezza.rdf.core.TripleCollection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.fusepool.p3.geo.enriching.WGS84Point;
+
+/**
+ * Searches for points of interest and events around random positions of a synthetic knowledge base.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+
+    private static final int POSITIONS = 1024;
+
+    /**
+     * The positions searched in turn by a thread, the same for each run.
+     */
+    @State(Scope.Thread)
+    public static class Positions {
+        WGS84Point[] points;
+        WGS84Point[] eventPoints;
+        int next;
+
+        @Setup(Level.Trial)
+        public void create(KnowledgeBaseState state) {
+            Random random = new Random(7);
+            points = new WGS84Point[POSITIONS];
+            eventPoints = new WGS84Point[POSITIONS];
+            for (int i = 0; i < POSITIONS; i++) {
+                points[i] = state.knowledgeBase.randomPoint(random, "urn:position:" + i);
+                eventPoints[i] = state.knowledgeBase.randomPoint(random, "urn:position:" + i);
+                eventPoints[i].setStartDate("2015-03-01");
+                eventPoints[i].setEndDate("2015-06-30");
+            }
+        }
+
+        int next() {
+            next = (next + 1) % POSITIONS;
+            return next;
+        }
+    }
+
+    @Benchmark
+    public TripleCollection queryNearby(KnowledgeBaseState state, Positions positions) {
+        return state.enhancer.queryNearby(positions.points[positions.next()], state.dataSetUrl, state.radius);
+    }
+
+    /**
+     * Searches within a circle holding as many locations of events as the other searches hold points of interest,
+     * for the events of four months.
+     */
+    @Benchmark
+    public TripleCollection queryEventsNearby(KnowledgeBaseState state, Positions positions) {
+        return state.enhancer.queryEventsNearby(positions.eventPoints[positions.next()], state.dataSetUrl,
+                state.radius * Math.sqrt(SyntheticKnowledgeBase.EVENT_EVERY));
+    }
+
+}
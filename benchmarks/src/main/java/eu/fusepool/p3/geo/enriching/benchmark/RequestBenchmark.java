@@ -0,0 +1,212 @@
+package eu.fusepool.p3.geo.enriching.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.clerezza.rdf.core.MGraph;
+import org.apache.clerezza.rdf.core.TripleCollection;
+import org.apache.clerezza.rdf.core.UriRef;
+import org.apache.clerezza.rdf.core.impl.PlainLiteralImpl;
+import org.apache.clerezza.rdf.core.impl.SimpleMGraph;
+import org.apache.clerezza.rdf.core.impl.TripleImpl;
+import org.apache.clerezza.rdf.core.impl.TypedLiteralImpl;
+import org.apache.clerezza.rdf.core.serializedform.Parser;
+import org.apache.clerezza.rdf.core.serializedform.Serializer;
+import org.apache.clerezza.rdf.core.serializedform.SupportedFormat;
+import org.apache.clerezza.rdf.ontologies.XSD;
+import org.apache.jena.riot.Lang;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.fusepool.p3.geo.enriching.GeoJsonWriter;
+import eu.fusepool.p3.geo.enriching.WGS84Point;
+
+/**
+ * The steps of a request to the transformer: the request data is parsed, its positions read and searched,
+ * and the result serialized in Turtle like the transformer does. The whole response is written both in
+ * Turtle and in GeoJSON, the two formats being compared by their bytes and time to the first flush.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+
+    private static final UriRef geo_lat = new UriRef("http://www.w3.org/2003/01/geo/wgs84_pos#lat");
+    private static final UriRef geo_long = new UriRef("http://www.w3.org/2003/01/geo/wgs84_pos#long");
+    private static final UriRef schema_geo = new UriRef("http://schema.org/geo");
+    private static final UriRef schema_circle = new UriRef("http://schema.org/circle");
+
+    /**
+     * A request with positions at random in the knowledge base, each with its own circle.
+     */
+    @State(Scope.Benchmark)
+    public static class Request {
+
+        @Param({ "1", "100" })
+        public int positions;
+
+        byte[] data;
+        TripleCollection graph;
+        TripleCollection result;
+
+        @Setup(Level.Trial)
+        public void create(KnowledgeBaseState state) {
+            Random random = new Random(7);
+            MGraph request = new SimpleMGraph();
+            for (int i = 0; i < positions; i++) {
+                WGS84Point point = state.knowledgeBase.randomPoint(random, "urn:position:" + i);
+                UriRef position = new UriRef(point.getUriName());
+                UriRef circle = new UriRef("urn:circle:" + i);
+                request.add(new TripleImpl(position, geo_lat, new TypedLiteralImpl(Double.toString(point.getLat()), XSD.double_)));
+                request.add(new TripleImpl(position, geo_long, new TypedLiteralImpl(Double.toString(point.getLong()), XSD.double_)));
+                request.add(new TripleImpl(position, schema_geo, circle));
+                request.add(new TripleImpl(circle, schema_circle, new PlainLiteralImpl(point.getLat() + " " + point.getLong() + " " + state.radius)));
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Serializer.getInstance().serialize(out, request, SupportedFormat.TURTLE);
+            data = out.toByteArray();
+            graph = request;
+            result = state.enhancer.enhance(state.dataSetUrl, graph);
+        }
+    }
+
+    /**
+     * The bytes and time to the first flush of the responses written in an iteration. JMH sums the counters,
+     * divided by the responses they give the size and time to the first flush of a response.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Response {
+
+        public long responses;
+        public long bytes;
+        public long firstFlushMicros;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            responses = 0;
+            bytes = 0;
+            firstFlushMicros = 0;
+        }
+
+        void add(ResponseStream out) {
+            responses++;
+            bytes += out.bytes;
+            firstFlushMicros += TimeUnit.NANOSECONDS.toMicros(out.firstFlush - out.start);
+        }
+    }
+
+    /**
+     * Counts the bytes of a response and records when the first of them are flushed to the client.
+     */
+    static class ResponseStream extends OutputStream {
+
+        final long start = System.nanoTime();
+        long firstFlush;
+        long bytes;
+
+        @Override
+        public void write(int b) {
+            flushed();
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            flushed();
+            bytes += len;
+        }
+
+        @Override
+        public void flush() {
+            flushed();
+        }
+
+        private void flushed() {
+            if (firstFlush == 0) {
+                firstFlush = System.nanoTime();
+            }
+        }
+    }
+
+    @Benchmark
+    public TripleCollection parse(Request request) {
+        return Parser.getInstance().parse(new ByteArrayInputStream(request.data), SupportedFormat.TURTLE);
+    }
+
+    @Benchmark
+    public WGS84Point getPoint(KnowledgeBaseState state, Request request) {
+        return state.enhancer.getPoint(request.graph);
+    }
+
+    /**
+     * The circle of the enhancer is not public, returned as an object.
+     */
+    @Benchmark
+    public Object getCircle(KnowledgeBaseState state, Request request) {
+        return state.enhancer.getCircle(request.graph);
+    }
+
+    @Benchmark
+    public TripleCollection enhance(KnowledgeBaseState state, Request request) {
+        return state.enhancer.enhance(state.dataSetUrl, request.graph);
+    }
+
+    /**
+     * Parses the request and searches its positions meanwhile, like the transformer does with Turtle.
+     */
+    @Benchmark
+    public TripleCollection enhanceStream(KnowledgeBaseState state, Request request) {
+        return state.enhancer.enhance(state.dataSetUrl, new ByteArrayInputStream(request.data), Lang.TURTLE);
+    }
+
+    @Benchmark
+    public byte[] serialize(Request request) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Serializer.getInstance().serialize(out, request.result, SupportedFormat.TURTLE);
+        return out.toByteArray();
+    }
+
+    /**
+     * Searches the positions and writes the result in Turtle, like the transformer does.
+     */
+    @Benchmark
+    public long writeTurtle(KnowledgeBaseState state, Request request, Response response) {
+        ResponseStream out = new ResponseStream();
+        TripleCollection result = state.enhancer.enhance(state.dataSetUrl, request.graph);
+        Serializer.getInstance().serialize(out, result, SupportedFormat.TURTLE);
+        response.add(out);
+        return out.bytes;
+    }
+
+    /**
+     * Searches the positions and writes the same result in GeoJSON, the features of each position
+     * flushed as soon as they are found.
+     */
+    @Benchmark
+    public long writeGeoJson(KnowledgeBaseState state, Request request, Response response) throws IOException {
+        ResponseStream out = new ResponseStream();
+        GeoJsonWriter writer = state.enhancer.enhanceGeoJson(state.dataSetUrl, request.graph);
+        writer.writeTo(out);
+        response.add(out);
+        return out.bytes;
+    }
+
+}
@@ -0,0 +1,94 @@
+package eu.fusepool.p3.geo.enriching.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import eu.fusepool.p3.geo.enriching.WGS84Point;
+
+/**
+ * A knowledge base of points of interest spread at random over a square around Trento, as many per square
+ * kilometer as the density given. Every tenth point of interest is the location of an event within 2015.
+ * The knowledge base is written in N-Triples and is the same for the same size and density.
+ */
+public class SyntheticKnowledgeBase {
+
+    public static final double CENTER_LAT = 46.07;
+    public static final double CENTER_LONG = 11.12;
+    public static final int EVENT_EVERY = 10;
+    private static final double KM_PER_DEGREE = 111.2;
+
+    private final int pois;
+    private final double density;
+    private final double latSpan;
+    private final double longSpan;
+
+    /**
+     * @param pois the number of points of interest
+     * @param density the number of points of interest per square kilometer
+     */
+    public SyntheticKnowledgeBase(int pois, double density) {
+        this.pois = pois;
+        this.density = density;
+        double side = Math.sqrt(pois / density);
+        latSpan = side / KM_PER_DEGREE;
+        longSpan = side / (KM_PER_DEGREE * Math.cos(Math.toRadians(CENTER_LAT)));
+    }
+
+    /**
+     * Writes the knowledge base to a temporary file, to be deleted by the caller.
+     */
+    public File write() throws IOException {
+        File file = File.createTempFile("synthetic-" + pois + "-", ".nt");
+        Random random = new Random(42);
+        Calendar date = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.ROOT);
+        try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            for (int i = 0; i < pois; i++) {
+                String poi = "<urn:poi:" + i + ">";
+                double lat = CENTER_LAT + (random.nextDouble() - 0.5) * latSpan;
+                double lon = CENTER_LONG + (random.nextDouble() - 0.5) * longSpan;
+                out.println(poi + " <http://www.w3.org/1999/02/22-rdf-syntax-ns#type> <http://schema.org/Place> .");
+                out.println(poi + " <http://www.w3.org/2000/01/rdf-schema#label> \"Place " + i + "\" .");
+                out.println(poi + " <http://www.w3.org/2003/01/geo/wgs84_pos#lat> \"" + lat + "\"^^<http://www.w3.org/2001/XMLSchema#double> .");
+                out.println(poi + " <http://www.w3.org/2003/01/geo/wgs84_pos#long> \"" + lon + "\"^^<http://www.w3.org/2001/XMLSchema#double> .");
+                if (i % EVENT_EVERY == 0) {
+                    String event = "<urn:event:" + i + ">";
+                    date.clear();
+                    date.set(2015, Calendar.JANUARY, 1);
+                    date.add(Calendar.DAY_OF_YEAR, random.nextInt(355));
+                    String start = String.format(Locale.ROOT, "%tF", date);
+                    date.add(Calendar.DAY_OF_YEAR, random.nextInt(10));
+                    String end = String.format(Locale.ROOT, "%tF", date);
+                    out.println(event + " <http://www.w3.org/2000/01/rdf-schema#label> \"Event " + i + "\" .");
+                    out.println(event + " <http://schema.org/location> " + poi + " .");
+                    out.println(event + " <http://schema.org/startDate> \"" + start + "\"^^<http://www.w3.org/2001/XMLSchema#date> .");
+                    out.println(event + " <http://schema.org/endDate> \"" + end + "\"^^<http://www.w3.org/2001/XMLSchema#date> .");
+                }
+            }
+        }
+        return file;
+    }
+
+    /**
+     * A position within the square of the points of interest.
+     */
+    public WGS84Point randomPoint(Random random, String uri) {
+        WGS84Point point = new WGS84Point();
+        point.setUri(uri);
+        point.setLat(CENTER_LAT + (random.nextDouble() - 0.5) * latSpan);
+        point.setLong(CENTER_LONG + (random.nextDouble() - 0.5) * longSpan);
+        return point;
+    }
+
+    /**
+     * The radius in meters of a circle holding the given number of points of interest on average.
+     */
+    public double radiusFor(int expectedPois) {
+        return Math.sqrt(expectedPois / (density * Math.PI)) * 1000;
+    }
+
+}
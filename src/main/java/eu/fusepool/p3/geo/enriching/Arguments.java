@@ -27,8 +27,99 @@ public interface Arguments extends ArgumentsWithHelp {
     
 
     @CommandLine(longName = "port", shortName = {"P"}, required = false,
-            defaultValue = "8187",
+            defaultValue = "7100",
             description = "The port on which the transformer shall listen")
     public int getPort();
     
+    @CommandLine(longName = "data-dir", shortName = {"D"}, required = false,
+            description = "The directory in which the knowledge bases are stored across restarts, a temporary one is used if not set")
+    public String getDataDir();
+    
+    @CommandLine(longName = "snapshot", shortName = {"Z"}, required = false,
+            description = "A snapshot built with the build-snapshot command, or a directory of snapshots of which the latest is opened, searched only and with its spatial index mapped into memory")
+    public String getSnapshot();
+    
+    @CommandLine(longName = "index-directory", shortName = {"X"}, required = false,
+            defaultValue = "fs",
+            description = "The directory of the spatial index: fs for the default of the platform, mmap for memory mapped files, nio for positional reads or memory to keep it in memory only")
+    public String getIndexDirectory();
+    
+    @CommandLine(longName = "long-running-loads", shortName = {"L"}, isSwitch = true,
+            description = "Answer requests that need a knowledge base to be loaded with 202 and a job to poll")
+    public boolean getLongRunningLoads();
+    
+    @CommandLine(longName = "refresh-ttl", shortName = {"T"}, required = false,
+            defaultValue = "0",
+            description = "The number of seconds after which a knowledge base is checked for changes and reloaded if changed, 0 to never refresh")
+    public int getRefreshTtl();
+    
+    @CommandLine(longName = "in-memory-index", shortName = {"I"}, isSwitch = true,
+            description = "Keep the points of interest of each knowledge base in memory to answer nearby searches faster")
+    public boolean getInMemoryIndex();
+    
+    @CommandLine(longName = "bulk-load-threads", shortName = {"B"}, required = false,
+            defaultValue = "0",
+            description = "The number of threads parsing a knowledge base in N-Triples while it is loaded in bulk, 0 to load knowledge bases triple by triple")
+    public int getBulkLoadThreads();
+    
+    @CommandLine(longName = "cache-size", shortName = {"C"}, required = false,
+            defaultValue = "0",
+            description = "The number of search results kept in memory for positions searched again, 0 to keep none")
+    public int getCacheSize();
+    
+    @CommandLine(longName = "cache-decimals", shortName = {"Q"}, required = false,
+            defaultValue = "4",
+            description = "The number of decimals of a degree positions are rounded to for the search result cache")
+    public int getCacheDecimals();
+    
+    @CommandLine(longName = "max-graphs", shortName = {"G"}, required = false,
+            defaultValue = "0",
+            description = "The maximum number of knowledge bases kept, the least recently used are evicted, 0 for no limit")
+    public int getMaxGraphs();
+    
+    @CommandLine(longName = "max-triples", shortName = {"N"}, required = false,
+            defaultValue = "0",
+            description = "The maximum number of triples in all knowledge bases kept, 0 for no limit")
+    public Long getMaxTriples();
+    
+    @CommandLine(longName = "max-megabytes", shortName = {"M"}, required = false,
+            defaultValue = "0",
+            description = "The maximum size in megabytes of the data downloaded for all knowledge bases kept, 0 for no limit")
+    public int getMaxMegabytes();
+    
+    @CommandLine(longName = "slow-query-millis", shortName = {"S"}, required = false,
+            defaultValue = "1000",
+            description = "The time in milliseconds from which a search is logged as slow with its parameters and number of results, 0 to log none")
+    public int getSlowQueryMillis();
+    
+    @CommandLine(longName = "trace-one-in", shortName = {"R"}, required = false,
+            defaultValue = "0",
+            description = "Trace one search in this number with its parameters, number of results and time, 0 to trace none")
+    public int getTraceOneIn();
+    
+    @CommandLine(longName = "workers", shortName = {"W"}, required = false,
+            defaultValue = "16",
+            description = "The number of requests handled at the same time")
+    public int getWorkers();
+    
+    @CommandLine(longName = "queue-size", shortName = {"U"}, required = false,
+            defaultValue = "1024",
+            description = "The number of requests waiting for a worker or for their knowledge base to be loaded, further requests are answered with 503")
+    public int getQueueSize();
+    
+    @CommandLine(longName = "request-deadline", shortName = {"E"}, required = false,
+            defaultValue = "30000",
+            description = "The time in milliseconds a request waits for a worker or for its knowledge base before it is answered with 503, 0 to wait as long as needed")
+    public int getRequestDeadline();
+    
+    @CommandLine(longName = "load-threads", shortName = {"O"}, required = false,
+            defaultValue = "4",
+            description = "The number of knowledge bases downloaded and loaded at the same time for the requests waiting on them")
+    public int getLoadThreads();
+    
+    @CommandLine(longName = "max-transformers", shortName = {"A"}, required = false,
+            defaultValue = "1024",
+            description = "The number of knowledge bases for which a transformer is kept, the least recently used are dropped beyond it")
+    public int getMaxTransformers();
+    
 }
@@ -0,0 +1,247 @@
+package eu.fusepool.p3.geo.enriching;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Handles the requests to the transformer off the threads of the server. A request is suspended, the
+ * knowledge base it searches is loaded first if needed by the threads loading knowledge bases, then the
+ * wrapped handler answers it on one of the workers and the request is completed. The requests waiting
+ * for the same knowledge base hold no thread, so that a few threads keep many connections open while
+ * a knowledge base is downloaded.
+ * <p>
+ * At most a given number of requests are handled at the same time and a given number wait for a worker
+ * or a knowledge base. The requests beyond these, and the ones that have waited until their deadline, are
+ * answered with 503 and a <code>Retry-After</code> header, so that the server keeps answering at its capacity
+ * instead of queueing requests it will answer too late.
+ */
+public class AsyncRequestHandler extends HandlerWrapper {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncRequestHandler.class);
+
+    static final int RETRY_AFTER_SECONDS = 1;
+
+    private final SpatialDataEnhancer spatialDataEnhancer;
+    private final int workers;
+    private final int maxWaiting;
+    private final long deadlineMillis;
+    private final int loadThreads;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // the requests waiting for each knowledge base being loaded
+    private final Map<String, List<Runnable>> pendingLoads = new HashMap<String, List<Runnable>>();
+    private boolean loadFirst = true;
+    private ExecutorService queryExecutor;
+    private ExecutorService loadExecutor;
+    private ScheduledExecutorService deadlines;
+
+    /**
+     * @param spatialDataEnhancer loads the knowledge bases and counts the requests rejected
+     * @param workers the number of requests handled at the same time
+     * @param maxWaiting the number of requests waiting for a worker or a knowledge base
+     * @param deadlineMillis the time in milliseconds a request waits to be handled, 0 to wait as long as needed
+     * @param loadThreads the number of knowledge bases loaded at the same time
+     */
+    public AsyncRequestHandler(SpatialDataEnhancer spatialDataEnhancer, int workers, int maxWaiting, long deadlineMillis, int loadThreads) {
+        if (workers < 1 || loadThreads < 1 || maxWaiting < 0 || deadlineMillis < 0) {
+            throw new IllegalArgumentException("At least one worker and one loading thread are needed, and the queue size and the deadline cannot be negative");
+        }
+        this.spatialDataEnhancer = spatialDataEnhancer;
+        this.workers = workers;
+        this.maxWaiting = maxWaiting;
+        this.deadlineMillis = deadlineMillis;
+        this.loadThreads = loadThreads;
+    }
+
+    /**
+     * Whether the knowledge base of a request is loaded before the request is handled, true by default.
+     * Not needed when the transformer answers the requests on a knowledge base to be loaded with a job.
+     */
+    public void setLoadFirst(boolean loadFirst) {
+        this.loadFirst = loadFirst;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        queryExecutor = Executors.newFixedThreadPool(workers, threadFactory("geo-enricher-query-"));
+        loadExecutor = Executors.newFixedThreadPool(loadThreads, threadFactory("geo-enricher-load-"));
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, threadFactory("geo-enricher-deadline-"));
+        scheduler.setRemoveOnCancelPolicy(true);
+        deadlines = scheduler;
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        deadlines.shutdownNow();
+        loadExecutor.shutdownNow();
+        queryExecutor.shutdownNow();
+    }
+
+    @Override
+    public void handle(final String target, final Request baseRequest, final HttpServletRequest request, final HttpServletResponse response)
+            throws IOException, ServletException {
+        baseRequest.setHandled(true);
+        if (inFlight.incrementAndGet() > workers + maxWaiting) {
+            inFlight.decrementAndGet();
+            reject(response);
+            return;
+        }
+        AsyncContext asyncContext = request.startAsync();
+        // the deadline is kept by the handler, a request being handled is not timed out
+        asyncContext.setTimeout(0);
+        final Exchange exchange = new Exchange(asyncContext);
+        if (deadlineMillis > 0) {
+            exchange.deadline = deadlines.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    exchange.expire();
+                }
+            }, deadlineMillis, TimeUnit.MILLISECONDS);
+        }
+        Runnable handling = new Runnable() {
+            @Override
+            public void run() {
+                exchange.handle(target, baseRequest, request, response);
+            }
+        };
+        String graph = request.getParameter("graph");
+        if (graph != null) {
+            // the name under which the factory of the transformers loads the knowledge base
+            graph = GeoEnrichingTransformerFactory.normalizeUrl(graph);
+        }
+        if (loadFirst && graph != null && ! spatialDataEnhancer.isCachedGraph(spatialDataEnhancer.getDataset(), graph)) {
+            afterLoad(graph, handling);
+        }
+        else {
+            submit(handling);
+        }
+    }
+
+    /**
+     * Handles a request once its knowledge base is loaded, starting the load unless it is already running.
+     * A failed load is left to the transformer to report, which tries it again.
+     */
+    private void afterLoad(final String graph, Runnable handling) {
+        synchronized (pendingLoads) {
+            List<Runnable> pending = pendingLoads.get(graph);
+            if (pending != null) {
+                pending.add(handling);
+                return;
+            }
+            pending = new ArrayList<Runnable>();
+            pending.add(handling);
+            pendingLoads.put(graph, pending);
+        }
+        loadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    spatialDataEnhancer.ensureKnowledgeBase(graph);
+                } catch (RuntimeException e) {
+                    log.warn("Loading " + graph + " before the requests on it failed.", e);
+                }
+                List<Runnable> pending;
+                synchronized (pendingLoads) {
+                    pending = pendingLoads.remove(graph);
+                }
+                for (Runnable handling : pending) {
+                    submit(handling);
+                }
+            }
+        });
+    }
+
+    private void submit(Runnable handling) {
+        queryExecutor.execute(handling);
+    }
+
+    private void reject(HttpServletResponse response) {
+        spatialDataEnhancer.getMetrics().addRequestRejected();
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+    }
+
+    /**
+     * A suspended request, either handled by a worker or expired at its deadline, whichever comes first.
+     */
+    private class Exchange {
+        private static final int WAITING = 0;
+        private static final int HANDLED = 1;
+        private static final int EXPIRED = 2;
+
+        final AsyncContext asyncContext;
+        final AtomicInteger state = new AtomicInteger(WAITING);
+        volatile ScheduledFuture<?> deadline;
+
+        Exchange(AsyncContext asyncContext) {
+            this.asyncContext = asyncContext;
+        }
+
+        void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) {
+            if (! state.compareAndSet(WAITING, HANDLED)) {
+                return;
+            }
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+            try {
+                getHandler().handle(target, baseRequest, request, response);
+            } catch (Exception e) {
+                log.error("Handling the request failed.", e);
+                if (! response.isCommitted()) {
+                    response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                }
+            } finally {
+                complete();
+            }
+        }
+
+        void expire() {
+            if (! state.compareAndSet(WAITING, EXPIRED)) {
+                return;
+            }
+            reject((HttpServletResponse) asyncContext.getResponse());
+            complete();
+        }
+
+        private void complete() {
+            inFlight.decrementAndGet();
+            asyncContext.complete();
+        }
+    }
+
+    private static ThreadFactory threadFactory(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,266 @@
+package eu.fusepool.p3.geo.enriching;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.ReaderRIOT;
+import org.apache.jena.riot.lang.LabelToNode;
+import org.apache.jena.riot.system.ParserProfile;
+import org.apache.jena.riot.system.RiotLib;
+import org.apache.jena.riot.system.StreamRDF;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.core.Quad;
+
+/**
+ * Reads the data of a knowledge base into a graph with the parsing done on other threads than the
+ * inserts. N-Triples are split into chunks of whole lines that are parsed in parallel, blank node
+ * labels are mapped to the same nodes in all chunks of a document. Other syntaxes are parsed on one
+ * thread while the triples already parsed are inserted. The triples are inserted in batches by the
+ * calling thread, which is the one holding the write transaction.
+ */
+class BulkLoader {
+
+    private static final int CHUNK_BYTES = 1 << 20;
+    private static final int BATCH_SIZE = 10000;
+    // marks the end of the batches of a parser thread
+    private static final List<Triple> END = Collections.emptyList();
+
+    private final int threads;
+
+    /**
+     * @param threads the number of threads parsing N-Triples
+     */
+    BulkLoader(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Reads data into a graph. Must be called within a write transaction.
+     * @return the number of triples read
+     */
+    long load(final InputStream data, final Lang lang, final String baseUrl, Graph graph) throws IOException {
+        ExecutorService parsers = Executors.newFixedThreadPool(RDFLanguages.sameLang(lang, Lang.NTRIPLES) ? threads : 1, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bulk-load-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            if (RDFLanguages.sameLang(lang, Lang.NTRIPLES)) {
+                return loadChunks(data, baseUrl, graph, parsers);
+            }
+            return loadStream(data, lang, baseUrl, graph, parsers);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while loading " + baseUrl, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Cannot parse " + baseUrl, e.getCause());
+        }
+        finally {
+            parsers.shutdownNow();
+        }
+    }
+
+    /**
+     * Parses chunks of lines in parallel, inserting the triples of each chunk in the order of the chunks.
+     */
+    private long loadChunks(InputStream data, final String baseUrl, Graph graph, ExecutorService parsers)
+            throws IOException, InterruptedException, ExecutionException {
+        final UUID document = UUID.randomUUID();
+        Deque<Future<List<Triple>>> pending = new ArrayDeque<Future<List<Triple>>>();
+        long count = 0;
+        byte[] buffer = new byte[CHUNK_BYTES + 8192];
+        int length = 0;
+        int read;
+        while ((read = data.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+            if (length < CHUNK_BYTES) {
+                continue;
+            }
+            int end = lastLineEnd(buffer, length);
+            if (end < 0) {
+                if (length == buffer.length) {
+                    // a line longer than the buffer
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                continue;
+            }
+            final byte[] chunk = Arrays.copyOf(buffer, end + 1);
+            length -= end + 1;
+            System.arraycopy(buffer, end + 1, buffer, 0, length);
+            pending.add(parsers.submit(new Callable<List<Triple>>() {
+                @Override
+                public List<Triple> call() {
+                    return parse(new ByteArrayInputStream(chunk), Lang.NTRIPLES, baseUrl, document);
+                }
+            }));
+            if (pending.size() >= threads * 2) {
+                count += insert(pending.remove().get(), graph);
+            }
+        }
+        if (length > 0) {
+            count += insert(parse(new ByteArrayInputStream(buffer, 0, length), Lang.NTRIPLES, baseUrl, document), graph);
+        }
+        while (! pending.isEmpty()) {
+            count += insert(pending.remove().get(), graph);
+        }
+        return count;
+    }
+
+    /**
+     * Parses on another thread, inserting the batches of triples as they are parsed.
+     */
+    private long loadStream(final InputStream data, final Lang lang, final String baseUrl, Graph graph, ExecutorService parsers)
+            throws InterruptedException, ExecutionException {
+        final BlockingQueue<List<Triple>> batches = new ArrayBlockingQueue<List<Triple>>(4);
+        Future<Void> parser = parsers.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+                try {
+                    BatchingStream stream = new BatchingStream(batches);
+                    RDFDataMgr.parse(stream, data, baseUrl, lang);
+                    stream.flush();
+                }
+                finally {
+                    batches.put(END);
+                }
+                return null;
+            }
+        });
+        long count = 0;
+        List<Triple> batch;
+        while ((batch = batches.take()) != END) {
+            count += insert(batch, graph);
+        }
+        parser.get();
+        return count;
+    }
+
+    private static List<Triple> parse(InputStream data, Lang lang, String baseUrl, UUID document) {
+        final List<Triple> triples = new ArrayList<Triple>();
+        // the chunks of a document share the labels of its blank nodes
+        ParserProfile profile = RiotLib.profile(lang, baseUrl);
+        profile.setLabelToNode(LabelToNode.createScopeByDocumentHash(document));
+        ReaderRIOT reader = RDFDataMgr.createReader(lang);
+        reader.setParserProfile(profile);
+        reader.read(data, baseUrl, lang.getContentType(), new CollectingStream(triples), null);
+        return triples;
+    }
+
+    private static int insert(List<Triple> triples, Graph graph) {
+        for (Triple triple : triples) {
+            graph.add(triple);
+        }
+        return triples.size();
+    }
+
+    private static int lastLineEnd(byte[] buffer, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Receives the triples parsed, the triples of quads included.
+     */
+    private static abstract class TripleStream implements StreamRDF {
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void quad(Quad quad) {
+            triple(quad.asTriple());
+        }
+
+        @Override
+        public void base(String base) {
+        }
+
+        @Override
+        public void prefix(String prefix, String iri) {
+        }
+
+        @Override
+        public void finish() {
+        }
+    }
+
+    private static class CollectingStream extends TripleStream {
+        private final List<Triple> triples;
+
+        CollectingStream(List<Triple> triples) {
+            this.triples = triples;
+        }
+
+        @Override
+        public void triple(Triple triple) {
+            triples.add(triple);
+        }
+    }
+
+    /**
+     * Hands the triples parsed over in batches.
+     */
+    private static class BatchingStream extends TripleStream {
+        private final BlockingQueue<List<Triple>> batches;
+        private List<Triple> batch = new ArrayList<Triple>(BATCH_SIZE);
+
+        BatchingStream(BlockingQueue<List<Triple>> batches) {
+            this.batches = batches;
+        }
+
+        @Override
+        public void triple(Triple triple) {
+            if (batch.size() == BATCH_SIZE) {
+                flush();
+            }
+            batch.add(triple);
+        }
+
+        void flush() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            try {
+                batches.put(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while parsing", e);
+            }
+            batch = new ArrayList<Triple>(BATCH_SIZE);
+        }
+    }
+
+}
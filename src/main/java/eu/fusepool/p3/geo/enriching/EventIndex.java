@@ -0,0 +1,531 @@
+package eu.fusepool.p3.geo.enriching;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.clerezza.rdf.core.Triple;
+import org.apache.clerezza.rdf.core.UriRef;
+import org.apache.clerezza.rdf.core.impl.PlainLiteralImpl;
+import org.apache.clerezza.rdf.core.impl.TripleImpl;
+import org.apache.clerezza.rdf.core.impl.TypedLiteralImpl;
+import org.apache.clerezza.rdf.ontologies.RDFS;
+import org.apache.clerezza.rdf.ontologies.XSD;
+import org.apache.jena.query.spatial.DistanceUnitsUtils;
+import org.apache.jena.query.spatial.EntityDefinition;
+import org.apache.jena.query.spatial.SpatialQuery;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.rdf.model.Literal;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.ResIterator;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.spatial4j.core.distance.DistanceCalculator;
+import com.spatial4j.core.shape.Point;
+import com.spatial4j.core.shape.Rectangle;
+
+/**
+ * The events of one knowledge base held in memory for the search of events nearby a position
+ * within a time frame. The dates are parsed to days since the epoch once, when the index is built.
+ * Each combination of an event, its location and its dates is an entry: the entries are kept sorted
+ * by start day, and the positions of the locations sorted by latitude.
+ * A search counts the candidates of the time frame and of the band of latitudes of the circle and
+ * starts from the fewer ones, checking each against the other filter. The events are the ones the
+ * SPARQL query of {@link SpatialDataEnhancer#queryEventsNearby} finds: the dates compared are
+ * xsd:date literals without a time zone.
+ */
+class EventIndex {
+
+    private static final UriRef geo_long = new UriRef("http://www.w3.org/2003/01/geo/wgs84_pos#long");
+    private static final UriRef geo_lat = new UriRef("http://www.w3.org/2003/01/geo/wgs84_pos#lat");
+    private static final UriRef schema_event = new UriRef("http://schema.org/event");
+    private static final UriRef schema_location = new UriRef("http://schema.org/location");
+    private static final UriRef schema_startDate = new UriRef("http://schema.org/startDate");
+    private static final UriRef schema_endDate = new UriRef("http://schema.org/endDate");
+    private static final UriRef schema_containedIn = new UriRef("http://schema.org/containedIn");
+    private static final Property location_property = ResourceFactory.createProperty("http://schema.org/location");
+    private static final Property startDate_property = ResourceFactory.createProperty("http://schema.org/startDate");
+    private static final Property endDate_property = ResourceFactory.createProperty("http://schema.org/endDate");
+    private static final int[] DAYS_IN_MONTH = { 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+    // the days of an open start or end of a time frame, before and after any day of a date in the yyyy-mm-dd 
+    // form and far enough from the limits of int not to overflow when the search moves them
+    private static final int OPEN_START = Integer.MIN_VALUE / 2;
+    private static final int OPEN_END = Integer.MAX_VALUE / 2;
+
+    // one position per entry, sorted by latitude
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final int[] positionLocations;
+    // the positions of location l are locationPositions[locationPositionOffsets[l]] until locationPositionOffsets[l + 1]
+    private final int[] locationPositionOffsets;
+    private final int[] locationPositions;
+    // the triples of location l are locationTripleOffsets[l] until locationTripleOffsets[l + 1]
+    private final UriRef[] locationRefs;
+    private final int[] locationTripleOffsets;
+    private final Triple[] locationTriples;
+    // one event, location and dates combination per entry, sorted by start day
+    private final int[] startDays;
+    private final int[] endDays;
+    private final int[] entryLocations;
+    // the triples of entry e are entryTripleOffsets[e] until entryTripleOffsets[e + 1]
+    private final int[] entryTripleOffsets;
+    private final Triple[] entryTriples;
+    // the entries of location l are locationEntries[locationEntryOffsets[l]] until locationEntryOffsets[l + 1]
+    private final int[] locationEntryOffsets;
+    private final int[] locationEntries;
+    // the most days an entry starts after it ends, 0 unless some dates are inverted
+    private final int maxInversion;
+
+    private static class Entry {
+        final int location;
+        final int startDay;
+        final int endDay;
+        final List<Triple> triples;
+
+        Entry(int location, int startDay, int endDay, List<Triple> triples) {
+            this.location = location;
+            this.startDay = startDay;
+            this.endDay = endDay;
+            this.triples = triples;
+        }
+    }
+
+    private EventIndex(double[] latitudes, double[] longitudes, int[] positionLocations,
+            int[] locationPositionOffsets, int[] locationPositions,
+            UriRef[] locationRefs, int[] locationTripleOffsets, Triple[] locationTriples,
+            int[] startDays, int[] endDays, int[] entryLocations, int[] entryTripleOffsets, Triple[] entryTriples,
+            int[] locationEntryOffsets, int[] locationEntries, int maxInversion) {
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.positionLocations = positionLocations;
+        this.locationPositionOffsets = locationPositionOffsets;
+        this.locationPositions = locationPositions;
+        this.locationRefs = locationRefs;
+        this.locationTripleOffsets = locationTripleOffsets;
+        this.locationTriples = locationTriples;
+        this.startDays = startDays;
+        this.endDays = endDays;
+        this.entryLocations = entryLocations;
+        this.entryTripleOffsets = entryTripleOffsets;
+        this.entryTriples = entryTriples;
+        this.locationEntryOffsets = locationEntryOffsets;
+        this.locationEntries = locationEntries;
+        this.maxInversion = maxInversion;
+    }
+
+    /**
+     * Builds the index of the events in a model.
+     * The model must not change while the index is built.
+     */
+    static EventIndex build(Model model) {
+        Map<Resource, Integer> locationIds = new HashMap<Resource, Integer>();
+        List<UriRef> locationRefs = new ArrayList<UriRef>();
+        List<Triple> locationTriples = new ArrayList<Triple>();
+        List<Integer> locationTripleOffsets = new ArrayList<Integer>();
+        final List<Double> positionLatitudes = new ArrayList<Double>();
+        List<Double> positionLongitudes = new ArrayList<Double>();
+        List<Integer> positionLocations = new ArrayList<Integer>();
+        final List<Entry> entries = new ArrayList<Entry>();
+        ResIterator events = model.listSubjectsWithProperty(location_property);
+        try {
+            while (events.hasNext()) {
+                Resource event = events.next();
+                if (! event.isURIResource()) {
+                    continue;
+                }
+                UriRef eventRef = new UriRef(event.getURI());
+                List<PlainLiteralImpl> eventLabels = new ArrayList<PlainLiteralImpl>();
+                for (Statement label : PoiIndex.list(event, com.hp.hpl.jena.vocabulary.RDFS.label)) {
+                    if (label.getObject().isLiteral()) {
+                        eventLabels.add(new PlainLiteralImpl(label.getString()));
+                    }
+                }
+                List<Literal> starts = dates(event, startDate_property);
+                List<Literal> ends = dates(event, endDate_property);
+                if (eventLabels.isEmpty() || starts.isEmpty() || ends.isEmpty()) {
+                    continue;
+                }
+                for (Statement locationStatement : PoiIndex.list(event, location_property)) {
+                    if (! locationStatement.getObject().isURIResource()) {
+                        continue;
+                    }
+                    Resource location = locationStatement.getResource();
+                    Integer locationId = locationIds.get(location);
+                    if (locationId == null) {
+                        UriRef locationRef = new UriRef(location.getURI());
+                        List<Triple> triples = describe(location, locationRef);
+                        int positionCount = positionLocations.size();
+                        if (triples != null) {
+                            addPositions(location, locationRefs.size(), positionLatitudes, positionLongitudes, positionLocations);
+                        }
+                        if (positionLocations.size() == positionCount) {
+                            locationIds.put(location, -1);
+                            continue;
+                        }
+                        locationId = locationRefs.size();
+                        locationIds.put(location, locationId);
+                        locationRefs.add(locationRef);
+                        locationTripleOffsets.add(locationTriples.size());
+                        locationTriples.addAll(triples);
+                    }
+                    if (locationId < 0) {
+                        continue;
+                    }
+                    UriRef locationRef = locationRefs.get(locationId);
+                    for (Literal start : starts) {
+                        for (Literal end : ends) {
+                            List<Triple> triples = new ArrayList<Triple>();
+                            for (PlainLiteralImpl eventLabel : eventLabels) {
+                                triples.add(new TripleImpl(eventRef, RDFS.label, eventLabel));
+                            }
+                            triples.add(new TripleImpl(eventRef, schema_location, locationRef));
+                            triples.add(new TripleImpl(locationRef, schema_event, eventRef));
+                            triples.add(new TripleImpl(eventRef, schema_startDate, new TypedLiteralImpl(start.getLexicalForm(), XSD.double_)));
+                            triples.add(new TripleImpl(eventRef, schema_endDate, new TypedLiteralImpl(end.getLexicalForm(), XSD.double_)));
+                            entries.add(new Entry(locationId, epochDay(start.getLexicalForm()), epochDay(end.getLexicalForm()), triples));
+                        }
+                    }
+                }
+            }
+        }
+        finally {
+            events.close();
+        }
+        locationTripleOffsets.add(locationTriples.size());
+        int locationCount = locationRefs.size();
+
+        Integer[] positionOrder = sequence(positionLocations.size());
+        Arrays.sort(positionOrder, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(positionLatitudes.get(a), positionLatitudes.get(b));
+            }
+        });
+        double[] latitudes = new double[positionOrder.length];
+        double[] longitudes = new double[positionOrder.length];
+        int[] locations = new int[positionOrder.length];
+        int[] locationPositionOffsets = new int[locationCount + 1];
+        for (int i = 0; i < positionOrder.length; i++) {
+            latitudes[i] = positionLatitudes.get(positionOrder[i]);
+            longitudes[i] = positionLongitudes.get(positionOrder[i]);
+            locations[i] = positionLocations.get(positionOrder[i]);
+            locationPositionOffsets[locations[i] + 1]++;
+        }
+        int[] locationPositions = group(locations, locationPositionOffsets);
+
+        Integer[] entryOrder = sequence(entries.size());
+        Arrays.sort(entryOrder, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(entries.get(a).startDay, entries.get(b).startDay);
+            }
+        });
+        int[] startDays = new int[entryOrder.length];
+        int[] endDays = new int[entryOrder.length];
+        int[] entryLocations = new int[entryOrder.length];
+        int[] entryTripleOffsets = new int[entryOrder.length + 1];
+        List<Triple> entryTriples = new ArrayList<Triple>();
+        int[] locationEntryOffsets = new int[locationCount + 1];
+        int maxInversion = 0;
+        for (int i = 0; i < entryOrder.length; i++) {
+            Entry entry = entries.get(entryOrder[i]);
+            startDays[i] = entry.startDay;
+            endDays[i] = entry.endDay;
+            entryLocations[i] = entry.location;
+            entryTripleOffsets[i] = entryTriples.size();
+            entryTriples.addAll(entry.triples);
+            locationEntryOffsets[entry.location + 1]++;
+            maxInversion = Math.max(maxInversion, entry.startDay - entry.endDay);
+        }
+        entryTripleOffsets[entryOrder.length] = entryTriples.size();
+        int[] locationEntries = group(entryLocations, locationEntryOffsets);
+
+        return new EventIndex(latitudes, longitudes, locations, locationPositionOffsets, locationPositions,
+                locationRefs.toArray(new UriRef[locationCount]), toArray(locationTripleOffsets),
+                locationTriples.toArray(new Triple[locationTriples.size()]),
+                startDays, endDays, entryLocations, entryTripleOffsets, entryTriples.toArray(new Triple[entryTriples.size()]),
+                locationEntryOffsets, locationEntries, maxInversion);
+    }
+
+    /**
+     * The triples the SPARQL query returns for a location, null if it is not a location of events.
+     */
+    private static List<Triple> describe(Resource location, UriRef locationRef) {
+        List<Triple> triples = new ArrayList<Triple>();
+        int labels = 0, lats = 0, longs = 0;
+        if (PoiIndex.list(location, com.hp.hpl.jena.vocabulary.RDF.type).isEmpty()) {
+            return null;
+        }
+        for (Statement label : PoiIndex.list(location, com.hp.hpl.jena.vocabulary.RDFS.label)) {
+            if (label.getObject().isLiteral()) {
+                triples.add(new TripleImpl(locationRef, RDFS.label, new PlainLiteralImpl(label.getString())));
+                labels++;
+            }
+        }
+        for (Statement latitude : PoiIndex.list(location, EntityDefinition.geo_latitude)) {
+            if (latitude.getObject().isLiteral()) {
+                triples.add(new TripleImpl(locationRef, geo_lat, new TypedLiteralImpl(latitude.getString(), XSD.float_)));
+                lats++;
+            }
+        }
+        for (Statement longitude : PoiIndex.list(location, EntityDefinition.geo_longitude)) {
+            if (longitude.getObject().isLiteral()) {
+                triples.add(new TripleImpl(locationRef, geo_long, new TypedLiteralImpl(longitude.getString(), XSD.float_)));
+                longs++;
+            }
+        }
+        return labels > 0 && lats > 0 && longs > 0 ? triples : null;
+    }
+
+    /**
+     * Adds the positions of a location the spatial index knows about.
+     */
+    private static void addPositions(Resource location, int locationId, List<Double> latitudes, List<Double> longitudes, List<Integer> locations) {
+        for (Property[] pair : SpatialDataEnhancer.SPATIAL_PREDICATE_PAIRS) {
+            for (Statement latitude : PoiIndex.list(location, pair[0])) {
+                for (Statement longitude : PoiIndex.list(location, pair[1])) {
+                    try {
+                        double lat = Double.parseDouble(latitude.getLiteral().getLexicalForm());
+                        double lon = Double.parseDouble(longitude.getLiteral().getLexicalForm());
+                        latitudes.add(lat);
+                        longitudes.add(lon);
+                        locations.add(locationId);
+                    } catch (RuntimeException e) {
+                        // not a number, not indexed by the spatial index either
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The dates of an event that can be compared to the dates of a search.
+     */
+    private static List<Literal> dates(Resource event, Property property) {
+        List<Literal> dates = new ArrayList<Literal>();
+        for (Statement date : PoiIndex.list(event, property)) {
+            if (date.getObject().isLiteral()) {
+                Literal literal = date.getLiteral();
+                if (XSDDatatype.XSDdate.getURI().equals(literal.getDatatypeURI()) && epochDay(literal.getLexicalForm()) != Integer.MIN_VALUE) {
+                    dates.add(literal);
+                }
+            }
+        }
+        return dates;
+    }
+
+    /**
+     * Parses a date in the yyyy-mm-dd form to the number of days since 1970-01-01.
+     * @return Integer.MIN_VALUE if the date is not in that form
+     */
+    static int epochDay(String date) {
+        if (date == null || date.length() != 10 || date.charAt(4) != '-' || date.charAt(7) != '-') {
+            return Integer.MIN_VALUE;
+        }
+        int year, month, day;
+        try {
+            year = Integer.parseInt(date.substring(0, 4));
+            month = Integer.parseInt(date.substring(5, 7));
+            day = Integer.parseInt(date.substring(8, 10));
+        } catch (NumberFormatException e) {
+            return Integer.MIN_VALUE;
+        }
+        boolean leap = year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+        if (month < 1 || month > 12 || day < 1 || day > DAYS_IN_MONTH[month - 1] + (month == 2 && leap ? 1 : 0)) {
+            return Integer.MIN_VALUE;
+        }
+        // days from civil, with years starting in March so that the leap day is the last one
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * The number of events, locations and dates combinations in the index.
+     */
+    int size() {
+        return startDays.length;
+    }
+
+    /**
+     * Adds the events within a circle and a time frame to a graph, with their locations linked
+     * to the position searched. An event is within the time frame if it starts not before its start
+     * and ends not after its end, a time frame without a start or an end being open on that side.
+     * @param lat latitude of the center
+     * @param lon longitude of the center
+     * @param radius radius in meters
+     * @param from the start of the time frame, null if it has none
+     * @param to the end of the time frame, null if it has none
+     * @param position the position the locations are linked to with schema:containedIn
+     * @param result the graph or the collection the triples are added to
+     * @return the number of locations found
+     */
+    int addNearby(double lat, double lon, double radius, String from, String to, UriRef position, Collection<Triple> result) {
+        int fromDay = from != null ? epochDay(from) : OPEN_START;
+        int toDay = to != null ? epochDay(to) : OPEN_END;
+        if (fromDay == Integer.MIN_VALUE || toDay == Integer.MIN_VALUE) {
+            // the filter of the SPARQL query fails as well
+            return 0;
+        }
+        Circle circle = new Circle(lat, lon, radius);
+        int firstPosition = lowerBound(latitudes, circle.box.getMinY());
+        int lastPosition = lowerBound(latitudes, Math.nextUp(circle.box.getMaxY()));
+        // an entry within the time frame starts between its start and, unless its dates are inverted, its end
+        int firstEntry = lowerBound(startDays, fromDay);
+        int lastEntry = lowerBound(startDays, toDay + maxInversion + 1);
+        BitSet found = new BitSet(locationRefs.length);
+        if (lastEntry - firstEntry <= lastPosition - firstPosition) {
+            for (int e = firstEntry; e < lastEntry; e++) {
+                if (endDays[e] <= toDay && isWithin(entryLocations[e], circle)) {
+                    addEntry(e, position, result);
+                    found.set(entryLocations[e]);
+                }
+            }
+        }
+        else {
+            BitSet added = new BitSet(locationRefs.length);
+            for (int i = firstPosition; i < lastPosition; i++) {
+                int location = positionLocations[i];
+                if (added.get(location) || ! circle.contains(latitudes[i], longitudes[i])) {
+                    continue;
+                }
+                added.set(location);
+                for (int l = locationEntryOffsets[location]; l < locationEntryOffsets[location + 1]; l++) {
+                    int e = locationEntries[l];
+                    if (startDays[e] >= fromDay && endDays[e] <= toDay) {
+                        addEntry(e, position, result);
+                        found.set(location);
+                    }
+                }
+            }
+        }
+        return found.cardinality();
+    }
+
+    private boolean isWithin(int location, Circle circle) {
+        for (int p = locationPositionOffsets[location]; p < locationPositionOffsets[location + 1]; p++) {
+            int i = locationPositions[p];
+            if (circle.contains(latitudes[i], longitudes[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addEntry(int entry, UriRef position, Collection<Triple> result) {
+        int location = entryLocations[entry];
+        result.add(new TripleImpl(locationRefs[location], schema_containedIn, position));
+        for (int t = locationTripleOffsets[location]; t < locationTripleOffsets[location + 1]; t++) {
+            result.add(locationTriples[t]);
+        }
+        for (int t = entryTripleOffsets[entry]; t < entryTripleOffsets[entry + 1]; t++) {
+            result.add(entryTriples[t]);
+        }
+    }
+
+    /**
+     * A circle searched, with the bounding box and the distance as the spatial index computes them.
+     */
+    private static class Circle {
+        final Point center;
+        final double degrees;
+        final Rectangle box;
+        final DistanceCalculator distance = SpatialQuery.ctx.getDistCalc();
+
+        Circle(double lat, double lon, double radius) {
+            degrees = DistanceUnitsUtils.dist2Degrees(radius, "m");
+            center = SpatialQuery.ctx.makePoint(lon, lat);
+            box = SpatialQuery.ctx.makeCircle(center, degrees).getBoundingBox();
+        }
+
+        boolean contains(double latitude, double longitude) {
+            if (latitude < box.getMinY() || latitude > box.getMaxY()) {
+                return false;
+            }
+            boolean inBox = box.getCrossesDateLine() ?
+                    longitude >= box.getMinX() || longitude <= box.getMaxX() :
+                    longitude >= box.getMinX() && longitude <= box.getMaxX();
+            return inBox && distance.distance(center, longitude, latitude) <= degrees;
+        }
+    }
+
+    /**
+     * The first entry of a sorted array not below the given value.
+     */
+    private static int lowerBound(int[] values, int value) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < value) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * The first entry of a sorted array not below the given value.
+     */
+    private static int lowerBound(double[] values, double value) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < value) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static Integer[] sequence(int length) {
+        Integer[] sequence = new Integer[length];
+        for (int i = 0; i < length; i++) {
+            sequence[i] = i;
+        }
+        return sequence;
+    }
+
+    /**
+     * Groups the indexes of an array by their value. The offsets hold the count of each value
+     * shifted by one and are turned into the start of each group.
+     */
+    private static int[] group(int[] values, int[] offsets) {
+        for (int i = 1; i < offsets.length; i++) {
+            offsets[i] += offsets[i - 1];
+        }
+        int[] grouped = new int[values.length];
+        int[] next = Arrays.copyOf(offsets, offsets.length - 1);
+        for (int i = 0; i < values.length; i++) {
+            grouped[next[values[i]]++] = i;
+        }
+        return grouped;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+}
@@ -16,6 +16,8 @@
 package eu.fusepool.p3.geo.enriching;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
@@ -25,11 +27,15 @@ import javax.activation.MimeTypeParseException;
 
 import org.apache.clerezza.rdf.core.TripleCollection;
 import org.apache.clerezza.rdf.core.serializedform.Parser;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFLanguages;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import eu.fusepool.p3.transformer.HttpRequestEntity;
 import eu.fusepool.p3.transformer.RdfGeneratingTransformer;
+import eu.fusepool.p3.transformer.commons.Entity;
+import eu.fusepool.p3.transformer.commons.util.WritingEntity;
 
 /**
  * A transformer geo-enriching Data against a URI specified at construction.
@@ -42,10 +48,20 @@ class GeoEnrichingTransformer extends RdfGeneratingTransformer {
     final SpatialDataEnhancer spatialDataEnhancer;
     final String kbDataUrl;
     final String geoJsonMimeType = "application/vnd.geo+json";
+    final boolean longRunningLoads;
 
     GeoEnrichingTransformer(SpatialDataEnhancer spatialDataEnhancer, String kbDataUrl) {
+        this(spatialDataEnhancer, kbDataUrl, false);
+    }
+
+    /**
+     * @param longRunningLoads whether requests that need the knowledge base to be loaded 
+     * first are handled as long running requests 
+     */
+    GeoEnrichingTransformer(SpatialDataEnhancer spatialDataEnhancer, String kbDataUrl, boolean longRunningLoads) {
         this.spatialDataEnhancer = spatialDataEnhancer;
         this.kbDataUrl = kbDataUrl;
+        this.longRunningLoads = longRunningLoads;
     }
 
     /**
@@ -80,6 +96,93 @@ class GeoEnrichingTransformer extends RdfGeneratingTransformer {
         }
     }
 
+    /**
+     * Answers with GeoJSON if the client prefers it to Turtle, written as the positions are searched,
+     * otherwise with the RDF of {@link #generateRdf}. The time taken to write the answer is recorded
+     * in the metrics of the enhancer.
+     */
+    @Override
+    public Entity transform(HttpRequestEntity entity) throws IOException {
+        if (! prefersGeoJson(entity.getRequest().getHeader("Accept"))) {
+            final Entity rdf = super.transform(entity);
+            if (! (rdf instanceof WritingEntity)) {
+                return rdf;
+            }
+            return new WritingEntity() {
+
+                @Override
+                public MimeType getType() {
+                    return rdf.getType();
+                }
+
+                @Override
+                public URI getContentLocation() {
+                    return rdf.getContentLocation();
+                }
+
+                @Override
+                public void writeData(OutputStream out) throws IOException {
+                    long start = System.nanoTime();
+                    ((WritingEntity) rdf).writeData(out);
+                    spatialDataEnhancer.getMetrics().recordSince(Metrics.Phase.SERIALIZATION, start);
+                }
+            };
+        }
+        TripleCollection requestGraph = parse(entity);
+        final GeoJsonWriter geoJson = spatialDataEnhancer.enhanceGeoJson(kbDataUrl, requestGraph);
+        return new WritingEntity() {
+
+            @Override
+            public MimeType getType() {
+                try {
+                    return new MimeType(geoJsonMimeType);
+                } catch (MimeTypeParseException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+
+            @Override
+            public void writeData(OutputStream out) throws IOException {
+                geoJson.writeTo(out);
+            }
+        };
+    }
+
+    /**
+     * Whether an Accept header gives GeoJSON a higher quality than Turtle, or the same and lists it first.
+     */
+    boolean prefersGeoJson(String accept) {
+        if (accept == null) {
+            return false;
+        }
+        double geoJsonQuality = 0;
+        double turtleQuality = 0;
+        boolean geoJsonFirst = false;
+        for (String range : accept.split(",")) {
+            String[] parts = range.split(";");
+            String type = parts[0].trim().toLowerCase();
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (type.equals(geoJsonMimeType)) {
+                geoJsonFirst = geoJsonQuality == 0 && turtleQuality == 0;
+                geoJsonQuality = Math.max(geoJsonQuality, quality);
+            }
+            else if (type.equals("text/turtle") || type.equals("text/*") || type.equals("*/*")) {
+                turtleQuality = Math.max(turtleQuality, quality);
+            }
+        }
+        return geoJsonQuality > turtleQuality || (geoJsonQuality > 0 && geoJsonQuality == turtleQuality && geoJsonFirst);
+    }
+
     /**
      * Takes the RDF data sent by the client and the graph name (url) of the knowledge base to search
      * for points of interest nearby the locations described in the client graph and sends it back enriched with
@@ -89,19 +192,34 @@ class GeoEnrichingTransformer extends RdfGeneratingTransformer {
     @Override
     protected TripleCollection generateRdf(HttpRequestEntity entity) throws IOException {
         TripleCollection resultGraph = null;
-        String mediaType = entity.getType().toString();   
-        Parser parser = Parser.getInstance();
-        TripleCollection requestGraph = parser.parse( entity.getData(), mediaType);
+        // syntaxes Jena can stream are parsed while the positions are searched 
+        Lang lang = RDFLanguages.contentTypeToLang(entity.getType().getBaseType());
+        if (lang != null && RDFLanguages.isTriples(lang)) {
+            return spatialDataEnhancer.enhance(kbDataUrl, entity.getData(), lang);
+        }
+        TripleCollection requestGraph = parse(entity);
         resultGraph = spatialDataEnhancer.enhance(kbDataUrl, requestGraph);
             
         return resultGraph;
         
     }
+
+    private TripleCollection parse(HttpRequestEntity entity) throws IOException {
+        long start = System.nanoTime();
+        TripleCollection requestGraph = Parser.getInstance().parse(entity.getData(), entity.getType().toString());
+        spatialDataEnhancer.getMetrics().recordSince(Metrics.Phase.PARSE, start);
+        return requestGraph;
+    }
   
+    /**
+     * Requests are long running when the knowledge base is not in the triple store yet, as downloading 
+     * the dataset can be time consuming. Requests on a cached knowledge base, or without one, are answered 
+     * synchronously.  
+     */
     @Override
     public boolean isLongRunning() {
-        // downloading the dataset can be time consuming
-        return false;
+        return longRunningLoads && kbDataUrl != null
+                && ! spatialDataEnhancer.isCachedGraph(spatialDataEnhancer.getDataset(), kbDataUrl);
     }
 
 }
@@ -8,23 +8,61 @@ package eu.fusepool.p3.geo.enriching;
 import eu.fusepool.p3.transformer.Transformer;
 import eu.fusepool.p3.transformer.TransformerFactory;
 import java.io.IOException;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.servlet.http.HttpServletRequest;
 
 /**
+ * Gives the transformer of the knowledge base named by the <code>graph</code> parameter of a request.
+ * The transformers are kept by the normalized URL of their knowledge base, so that URLs differing only
+ * in the case of the scheme and host, a default port or a fragment share one. Lookups do not lock, and
+ * once the maximum number of transformers is reached the least recently used ones are dropped.
  *
  * @author reto
  */
 public class GeoEnrichingTransformerFactory implements TransformerFactory {
 
-    private final Map<String, Transformer> data2Transformer = 
-            new HashMap<>();
+    public static final int DEFAULT_MAX_TRANSFORMERS = 1024;
+
+    private final ConcurrentMap<String, Registration> data2Transformer = 
+            new ConcurrentHashMap<String, Registration>();
+    // a logical clock ordering the uses of the transformers
+    private final AtomicLong clock = new AtomicLong();
+    // set while a thread drops transformers, the others do not wait for it
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final int maxTransformers;
     private final SpatialDataEnhancer spatialDataEnhancer;
+    private final boolean longRunningLoads;
 
     public GeoEnrichingTransformerFactory() throws IOException {
-        this.spatialDataEnhancer = new SpatialDataEnhancer();
+        this(new SpatialDataEnhancer());
+    }
+    
+    public GeoEnrichingTransformerFactory(SpatialDataEnhancer spatialDataEnhancer) {
+        this(spatialDataEnhancer, false);
+    }
+    
+    /**
+     * @param longRunningLoads whether requests on a knowledge base that still has to be loaded 
+     * are answered with 202 and a job to be polled instead of waiting for the load  
+     */
+    public GeoEnrichingTransformerFactory(SpatialDataEnhancer spatialDataEnhancer, boolean longRunningLoads) {
+        this(spatialDataEnhancer, longRunningLoads, DEFAULT_MAX_TRANSFORMERS);
+    }
+    
+    /**
+     * @param maxTransformers the number of transformers kept, the least recently used are dropped beyond it
+     */
+    public GeoEnrichingTransformerFactory(SpatialDataEnhancer spatialDataEnhancer, boolean longRunningLoads, int maxTransformers) {
+        if (maxTransformers < 1) {
+            throw new IllegalArgumentException("At least one transformer has to be kept");
+        }
+        this.spatialDataEnhancer = spatialDataEnhancer;
+        this.longRunningLoads = longRunningLoads;
+        this.maxTransformers = maxTransformers;
     }
     
     @Override
@@ -33,13 +71,85 @@ public class GeoEnrichingTransformerFactory implements TransformerFactory {
         return getTransfomerFor(dataUri);
     }
 
-    private synchronized Transformer getTransfomerFor(String dataUri) {
-        if (data2Transformer.containsKey(dataUri)) {
-            return data2Transformer.get(dataUri);
+    /**
+     * The transformer of a knowledge base, shared by the URLs with the same normalized form.
+     */
+    public Transformer getTransfomerFor(String dataUri) {
+        if (dataUri == null) {
+            // a request without a knowledge base fails, its transformer is not kept
+            return new GeoEnrichingTransformer(spatialDataEnhancer, null, longRunningLoads);
+        }
+        final String key = normalizeUrl(dataUri);
+        Registration registration = data2Transformer.get(key);
+        if (registration == null) {
+            // used before it is added, so that it is not the one dropped to make room for it
+            final Registration newRegistration = new Registration(
+                    new GeoEnrichingTransformer(spatialDataEnhancer, key, longRunningLoads), clock.incrementAndGet());
+            registration = data2Transformer.putIfAbsent(key, newRegistration);
+            if (registration == null) {
+                if (data2Transformer.size() > maxTransformers) {
+                    evict();
+                }
+                return newRegistration.transformer;
+            }
+        }
+        registration.lastUse = clock.incrementAndGet();
+        return registration.transformer;
+    }
+    
+    /**
+     * The number of transformers kept.
+     */
+    public int getTransformerCount() {
+        return data2Transformer.size();
+    }
+    
+    /**
+     * Drops the least recently used transformers down to the maximum, unless another thread is already 
+     * doing it. The scan only happens when a new knowledge base is requested while the registry is full.
+     */
+    private void evict() {
+        do {
+            if (! evicting.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                while (data2Transformer.size() > maxTransformers) {
+                    Map.Entry<String, Registration> eldest = null;
+                    for (Map.Entry<String, Registration> entry : data2Transformer.entrySet()) {
+                        if (eldest == null || entry.getValue().lastUse < eldest.getValue().lastUse) {
+                            eldest = entry;
+                        }
+                    }
+                    if (eldest == null) {
+                        return;
+                    }
+                    data2Transformer.remove(eldest.getKey(), eldest.getValue());
+                }
+            } finally {
+                evicting.set(false);
+            }
+            // a transformer added while dropping by a thread that did not wait
+        } while (data2Transformer.size() > maxTransformers);
+    }
+    
+    /**
+     * The form of a URL by which its knowledge base is kept, the one the catalog of the knowledge bases 
+     * loaded lists it by: the scheme and host in lower case, without the default port of http and https, 
+     * the fragment and the dot segments of the path.
+     */
+    public static String normalizeUrl(String url) {
+        return KnowledgeBaseCatalog.normalize(url);
+    }
+    
+    private static class Registration {
+        final Transformer transformer;
+        volatile long lastUse;
+        
+        Registration(Transformer transformer, long lastUse) {
+            this.transformer = transformer;
+            this.lastUse = lastUse;
         }
-        final Transformer newTransformer = new GeoEnrichingTransformer(spatialDataEnhancer, dataUri);
-        data2Transformer.put(dataUri, newTransformer);
-        return newTransformer;
     }
     
 }
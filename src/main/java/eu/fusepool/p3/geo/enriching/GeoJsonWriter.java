@@ -0,0 +1,401 @@
+package eu.fusepool.p3.geo.enriching;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.clerezza.rdf.core.Literal;
+import org.apache.clerezza.rdf.core.NonLiteral;
+import org.apache.clerezza.rdf.core.Resource;
+import org.apache.clerezza.rdf.core.Triple;
+import org.apache.clerezza.rdf.core.UriRef;
+import org.apache.clerezza.rdf.ontologies.RDF;
+import org.apache.clerezza.rdf.ontologies.RDFS;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryCollection;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.MultiLineString;
+import com.vividsolutions.jts.geom.MultiPoint;
+import com.vividsolutions.jts.geom.MultiPolygon;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+
+/**
+ * Writes the points of interest found for the positions of a request as a GeoJSON FeatureCollection, straight
+ * from the triples of the searches, without a graph of them being built and serialized. The beginning of the
+ * collection is written at once and the features of each position as soon as its search is done.
+ * Each point of interest found for a position is a Feature whose geometry is a Point, or the geometry
+ * of its Well-Known Text, and whose properties are its label, its types, the position it is contained in
+ * and, depending on the search, its events or its distance and rank:
+ * <pre>
+ * { "type": "Feature", "id": "urn:location:1", "geometry": { "type": "Point", "coordinates": [ 10.88906, 45.92037 ] },
+ *   "properties": { "label": "Palazzo dei Panni", "type": [ "http://schema.org/Place" ], "containedIn": "urn:place:1" } }
+ * </pre>
+ */
+public class GeoJsonWriter {
+
+    private static final UriRef geo_long = new UriRef("http://www.w3.org/2003/01/geo/wgs84_pos#long");
+    private static final UriRef geo_lat = new UriRef("http://www.w3.org/2003/01/geo/wgs84_pos#lat");
+    private static final UriRef geo_geometry = new UriRef("http://www.w3.org/2003/01/geo/wgs84_pos#geometry");
+    private static final UriRef geosparql_asWKT = new UriRef("http://www.opengis.net/ont/geosparql#asWKT");
+    private static final UriRef schema_containedIn = new UriRef("http://schema.org/containedIn");
+    private static final UriRef schema_event = new UriRef("http://schema.org/event");
+    private static final UriRef schema_startDate = new UriRef("http://schema.org/startDate");
+    private static final UriRef schema_endDate = new UriRef("http://schema.org/endDate");
+    private static final UriRef fp3geo_distance = new UriRef("urn:fusepoolp3:geo:distance");
+    private static final UriRef fp3geo_meters = new UriRef("urn:fusepoolp3:geo:meters");
+    private static final UriRef fp3geo_rank = new UriRef("urn:fusepoolp3:geo:rank");
+
+    private final List<Future<List<Triple>>> searches;
+    private final RegionCache regionCache;
+    private final Metrics metrics;
+
+    /**
+     * @param searches the searches started for the positions, in the order their features are written
+     * @param regionCache parses the Well-Known Text of points of interest located by a geometry
+     * @param metrics records the time spent writing, without the time waiting for the searches
+     */
+    GeoJsonWriter(List<Future<List<Triple>>> searches, RegionCache regionCache, Metrics metrics) {
+        this.searches = searches;
+        this.regionCache = regionCache;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Writes the collection, waiting for each search in turn. The searches not written yet are cancelled
+     * if one fails or the writing does.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        boolean complete = false;
+        long writing = 0;
+        try {
+            long start = System.nanoTime();
+            writer.write("{\"type\":\"FeatureCollection\",\"features\":[");
+            writer.flush();
+            writing += System.nanoTime() - start;
+            boolean first = true;
+            for (Future<List<Triple>> search : searches) {
+                List<Triple> triples = get(search);
+                start = System.nanoTime();
+                for (Feature feature : features(triples)) {
+                    writer.write(first ? "\n" : ",\n");
+                    feature.write(writer);
+                    first = false;
+                }
+                writer.flush();
+                writing += System.nanoTime() - start;
+            }
+            start = System.nanoTime();
+            writer.write("\n]}\n");
+            writer.flush();
+            writing += System.nanoTime() - start;
+            metrics.record(Metrics.Phase.SERIALIZATION, writing);
+            complete = true;
+        }
+        finally {
+            if (! complete) {
+                cancel();
+            }
+        }
+    }
+
+    /**
+     * Cancels the searches, when the collection is not written.
+     */
+    void cancel() {
+        for (Future<List<Triple>> search : searches) {
+            search.cancel(true);
+        }
+    }
+
+    private static List<Triple> get(Future<List<Triple>> search) throws IOException {
+        try {
+            return search.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing GeoJSON", e);
+        } catch (ExecutionException e) {
+            throw new IOException("The search for points of interest failed", e.getCause());
+        }
+    }
+
+    /**
+     * Groups the triples found for a position by subject. The points of interest are the subjects
+     * linked to the position, in the order of the links.
+     */
+    private Iterable<Feature> features(List<Triple> triples) {
+        Map<NonLiteral, Map<UriRef, Set<Resource>>> subjects = new LinkedHashMap<NonLiteral, Map<UriRef, Set<Resource>>>();
+        Map<NonLiteral, Feature> features = new LinkedHashMap<NonLiteral, Feature>();
+        for (Triple triple : triples) {
+            Map<UriRef, Set<Resource>> properties = subjects.get(triple.getSubject());
+            if (properties == null) {
+                properties = new LinkedHashMap<UriRef, Set<Resource>>();
+                subjects.put(triple.getSubject(), properties);
+            }
+            Set<Resource> values = properties.get(triple.getPredicate());
+            if (values == null) {
+                values = new LinkedHashSet<Resource>();
+                properties.put(triple.getPredicate(), values);
+            }
+            values.add(triple.getObject());
+            if (triple.getPredicate().equals(schema_containedIn) && ! features.containsKey(triple.getSubject())) {
+                features.put(triple.getSubject(), new Feature(triple.getSubject(), subjects));
+            }
+        }
+        return features.values();
+    }
+
+    /**
+     * A point of interest with the triples found about it and the nodes it links to.
+     */
+    private class Feature {
+        final NonLiteral poi;
+        final Map<NonLiteral, Map<UriRef, Set<Resource>>> subjects;
+
+        Feature(NonLiteral poi, Map<NonLiteral, Map<UriRef, Set<Resource>>> subjects) {
+            this.poi = poi;
+            this.subjects = subjects;
+        }
+
+        void write(Writer writer) throws IOException {
+            writer.write("{\"type\":\"Feature\"");
+            if (poi instanceof UriRef) {
+                writer.write(",\"id\":");
+                writeString(writer, ((UriRef) poi).getUnicodeString());
+            }
+            writer.write(",\"geometry\":");
+            writeGeometry(writer);
+            writer.write(",\"properties\":{");
+            writer.write("\"label\":");
+            writeString(writer, lexicalForm(first(poi, RDFS.label)));
+            writer.write(",\"type\":");
+            writeUris(writer, values(poi, RDF.type));
+            writer.write(",\"containedIn\":");
+            writeString(writer, uri(first(poi, schema_containedIn)));
+            Set<Resource> events = values(poi, schema_event);
+            if (! events.isEmpty()) {
+                writer.write(",\"events\":[");
+                boolean first = true;
+                for (Resource event : events) {
+                    if (! (event instanceof NonLiteral)) {
+                        continue;
+                    }
+                    NonLiteral eventRef = (NonLiteral) event;
+                    writer.write(first ? "{" : ",{");
+                    writer.write("\"id\":");
+                    writeString(writer, uri(eventRef));
+                    writer.write(",\"label\":");
+                    writeString(writer, lexicalForm(first(eventRef, RDFS.label)));
+                    writer.write(",\"startDate\":");
+                    writeString(writer, lexicalForm(first(eventRef, schema_startDate)));
+                    writer.write(",\"endDate\":");
+                    writeString(writer, lexicalForm(first(eventRef, schema_endDate)));
+                    writer.write("}");
+                    first = false;
+                }
+                writer.write("]");
+            }
+            Resource distance = first(poi, fp3geo_distance);
+            if (distance instanceof NonLiteral) {
+                writer.write(",\"distance\":");
+                writeNumber(writer, lexicalForm(first((NonLiteral) distance, fp3geo_meters)));
+                writer.write(",\"rank\":");
+                writeNumber(writer, lexicalForm(first((NonLiteral) distance, fp3geo_rank)));
+            }
+            writer.write("}}");
+        }
+
+        /**
+         * Writes the point of the latitude and longitude, or the geometry of the Well-Known Text of
+         * geosparql:asWKT or geo:geometry, null if the point of interest has none or they cannot be read.
+         */
+        private void writeGeometry(Writer writer) throws IOException {
+            String lat = lexicalForm(first(poi, geo_lat));
+            String lon = lexicalForm(first(poi, geo_long));
+            if (isNumber(lat) && isNumber(lon)) {
+                writer.write("{\"type\":\"Point\",\"coordinates\":[");
+                writer.write(Double.toString(Double.parseDouble(lon)));
+                writer.write(",");
+                writer.write(Double.toString(Double.parseDouble(lat)));
+                writer.write("]}");
+                return;
+            }
+            for (UriRef predicate : new UriRef[] { geosparql_asWKT, geo_geometry }) {
+                String wkt = lexicalForm(first(poi, predicate));
+                if (wkt != null) {
+                    try {
+                        GeoJsonWriter.writeGeometry(writer, regionCache.read(wkt));
+                        return;
+                    } catch (IllegalArgumentException e) {
+                        // not a geometry, written as none
+                    }
+                }
+            }
+            writer.write("null");
+        }
+
+        private Resource first(NonLiteral subject, UriRef predicate) {
+            Set<Resource> values = values(subject, predicate);
+            return values.isEmpty() ? null : values.iterator().next();
+        }
+
+        private Set<Resource> values(NonLiteral subject, UriRef predicate) {
+            Map<UriRef, Set<Resource>> properties = subjects.get(subject);
+            Set<Resource> values = properties != null ? properties.get(predicate) : null;
+            return values != null ? values : Collections.<Resource>emptySet();
+        }
+    }
+
+    private static void writeGeometry(Writer writer, Geometry geometry) throws IOException {
+        if (geometry instanceof GeometryCollection && ! (geometry instanceof MultiPoint
+                || geometry instanceof MultiLineString || geometry instanceof MultiPolygon)) {
+            writer.write("{\"type\":\"GeometryCollection\",\"geometries\":[");
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                if (i > 0) {
+                    writer.write(",");
+                }
+                writeGeometry(writer, geometry.getGeometryN(i));
+            }
+            writer.write("]}");
+            return;
+        }
+        writer.write("{\"type\":\"");
+        writer.write(geometry.getGeometryType());
+        writer.write("\",\"coordinates\":");
+        writeCoordinates(writer, geometry);
+        writer.write("}");
+    }
+
+    private static void writeCoordinates(Writer writer, Geometry geometry) throws IOException {
+        if (geometry instanceof Point) {
+            writeCoordinate(writer, geometry.getCoordinate());
+        }
+        else if (geometry instanceof LineString) {
+            writeCoordinates(writer, geometry.getCoordinates());
+        }
+        else if (geometry instanceof Polygon) {
+            Polygon polygon = (Polygon) geometry;
+            writer.write("[");
+            writeCoordinates(writer, polygon.getExteriorRing().getCoordinates());
+            for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+                writer.write(",");
+                writeCoordinates(writer, polygon.getInteriorRingN(i).getCoordinates());
+            }
+            writer.write("]");
+        }
+        else {
+            writer.write("[");
+            for (int i = 0; i < geometry.getNumGeometries(); i++) {
+                if (i > 0) {
+                    writer.write(",");
+                }
+                writeCoordinates(writer, geometry.getGeometryN(i));
+            }
+            writer.write("]");
+        }
+    }
+
+    private static void writeCoordinates(Writer writer, Coordinate[] coordinates) throws IOException {
+        writer.write("[");
+        for (int i = 0; i < coordinates.length; i++) {
+            if (i > 0) {
+                writer.write(",");
+            }
+            writeCoordinate(writer, coordinates[i]);
+        }
+        writer.write("]");
+    }
+
+    private static void writeCoordinate(Writer writer, Coordinate coordinate) throws IOException {
+        writer.write("[");
+        writer.write(Double.toString(coordinate.x));
+        writer.write(",");
+        writer.write(Double.toString(coordinate.y));
+        writer.write("]");
+    }
+
+    private static void writeUris(Writer writer, Set<Resource> resources) throws IOException {
+        writer.write("[");
+        boolean first = true;
+        for (Resource resource : resources) {
+            if (resource instanceof UriRef) {
+                writer.write(first ? "" : ",");
+                writeString(writer, ((UriRef) resource).getUnicodeString());
+                first = false;
+            }
+        }
+        writer.write("]");
+    }
+
+    private static void writeNumber(Writer writer, String number) throws IOException {
+        writer.write(isNumber(number) ? number : "null");
+    }
+
+    /**
+     * Writes a JSON string, null if there is no value.
+     */
+    private static void writeString(Writer writer, String value) throws IOException {
+        if (value == null) {
+            writer.write("null");
+            return;
+        }
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                writer.write("\\\"");
+                break;
+            case '\\':
+                writer.write("\\\\");
+                break;
+            case '\n':
+                writer.write("\\n");
+                break;
+            case '\r':
+                writer.write("\\r");
+                break;
+            case '\t':
+                writer.write("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    writer.write(String.format("\\u%04x", (int) c));
+                }
+                else {
+                    writer.write(c);
+                }
+            }
+        }
+        writer.write('"');
+    }
+
+    /**
+     * Whether a lexical form is a JSON number, which has neither NaN nor infinity nor the forms only Java accepts.
+     */
+    private static boolean isNumber(String value) {
+        return value != null && value.matches("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?");
+    }
+
+    private static String lexicalForm(Resource resource) {
+        return resource instanceof Literal ? ((Literal) resource).getLexicalForm() : null;
+    }
+
+    private static String uri(Resource resource) {
+        return resource instanceof UriRef ? ((UriRef) resource).getUnicodeString() : null;
+    }
+
+}
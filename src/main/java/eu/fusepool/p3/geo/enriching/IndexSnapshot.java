@@ -0,0 +1,153 @@
+package eu.fusepool.p3.geo.enriching;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds the triple store and the spatial index of knowledge bases offline into a snapshot, a directory
+ * that is not changed once built and can be copied to the servers that open it with
+ * {@link SpatialDataEnhancer#openSnapshot}. The snapshots are kept in a directory of their own, one
+ * subdirectory per version named after the time it was built, so that the names sort by age. A version
+ * is built in a hidden directory and renamed once complete, with a <code>snapshot.properties</code>
+ * file describing it. The hidden directory of a failed build is deleted.
+ */
+public class IndexSnapshot {
+
+    private static final Logger log = LoggerFactory.getLogger(IndexSnapshot.class);
+
+    static final String PROPERTIES_FILE = "snapshot.properties";
+    // the version of the layout of the snapshots, increased when the files are no longer compatible
+    static final String FORMAT = "1";
+
+    private IndexSnapshot() {
+    }
+
+    /**
+     * Loads the knowledge bases into a new version of the snapshot, checks that the triple store and the spatial
+     * index agree, and closes them.
+     * @param snapshotsDir the directory of the versions of the snapshot
+     * @param urls the urls of the knowledge bases, equivalent urls giving one graph
+     * @param bulkLoadThreads the number of threads parsing N-Triples, 0 to load the knowledge bases triple by triple
+     * @return the directory of the version built
+     */
+    public static File build(File snapshotsDir, List<String> urls, int bulkLoadThreads) throws IOException {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("A snapshot needs at least one knowledge base");
+        }
+        // the graphs are listed by the normalized urls the servers look them up by
+        Set<String> dataSetUrls = new LinkedHashSet<String>();
+        for (String url : urls) {
+            dataSetUrls.add(KnowledgeBaseCatalog.normalize(url));
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmssSSS'Z'", Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        Date created = new Date();
+        String version = format.format(created);
+        File versionDir = new File(snapshotsDir, version);
+        File buildDir = new File(snapshotsDir, "." + version + ".building");
+        if (versionDir.exists() || buildDir.exists()) {
+            throw new IllegalArgumentException("The snapshot " + versionDir + " already exists");
+        }
+        log.info("Building snapshot " + versionDir + " of " + dataSetUrls);
+        long triples;
+        boolean built = false;
+        try {
+            SpatialDataEnhancer enhancer = new SpatialDataEnhancer(buildDir, SpatialDataEnhancer.IndexDirectory.FS);
+            try {
+                enhancer.setBulkLoad(bulkLoadThreads);
+                for (String dataSetUrl : dataSetUrls) {
+                    enhancer.ensureKnowledgeBase(dataSetUrl);
+                }
+                List<String> problems = enhancer.checkConsistency(false);
+                if (! problems.isEmpty()) {
+                    throw new IllegalStateException("The snapshot is not consistent: " + problems);
+                }
+                triples = enhancer.getTripleCount();
+            }
+            finally {
+                enhancer.close();
+            }
+            Properties properties = new Properties();
+            properties.setProperty("format", FORMAT);
+            properties.setProperty("version", version);
+            properties.setProperty("created", Long.toString(created.getTime()));
+            properties.setProperty("graphs", Integer.toString(dataSetUrls.size()));
+            properties.setProperty("triples", Long.toString(triples));
+            try (OutputStream out = new FileOutputStream(new File(buildDir, PROPERTIES_FILE))) {
+                properties.store(out, "Snapshot of knowledge bases, the graphs are listed in the catalog");
+            }
+            Files.move(buildDir.toPath(), versionDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            built = true;
+        }
+        finally {
+            // a failed build leaves nothing behind
+            if (! built) {
+                SpatialDataEnhancer.emptyAndDeleteDirectory(buildDir);
+            }
+        }
+        log.info("Built snapshot " + versionDir + " with " + triples + " triples.");
+        return versionDir;
+    }
+
+    /**
+     * The directory of a version, given either the directory of the version or the directory of the versions
+     * of which the latest complete one is taken.
+     */
+    public static File resolve(File dir) {
+        if (new File(dir, PROPERTIES_FILE).isFile()) {
+            return dir;
+        }
+        File latest = null;
+        File[] versions = dir.listFiles();
+        if (versions != null) {
+            for (File version : versions) {
+                if (version.getName().startsWith(".") || ! new File(version, PROPERTIES_FILE).isFile()) {
+                    continue;
+                }
+                if (latest == null || version.getName().compareTo(latest.getName()) > 0) {
+                    latest = version;
+                }
+            }
+        }
+        if (latest == null) {
+            throw new IllegalArgumentException("No snapshot found in " + dir);
+        }
+        return latest;
+    }
+
+    /**
+     * Reads the description of a version, checking that its files are in a layout this version of the code reads.
+     */
+    static Properties readProperties(File versionDir) throws IOException {
+        File file = new File(versionDir, PROPERTIES_FILE);
+        if (! file.isFile()) {
+            throw new IllegalArgumentException(versionDir + " is not a snapshot");
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        if (! FORMAT.equals(properties.getProperty("format"))) {
+            throw new IllegalArgumentException("The snapshot " + versionDir + " has the unsupported format " + properties.getProperty("format"));
+        }
+        return properties;
+    }
+
+}
@@ -0,0 +1,246 @@
+package eu.fusepool.p3.geo.enriching;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the knowledge bases that have been loaded as named graphs in the triple store.
+ * When a file is given the catalog is persisted to it after every change so that it survives restarts.
+ * Graphs are listed and looked up by the normalized form of their URL. The names in a file written
+ * before are normalized when it is read and written so with the next change, their data staying in
+ * the named graphs of the names first listed.
+ */
+class KnowledgeBaseCatalog {
+
+    private static final Logger log = LoggerFactory.getLogger(KnowledgeBaseCatalog.class);
+
+    private final File catalogFile;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * A graph that has been loaded in the triple store. The data of the graph is stored in a named graph 
+     * of its own name, or in a shadow graph once it has been refreshed.
+     */
+    static class Entry {
+        final String graphName;
+        final String storedGraph;
+        final String sourceUrl;
+        final long loadedAt;
+        final long triples;
+        final long bytes;
+        final String etag;
+        final long lastModified;
+
+        Entry(String graphName, String storedGraph, String sourceUrl, long loadedAt, long triples, long bytes, String etag, long lastModified) {
+            this.graphName = graphName;
+            this.storedGraph = storedGraph;
+            this.sourceUrl = sourceUrl;
+            this.loadedAt = loadedAt;
+            this.triples = triples;
+            this.bytes = bytes;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        Entry(String graphName, String sourceUrl, long loadedAt, long triples) {
+            this(graphName, graphName, sourceUrl, loadedAt, triples, 0, null, 0);
+        }
+
+        /**
+         * The same version of the graph, confirmed to be fresh at the given time.
+         */
+        Entry checkedAt(long time) {
+            return new Entry(graphName, storedGraph, sourceUrl, time, triples, bytes, etag, lastModified);
+        }
+    }
+
+    /**
+     * Creates a catalog stored in the given file, reading the entries already in it.
+     * A null file creates a catalog that only lives in memory.
+     */
+    KnowledgeBaseCatalog(File catalogFile) throws IOException {
+        this.catalogFile = catalogFile;
+        if (catalogFile != null && catalogFile.exists()) {
+            read();
+        }
+    }
+
+    synchronized boolean contains(String graphName) {
+        return entries.containsKey(normalize(graphName));
+    }
+
+    synchronized Entry get(String graphName) {
+        return entries.get(normalize(graphName));
+    }
+
+    synchronized List<String> getGraphNames() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    synchronized List<Entry> getEntries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    synchronized long getTotalTriples() {
+        long triples = 0;
+        for (Entry entry : entries.values()) {
+            triples += entry.triples;
+        }
+        return triples;
+    }
+
+    synchronized long getTotalBytes() {
+        long bytes = 0;
+        for (Entry entry : entries.values()) {
+            bytes += entry.bytes;
+        }
+        return bytes;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the named graph holding the data of a graph, the graph name itself if it is not in the catalog.
+     */
+    synchronized String getStoredGraph(String graphName) {
+        Entry entry = entries.get(normalize(graphName));
+        return entry != null ? entry.storedGraph : graphName;
+    }
+
+    synchronized void put(Entry entry) {
+        String graphName = normalize(entry.graphName);
+        if (! graphName.equals(entry.graphName)) {
+            entry = new Entry(graphName, entry.storedGraph, entry.sourceUrl, entry.loadedAt, entry.triples, entry.bytes, 
+                    entry.etag, entry.lastModified);
+        }
+        entries.put(graphName, entry);
+        write();
+    }
+
+    synchronized void remove(String graphName) {
+        if (entries.remove(normalize(graphName)) != null) {
+            write();
+        }
+    }
+
+    /**
+     * The form of a URL by which its graph is listed: the scheme and host in lower case, without the default 
+     * port of http and https, the fragment and the dot segments of the path, with an empty path replaced by "/". 
+     * Text that is not an absolute URI is only trimmed.
+     */
+    static String normalize(String url) {
+        String trimmed = url.trim();
+        try {
+            URI uri = new URI(trimmed).normalize();
+            if (! uri.isAbsolute() || uri.isOpaque() || uri.getHost() == null) {
+                return trimmed;
+            }
+            String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+            int port = uri.getPort();
+            if ((port == 80 && scheme.equals("http")) || (port == 443 && scheme.equals("https"))) {
+                port = -1;
+            }
+            String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+            StringBuilder normalized = new StringBuilder(trimmed.length());
+            normalized.append(scheme).append("://");
+            if (uri.getRawUserInfo() != null) {
+                normalized.append(uri.getRawUserInfo()).append('@');
+            }
+            normalized.append(uri.getHost().toLowerCase(Locale.ROOT));
+            if (port != -1) {
+                normalized.append(':').append(port);
+            }
+            normalized.append(path);
+            if (uri.getRawQuery() != null) {
+                normalized.append('?').append(uri.getRawQuery());
+            }
+            return normalized.toString();
+        } catch (URISyntaxException e) {
+            return trimmed;
+        }
+    }
+
+    private void read() throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(catalogFile)) {
+            properties.load(in);
+        }
+        int size = Integer.parseInt(properties.getProperty("size", "0"));
+        for (int i = 0; i < size; i++) {
+            String listedName = properties.getProperty(i + ".graph");
+            if (listedName == null) {
+                continue;
+            }
+            // the data stays in the named graph of the name listed
+            String graphName = normalize(listedName);
+            if (entries.containsKey(graphName)) {
+                log.warn("Graph " + listedName + " has the same normalized URL as a graph listed before, only the first is kept.");
+                continue;
+            }
+            entries.put(graphName, new Entry(graphName,
+                    properties.getProperty(i + ".stored", listedName),
+                    properties.getProperty(i + ".source", listedName),
+                    Long.parseLong(properties.getProperty(i + ".loaded", "0")),
+                    Long.parseLong(properties.getProperty(i + ".triples", "0")),
+                    Long.parseLong(properties.getProperty(i + ".bytes", "0")),
+                    properties.getProperty(i + ".etag"),
+                    Long.parseLong(properties.getProperty(i + ".lastModified", "0"))));
+        }
+        log.info("Catalog " + catalogFile + " lists " + entries.size() + " graphs.");
+    }
+
+    /**
+     * Writes the catalog to a temporary file and moves it in place so that a crash
+     * never leaves a truncated catalog behind.
+     */
+    private void write() {
+        if (catalogFile == null) {
+            return;
+        }
+        Properties properties = new Properties();
+        int i = 0;
+        for (Entry entry : entries.values()) {
+            properties.setProperty(i + ".graph", entry.graphName);
+            properties.setProperty(i + ".stored", entry.storedGraph);
+            properties.setProperty(i + ".source", entry.sourceUrl);
+            properties.setProperty(i + ".loaded", Long.toString(entry.loadedAt));
+            properties.setProperty(i + ".triples", Long.toString(entry.triples));
+            properties.setProperty(i + ".bytes", Long.toString(entry.bytes));
+            if (entry.etag != null) {
+                properties.setProperty(i + ".etag", entry.etag);
+            }
+            properties.setProperty(i + ".lastModified", Long.toString(entry.lastModified));
+            i++;
+        }
+        properties.setProperty("size", Integer.toString(i));
+        File tmpFile = new File(catalogFile.getPath() + ".tmp");
+        try {
+            try (OutputStream out = new FileOutputStream(tmpFile)) {
+                properties.store(out, "Knowledge bases loaded in the triple store");
+            }
+            Files.move(tmpFile.toPath(), catalogFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write catalog " + catalogFile, e);
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+package eu.fusepool.p3.geo.enriching;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.jena.atlas.web.ContentType;
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.WebContent;
+
+/**
+ * The response to a request for the data of a knowledge base. Requests can be made conditional
+ * on the version loaded before, in which case the data may turn out not to have been modified.
+ */
+class KnowledgeBaseDownload implements Closeable {
+
+    private final String url;
+    private final URLConnection connection;
+    private final boolean notModified;
+    private CountingInputStream data = null;
+
+    private KnowledgeBaseDownload(String url, URLConnection connection, boolean notModified) {
+        this.url = url;
+        this.connection = connection;
+        this.notModified = notModified;
+    }
+
+    /**
+     * Requests the data of a knowledge base.
+     * @param url the source of the data
+     * @param loaded the version already loaded, or null to get the data in any case
+     */
+    static KnowledgeBaseDownload open(String url, KnowledgeBaseCatalog.Entry loaded) throws IOException {
+        URLConnection connection = new URL(url).openConnection();
+        connection.setRequestProperty("Accept", WebContent.defaultGraphAcceptHeader);
+        if (connection instanceof HttpURLConnection) {
+            HttpURLConnection httpConnection = (HttpURLConnection) connection;
+            if (loaded != null && loaded.etag != null) {
+                httpConnection.setRequestProperty("If-None-Match", loaded.etag);
+            }
+            if (loaded != null && loaded.lastModified > 0) {
+                httpConnection.setIfModifiedSince(loaded.lastModified);
+            }
+            int status = httpConnection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                httpConnection.disconnect();
+                return new KnowledgeBaseDownload(url, connection, true);
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                httpConnection.disconnect();
+                throw new IOException("Fetching " + url + " failed with status " + status);
+            }
+            return new KnowledgeBaseDownload(url, connection, false);
+        }
+        // other protocols do not support conditional requests, compare the modification dates
+        boolean notModified = loaded != null && loaded.lastModified > 0
+                && connection.getLastModified() > 0 && connection.getLastModified() <= loaded.lastModified;
+        return new KnowledgeBaseDownload(url, connection, notModified);
+    }
+
+    boolean isNotModified() {
+        return notModified;
+    }
+
+    InputStream getData() throws IOException {
+        if (data == null) {
+            data = new CountingInputStream(connection.getInputStream());
+        }
+        return data;
+    }
+
+    /**
+     * The number of bytes of data read so far.
+     */
+    long getBytesRead() {
+        return data != null ? data.getByteCount() : 0;
+    }
+
+    /**
+     * The syntax of the data, taken from the media type or else from the file extension.
+     */
+    Lang getLang() {
+        String contentType = connection.getContentType();
+        if (contentType != null) {
+            Lang lang = RDFLanguages.contentTypeToLang(ContentType.create(contentType).getContentType());
+            if (lang != null) {
+                return lang;
+            }
+        }
+        return RDFLanguages.filenameToLang(url, Lang.RDFXML);
+    }
+
+    String getEtag() {
+        return connection.getHeaderField("ETag");
+    }
+
+    long getLastModified() {
+        return connection.getLastModified();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (! notModified) {
+            connection.getInputStream().close();
+        }
+    }
+
+}
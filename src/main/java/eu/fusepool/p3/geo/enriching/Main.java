@@ -15,10 +15,19 @@
  */
 package eu.fusepool.p3.geo.enriching;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 
-import eu.fusepool.p3.transformer.sample.Arguments;
-import eu.fusepool.p3.transformer.server.TransformerServer;
+import eu.fusepool.p3.transformer.server.handler.TransformerFactoryHandler;
 
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.HandlerList;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.wymiwyg.commons.util.arguments.ArgumentHandler;
 
 /**
@@ -26,16 +35,83 @@ import org.wymiwyg.commons.util.arguments.ArgumentHandler;
  * @author reto
  */
 public class Main {
+    
+    // the threads of the connector accepting connections and selecting the ones with requests
+    private static final int ACCEPTORS = 1;
+    private static final int SELECTORS = 2;
+    // the threads of the server reading the requests and suspending them, the work is done by the workers
+    private static final int REQUEST_THREADS = 8;
+    
+    
+    static final String BUILD_SNAPSHOT = "build-snapshot";
+    
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals(BUILD_SNAPSHOT)) {
+            SnapshotArguments snapshotArguments = ArgumentHandler.readArguments(SnapshotArguments.class, Arrays.copyOfRange(args, 1, args.length));
+            if (snapshotArguments != null) {
+                buildSnapshot(snapshotArguments);
+            }
+            return;
+        }
         Arguments arguments = ArgumentHandler.readArguments(Arguments.class, args);
         if (arguments != null) {
             start(arguments);
         }
     }
 
+    private static void buildSnapshot(SnapshotArguments arguments) throws Exception {
+        List<String> dataSetUrls = new ArrayList<String>();
+        for (String dataSetUrl : arguments.getDatasets().split(",")) {
+            if (! dataSetUrl.trim().isEmpty()) {
+                dataSetUrls.add(dataSetUrl.trim());
+            }
+        }
+        File snapshot = IndexSnapshot.build(new File(arguments.getSnapshotsDir()), dataSetUrls, arguments.getBulkLoadThreads());
+        System.out.println(snapshot.getAbsolutePath());
+    }
+
     private static void start(Arguments arguments) throws Exception {
-        TransformerServer server = new TransformerServer(arguments.getPort());        
-        server.start(new GeoEnrichingTransformerFactory());       
+        SpatialDataEnhancer spatialDataEnhancer;
+        if (arguments.getSnapshot() != null) {
+            if (arguments.getDataDir() != null) {
+                throw new IllegalArgumentException("A snapshot is opened in place of a data directory, not with one");
+            }
+            spatialDataEnhancer = SpatialDataEnhancer.openSnapshot(IndexSnapshot.resolve(new File(arguments.getSnapshot())));
+        }
+        else {
+            SpatialDataEnhancer.IndexDirectory indexDirectory = 
+                    SpatialDataEnhancer.IndexDirectory.valueOf(arguments.getIndexDirectory().toUpperCase(Locale.ROOT));
+            spatialDataEnhancer = arguments.getDataDir() != null ?
+                    new SpatialDataEnhancer(new File(arguments.getDataDir()), indexDirectory) : new SpatialDataEnhancer(indexDirectory);
+            spatialDataEnhancer.setStorageBudget(arguments.getMaxGraphs(), arguments.getMaxTriples(), arguments.getMaxMegabytes() * 1024L * 1024L);
+            spatialDataEnhancer.setBulkLoad(arguments.getBulkLoadThreads());
+            if (arguments.getRefreshTtl() > 0) {
+                spatialDataEnhancer.startRefresher(arguments.getRefreshTtl() * 1000L);
+            }
+        }
+        spatialDataEnhancer.setInMemoryIndex(arguments.getInMemoryIndex());
+        spatialDataEnhancer.setResultCache(arguments.getCacheSize(), arguments.getCacheDecimals());
+        spatialDataEnhancer.setQueryLog(arguments.getTraceOneIn(), arguments.getSlowQueryMillis());
+        QueuedThreadPool threadPool = new QueuedThreadPool(REQUEST_THREADS + ACCEPTORS + SELECTORS);
+        threadPool.setName("geo-enricher");
+        Server server = new Server(threadPool);
+        ServerConnector connector = new ServerConnector(server, ACCEPTORS, SELECTORS);
+        connector.setPort(arguments.getPort());
+        server.addConnector(connector);
+        // the metrics are served on the port of the transformer, the handler of the factory answers the other requests
+        AsyncRequestHandler transformerHandler = new AsyncRequestHandler(spatialDataEnhancer, arguments.getWorkers(), 
+                arguments.getQueueSize(), arguments.getRequestDeadline(), arguments.getLoadThreads());
+        transformerHandler.setLoadFirst(! arguments.getLongRunningLoads());
+        transformerHandler.setHandler(
+                new TransformerFactoryHandler(new GeoEnrichingTransformerFactory(spatialDataEnhancer, arguments.getLongRunningLoads(), 
+                        arguments.getMaxTransformers())));
+        HandlerList handlers = new HandlerList();
+        handlers.setHandlers(new Handler[] {
+            new MetricsHandler(spatialDataEnhancer.getMetrics()),
+            transformerHandler
+        });
+        server.setHandler(handlers);
+        server.start();
         server.join();
     }
     
@@ -0,0 +1,201 @@
+package eu.fusepool.p3.geo.enriching;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The latencies of the phases of the requests and counters of the work done, written in the text format
+ * of Prometheus. Each phase has a histogram with buckets from 10 microseconds to about 5 minutes, each
+ * twice as wide as the previous one. Recording is lock free, so that the threads of the requests do not
+ * wait on each other.
+ */
+public class Metrics {
+
+    /**
+     * The phases of a request.
+     */
+    public enum Phase {
+        /** Parsing the data of the request */
+        PARSE,
+        /** Looking up a search result in the cache */
+        CACHE_CHECK,
+        /** Downloading and storing a knowledge base, with its spatial index */
+        KNOWLEDGE_BASE_LOAD,
+        /** Searching with the spatial index and SPARQL or with the in-memory indexes, materialization included */
+        SPATIAL_QUERY,
+        /** Turning the rows found into the triples of the result, or copying a result of the cache */
+        MATERIALIZATION,
+        /** Writing the response */
+        SERIALIZATION;
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static final long FIRST_BUCKET_NANOS = 10000;
+    private static final int BUCKETS = 25;
+
+    private final Map<Phase, Histogram> histograms = new EnumMap<Phase, Histogram>(Phase.class);
+    private final AtomicLong poisReturned = new AtomicLong();
+    private final AtomicLong graphsLoaded = new AtomicLong();
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+    private final AtomicLong requestsRejected = new AtomicLong();
+    private final AtomicLong graphsEvicted = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong cacheEvictions = new AtomicLong();
+
+    /**
+     * The number of durations up to each bucket bound, the last bucket holding the longer ones.
+     */
+    private static class Histogram {
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS + 1);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong sumNanos = new AtomicLong();
+
+        void record(long nanos) {
+            int bucket = 0;
+            long bound = FIRST_BUCKET_NANOS;
+            while (bucket < BUCKETS && nanos > bound) {
+                bucket++;
+                bound <<= 1;
+            }
+            buckets.incrementAndGet(bucket);
+            sumNanos.addAndGet(nanos);
+            count.incrementAndGet();
+        }
+    }
+
+    public Metrics() {
+        for (Phase phase : Phase.values()) {
+            histograms.put(phase, new Histogram());
+        }
+    }
+
+    /**
+     * Records the duration of a phase.
+     */
+    public void record(Phase phase, long nanos) {
+        histograms.get(phase).record(nanos);
+    }
+
+    /**
+     * Records the duration of a phase started at the given time of {@link System#nanoTime()}.
+     */
+    public void recordSince(Phase phase, long startNanos) {
+        record(phase, System.nanoTime() - startNanos);
+    }
+
+    public void addPoisReturned(long pois) {
+        poisReturned.addAndGet(pois);
+    }
+
+    public void addGraphLoaded(long bytes) {
+        graphsLoaded.incrementAndGet();
+        bytesDownloaded.addAndGet(bytes);
+    }
+
+    public void addRequestRejected() {
+        requestsRejected.incrementAndGet();
+    }
+
+    public void addGraphEvicted() {
+        graphsEvicted.incrementAndGet();
+    }
+
+    public void addCacheHit() {
+        cacheHits.incrementAndGet();
+    }
+
+    public void addCacheMiss() {
+        cacheMisses.incrementAndGet();
+    }
+
+    public void addCacheEviction() {
+        cacheEvictions.incrementAndGet();
+    }
+
+    public long getCount(Phase phase) {
+        return histograms.get(phase).count.get();
+    }
+
+    public long getPoisReturned() {
+        return poisReturned.get();
+    }
+
+    public long getGraphsLoaded() {
+        return graphsLoaded.get();
+    }
+
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+
+    public long getRequestsRejected() {
+        return requestsRejected.get();
+    }
+
+    public long getGraphsEvicted() {
+        return graphsEvicted.get();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    public long getCacheEvictions() {
+        return cacheEvictions.get();
+    }
+
+    /**
+     * Writes the histograms and the counters in the text format of Prometheus.
+     */
+    public void write(Writer writer) throws IOException {
+        writer.write("# HELP geo_enricher_phase_seconds The duration of the phases of the requests.\n");
+        writer.write("# TYPE geo_enricher_phase_seconds histogram\n");
+        for (Phase phase : Phase.values()) {
+            Histogram histogram = histograms.get(phase);
+            long cumulative = 0;
+            long bound = FIRST_BUCKET_NANOS;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                cumulative += histogram.buckets.get(bucket);
+                writer.write(String.format(Locale.ROOT, "geo_enricher_phase_seconds_bucket{phase=\"%s\",le=\"%s\"} %d\n",
+                        phase.label(), Double.toString(bound / 1.0e9), cumulative));
+                bound <<= 1;
+            }
+            cumulative += histogram.buckets.get(BUCKETS);
+            writer.write(String.format(Locale.ROOT, "geo_enricher_phase_seconds_bucket{phase=\"%s\",le=\"+Inf\"} %d\n",
+                    phase.label(), cumulative));
+            writer.write(String.format(Locale.ROOT, "geo_enricher_phase_seconds_sum{phase=\"%s\"} %s\n",
+                    phase.label(), Double.toString(histogram.sumNanos.get() / 1.0e9)));
+            writer.write(String.format(Locale.ROOT, "geo_enricher_phase_seconds_count{phase=\"%s\"} %d\n",
+                    phase.label(), cumulative));
+        }
+        writeCounter(writer, "geo_enricher_pois_returned_total", "The points of interest found for the positions searched.", poisReturned.get());
+        writeCounter(writer, "geo_enricher_graphs_loaded_total", "The knowledge bases loaded or refreshed.", graphsLoaded.get());
+        writeCounter(writer, "geo_enricher_downloaded_bytes_total", "The bytes downloaded for the knowledge bases.", bytesDownloaded.get());
+        writeCounter(writer, "geo_enricher_requests_rejected_total", "The requests answered with 503 as the server was at its capacity.", requestsRejected.get());
+        writeCounter(writer, "geo_enricher_graphs_evicted_total", "The knowledge bases evicted.", graphsEvicted.get());
+        writeCounter(writer, "geo_enricher_cache_hits_total", "The searches answered from the result cache.", cacheHits.get());
+        writeCounter(writer, "geo_enricher_cache_misses_total", "The searches not found in the result cache.", cacheMisses.get());
+        writeCounter(writer, "geo_enricher_cache_evictions_total", "The results evicted from the result cache.", cacheEvictions.get());
+        writer.flush();
+    }
+
+    private static void writeCounter(Writer writer, String name, String help, long value) throws IOException {
+        writer.write("# HELP " + name + " " + help + "\n");
+        writer.write("# TYPE " + name + " counter\n");
+        writer.write(name + " " + value + "\n");
+    }
+
+}
@@ -0,0 +1,39 @@
+package eu.fusepool.p3.geo.enriching;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+/**
+ * Answers GET requests to <code>/metrics</code> with the metrics of an enhancer in the text format of
+ * Prometheus. Other requests are left to the next handler.
+ */
+public class MetricsHandler extends AbstractHandler {
+
+    public static final String PATH = "/metrics";
+
+    private final Metrics metrics;
+
+    public MetricsHandler(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+            throws IOException, ServletException {
+        if (! PATH.equals(target) || ! "GET".equals(request.getMethod())) {
+            return;
+        }
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        metrics.write(new OutputStreamWriter(response.getOutputStream(), "UTF-8"));
+        baseRequest.setHandled(true);
+    }
+
+}
@@ -0,0 +1,116 @@
+package eu.fusepool.p3.geo.enriching;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.clerezza.rdf.core.BNode;
+import org.apache.clerezza.rdf.core.Triple;
+import org.apache.clerezza.rdf.core.UriRef;
+import org.apache.clerezza.rdf.core.impl.TripleImpl;
+import org.apache.clerezza.rdf.core.impl.TypedLiteralImpl;
+import org.apache.clerezza.rdf.ontologies.XSD;
+
+import com.spatial4j.core.distance.DistanceUtils;
+
+/**
+ * The points of interest found around a position for a search of the nearest ones, each with its
+ * shortest distance from the position. The nearest are added to a result graph ordered by distance,
+ * each linked to the position with schema:containedIn and to a node giving its distance in meters
+ * and its rank:
+ * <pre>
+ * poi fp3geo:distance [ fp3geo:position position ; fp3geo:meters "12.5"^^xsd:double ; fp3geo:rank "1"^^xsd:int ]
+ * </pre>
+ * where fp3geo: stands for urn:fusepoolp3:geo:.
+ */
+class NearestPois {
+
+    /** The number of nearest points of interest to search for, on the node linked to a position by schema:geo */
+    static final String NEAREST = "urn:fusepoolp3:geo:nearest";
+    static final UriRef fp3geo_distance = new UriRef("urn:fusepoolp3:geo:distance");
+    static final UriRef fp3geo_position = new UriRef("urn:fusepoolp3:geo:position");
+    static final UriRef fp3geo_meters = new UriRef("urn:fusepoolp3:geo:meters");
+    static final UriRef fp3geo_rank = new UriRef("urn:fusepoolp3:geo:rank");
+    /** A radius covering the whole earth, for a search of the nearest points of interest without a circle */
+    static final double MAX_RADIUS = Math.PI * DistanceUtils.EARTH_MEAN_RADIUS_KM * 1000;
+    private static final UriRef schema_containedIn = new UriRef("http://schema.org/containedIn");
+
+    private static class Candidate {
+        final UriRef poiRef;
+        double meters;
+        final Set<Triple> triples = new LinkedHashSet<Triple>();
+
+        Candidate(UriRef poiRef, double meters) {
+            this.poiRef = poiRef;
+            this.meters = meters;
+        }
+    }
+
+    private final Map<UriRef, Candidate> candidates = new HashMap<UriRef, Candidate>();
+
+    /**
+     * Adds a point of interest found at a distance, keeping the shortest distance of the ones it is found at.
+     * @param triples the triples describing the point of interest
+     */
+    void add(UriRef poiRef, double meters, Collection<Triple> triples) {
+        Candidate candidate = candidates.get(poiRef);
+        if (candidate == null) {
+            candidate = new Candidate(poiRef, meters);
+            candidates.put(poiRef, candidate);
+        }
+        else if (meters < candidate.meters) {
+            candidate.meters = meters;
+        }
+        candidate.triples.addAll(triples);
+    }
+
+    /**
+     * The number of points of interest found.
+     */
+    int size() {
+        return candidates.size();
+    }
+
+    /**
+     * Adds the nearest points of interest found to a graph, ordered by distance.
+     * @param k the maximum number of points of interest to add
+     * @param position the position searched
+     * @return the number of points of interest added
+     */
+    int addTo(int k, UriRef position, Collection<Triple> result) {
+        List<Candidate> nearest = new ArrayList<Candidate>(candidates.values());
+        Collections.sort(nearest, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate a, Candidate b) {
+                int byDistance = Double.compare(a.meters, b.meters);
+                return byDistance != 0 ? byDistance : a.poiRef.getUnicodeString().compareTo(b.poiRef.getUnicodeString());
+            }
+        });
+        int count = Math.min(k, nearest.size());
+        for (int i = 0; i < count; i++) {
+            Candidate candidate = nearest.get(i);
+            result.add(new TripleImpl(candidate.poiRef, schema_containedIn, position));
+            result.addAll(candidate.triples);
+            BNode distance = new BNode();
+            result.add(new TripleImpl(candidate.poiRef, fp3geo_distance, distance));
+            result.add(new TripleImpl(distance, fp3geo_position, position));
+            result.add(new TripleImpl(distance, fp3geo_meters, new TypedLiteralImpl(Double.toString(candidate.meters), XSD.double_)));
+            result.add(new TripleImpl(distance, fp3geo_rank, new TypedLiteralImpl(Integer.toString(i + 1), XSD.int_)));
+        }
+        return count;
+    }
+
+    /**
+     * Converts a distance in degrees of the spatial context into meters.
+     */
+    static double toMeters(double degrees) {
+        return DistanceUtils.degrees2Dist(degrees, DistanceUtils.EARTH_MEAN_RADIUS_KM) * 1000;
+    }
+
+}
@@ -0,0 +1,88 @@
+package eu.fusepool.p3.geo.enriching;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.clerezza.rdf.core.PlainLiteral;
+import org.apache.clerezza.rdf.core.TypedLiteral;
+import org.apache.clerezza.rdf.core.UriRef;
+import org.apache.clerezza.rdf.core.impl.PlainLiteralImpl;
+import org.apache.clerezza.rdf.core.impl.TypedLiteralImpl;
+
+import com.hp.hpl.jena.graph.Node;
+
+/**
+ * Turns the nodes of the rows found by Jena into the resources of the Clerezza result, taking their URI
+ * and lexical form as they are. Only the URIs repeated across rows, such as the types of the points of
+ * interest, are converted once and shared, up to a maximum number of them. The points of interest, labels
+ * and coordinates differ from row to row and are converted each time, the result graph keeping them anyway.
+ */
+public class NodeBridge {
+
+    private final ConcurrentMap<Node, UriRef> sharedUris = new ConcurrentHashMap<Node, UriRef>();
+    private final int maxSharedUris;
+
+    /**
+     * @param maxSharedUris the maximum number of URIs shared, the others are converted each time
+     */
+    public NodeBridge(int maxSharedUris) {
+        this.maxSharedUris = maxSharedUris;
+    }
+
+    /**
+     * The URI of a node found once per row, such as a point of interest, converted each time.
+     * @throws IllegalArgumentException if the node is not a URI
+     */
+    public UriRef uri(Node node) {
+        checkUri(node);
+        return new UriRef(node.getURI());
+    }
+
+    /**
+     * The URI of a node found in many rows, such as the type of a point of interest.
+     * @throws IllegalArgumentException if the node is not a URI
+     */
+    public UriRef sharedUri(Node node) {
+        UriRef uri = sharedUris.get(node);
+        if (uri == null) {
+            checkUri(node);
+            uri = new UriRef(node.getURI());
+            if (sharedUris.size() < maxSharedUris) {
+                sharedUris.putIfAbsent(node, uri);
+            }
+        }
+        return uri;
+    }
+
+    /**
+     * The literal with the lexical form of a node, without its language, converted each time.
+     * @throws IllegalArgumentException if the node is not a literal
+     */
+    public PlainLiteral plainLiteral(Node node) {
+        checkLiteral(node);
+        return new PlainLiteralImpl(node.getLiteralLexicalForm());
+    }
+
+    /**
+     * The literal with the lexical form of a node and the given data type, as the result types
+     * coordinates and dates regardless of their type in the knowledge base. Converted each time.
+     * @throws IllegalArgumentException if the node is not a literal
+     */
+    public TypedLiteral typedLiteral(Node node, UriRef dataType) {
+        checkLiteral(node);
+        return new TypedLiteralImpl(node.getLiteralLexicalForm(), dataType);
+    }
+
+    private static void checkUri(Node node) {
+        if (! node.isURI()) {
+            throw new IllegalArgumentException("Not a URI: " + node);
+        }
+    }
+
+    private static void checkLiteral(Node node) {
+        if (! node.isLiteral()) {
+            throw new IllegalArgumentException("Not a literal: " + node);
+        }
+    }
+
+}
@@ -0,0 +1,519 @@
+package eu.fusepool.p3.geo.enriching;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.clerezza.rdf.core.Triple;
+import org.apache.clerezza.rdf.core.UriRef;
+import org.apache.clerezza.rdf.core.impl.PlainLiteralImpl;
+import org.apache.clerezza.rdf.core.impl.TripleImpl;
+import org.apache.clerezza.rdf.core.impl.TypedLiteralImpl;
+import org.apache.clerezza.rdf.ontologies.RDF;
+import org.apache.clerezza.rdf.ontologies.RDFS;
+import org.apache.clerezza.rdf.ontologies.XSD;
+import org.apache.jena.query.spatial.DistanceUnitsUtils;
+import org.apache.jena.query.spatial.EntityDefinition;
+import org.apache.jena.query.spatial.SpatialQuery;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.ResIterator;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.spatial4j.core.distance.DistanceCalculator;
+import com.spatial4j.core.shape.Point;
+import com.spatial4j.core.shape.Rectangle;
+
+/**
+ * The points of interest of one knowledge base held in memory for the nearby search.
+ * The positions are kept in primitive arrays sorted by the Z-order (Morton) key of their cell in
+ * a grid of the earth, so that the cells of a square block of the grid are one run of the arrays.
+ * A search covers the bounding box of its circle with a few such blocks, finds their runs by binary
+ * search and checks the distance of the positions in them. The types, labels and coordinates of
+ * the points of interest are kept as indexes into a dictionary of the values, each value held once.
+ * The points of interest are the ones the SPARQL query of {@link SpatialDataEnhancer#queryNearby}
+ * finds: subjects with a type, a label, a geo:lat and a geo:long in the knowledge base, located by
+ * the latitude and longitude pairs the spatial index uses. Unlike the spatial index the search is
+ * not capped to a maximum number of results.
+ */
+class PoiIndex {
+
+    private static final UriRef geo_long = new UriRef("http://www.w3.org/2003/01/geo/wgs84_pos#long");
+    private static final UriRef geo_lat = new UriRef("http://www.w3.org/2003/01/geo/wgs84_pos#lat");
+    private static final UriRef schema_containedIn = new UriRef("http://schema.org/containedIn");
+    // the predicates of the attributes of the points of interest, by their code in the attributes
+    private static final UriRef[] PREDICATES = { RDF.type, RDFS.label, geo_lat, geo_long };
+    private static final byte TYPE = 0, LABEL = 1, LAT = 2, LONG = 3;
+    // the grid has 2^GRID_BITS cells along each axis, about half a meter wide at the equator
+    private static final int GRID_BITS = 26;
+    private static final int GRID_CELLS = 1 << GRID_BITS;
+    // a search covers its box with blocks at least an eighth of the width of the box
+    private static final int BLOCKS_PER_SIDE = 8;
+    // the radius in meters of the first circle searched for the nearest points of interest, doubled until enough are found
+    private static final double NEAREST_START_RADIUS = 250.0;
+
+    // one position per entry, sorted by the Z-order key of its cell
+    private final long[] keys;
+    private final double[] latitudes;
+    private final double[] longitudes;
+    private final int[] pois;
+    private final UriRef[] poiRefs;
+    // the attributes of point of interest i are attributeOffsets[i] until attributeOffsets[i + 1], 
+    // each a predicate code and the index of its value in the dictionary
+    private final int[] attributeOffsets;
+    private final byte[] attributePredicates;
+    private final int[] attributeValues;
+    private final org.apache.clerezza.rdf.core.Resource[] dictionary;
+
+    private PoiIndex(long[] keys, double[] latitudes, double[] longitudes, int[] pois, UriRef[] poiRefs, 
+            int[] attributeOffsets, byte[] attributePredicates, int[] attributeValues, org.apache.clerezza.rdf.core.Resource[] dictionary) {
+        this.keys = keys;
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.pois = pois;
+        this.poiRefs = poiRefs;
+        this.attributeOffsets = attributeOffsets;
+        this.attributePredicates = attributePredicates;
+        this.attributeValues = attributeValues;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Collects the attributes of the points of interest while the index is built, 
+     * with the dictionary of their values.
+     */
+    private static class Attributes {
+        final Map<org.apache.clerezza.rdf.core.Resource, Integer> valueIndexes = new HashMap<org.apache.clerezza.rdf.core.Resource, Integer>();
+        final List<org.apache.clerezza.rdf.core.Resource> dictionary = new ArrayList<org.apache.clerezza.rdf.core.Resource>();
+        final List<Integer> offsets = new ArrayList<Integer>();
+        final List<Byte> predicates = new ArrayList<Byte>();
+        final List<Integer> values = new ArrayList<Integer>();
+
+        void add(byte predicate, org.apache.clerezza.rdf.core.Resource value) {
+            Integer index = valueIndexes.get(value);
+            if (index == null) {
+                index = dictionary.size();
+                dictionary.add(value);
+                valueIndexes.put(value, index);
+            }
+            predicates.add(predicate);
+            values.add(index);
+        }
+
+        /**
+         * Drops the attributes added since the given number of them, of a subject that is no point of interest.
+         */
+        void truncate(int size) {
+            predicates.subList(size, predicates.size()).clear();
+            values.subList(size, values.size()).clear();
+        }
+    }
+
+    /**
+     * Builds the index of the points of interest in a model.
+     * The model must not change while the index is built.
+     */
+    static PoiIndex build(Model model) {
+        List<UriRef> poiRefs = new ArrayList<UriRef>();
+        Attributes attributes = new Attributes();
+        List<Double> positionLatitudes = new ArrayList<Double>();
+        List<Double> positionLongitudes = new ArrayList<Double>();
+        final List<Long> positionKeys = new ArrayList<Long>();
+        List<Integer> positionPois = new ArrayList<Integer>();
+        ResIterator subjects = model.listSubjectsWithProperty(com.hp.hpl.jena.vocabulary.RDFS.label);
+        try {
+            while (subjects.hasNext()) {
+                Resource subject = subjects.next();
+                if (! subject.isURIResource()) {
+                    continue;
+                }
+                int attributeCount = attributes.predicates.size();
+                if (! describe(subject, attributes)) {
+                    attributes.truncate(attributeCount);
+                    continue;
+                }
+                int poi = poiRefs.size();
+                int positionCount = positionPois.size();
+                for (Property[] pair : SpatialDataEnhancer.SPATIAL_PREDICATE_PAIRS) {
+                    for (Statement latitude : list(subject, pair[0])) {
+                        for (Statement longitude : list(subject, pair[1])) {
+                            try {
+                                double lat = Double.parseDouble(latitude.getLiteral().getLexicalForm());
+                                double lon = Double.parseDouble(longitude.getLiteral().getLexicalForm());
+                                positionLatitudes.add(lat);
+                                positionLongitudes.add(lon);
+                                positionKeys.add(key(cellX(lon), cellY(lat)));
+                                positionPois.add(poi);
+                            } catch (RuntimeException e) {
+                                // not a number, not indexed by the spatial index either
+                            }
+                        }
+                    }
+                }
+                if (positionPois.size() > positionCount) {
+                    poiRefs.add(new UriRef(subject.getURI()));
+                    attributes.offsets.add(attributeCount);
+                }
+                else {
+                    attributes.truncate(attributeCount);
+                }
+            }
+        }
+        finally {
+            subjects.close();
+        }
+        attributes.offsets.add(attributes.predicates.size());
+
+        Integer[] order = new Integer[positionPois.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(positionKeys.get(a), positionKeys.get(b));
+            }
+        });
+        long[] keys = new long[order.length];
+        double[] latitudes = new double[order.length];
+        double[] longitudes = new double[order.length];
+        int[] pois = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            keys[i] = positionKeys.get(order[i]);
+            latitudes[i] = positionLatitudes.get(order[i]);
+            longitudes[i] = positionLongitudes.get(order[i]);
+            pois[i] = positionPois.get(order[i]);
+        }
+        int[] offsets = new int[attributes.offsets.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = attributes.offsets.get(i);
+        }
+        byte[] predicates = new byte[attributes.predicates.size()];
+        int[] values = new int[predicates.length];
+        for (int i = 0; i < predicates.length; i++) {
+            predicates[i] = attributes.predicates.get(i);
+            values[i] = attributes.values.get(i);
+        }
+        return new PoiIndex(keys, latitudes, longitudes, pois, poiRefs.toArray(new UriRef[poiRefs.size()]), offsets, predicates, values,
+                attributes.dictionary.toArray(new org.apache.clerezza.rdf.core.Resource[attributes.dictionary.size()]));
+    }
+
+    /**
+     * Adds the values the SPARQL query returns for a subject to the attributes.
+     * @return false if the subject is no point of interest
+     */
+    private static boolean describe(Resource subject, Attributes attributes) {
+        int types = 0, labels = 0, lats = 0, longs = 0;
+        for (Statement type : list(subject, com.hp.hpl.jena.vocabulary.RDF.type)) {
+            if (type.getObject().isURIResource()) {
+                attributes.add(TYPE, new UriRef(type.getResource().getURI()));
+                types++;
+            }
+        }
+        for (Statement label : list(subject, com.hp.hpl.jena.vocabulary.RDFS.label)) {
+            if (label.getObject().isLiteral()) {
+                attributes.add(LABEL, new PlainLiteralImpl(label.getString()));
+                labels++;
+            }
+        }
+        for (Statement latitude : list(subject, EntityDefinition.geo_latitude)) {
+            if (latitude.getObject().isLiteral()) {
+                attributes.add(LAT, new TypedLiteralImpl(latitude.getString(), XSD.float_));
+                lats++;
+            }
+        }
+        for (Statement longitude : list(subject, EntityDefinition.geo_longitude)) {
+            if (longitude.getObject().isLiteral()) {
+                attributes.add(LONG, new TypedLiteralImpl(longitude.getString(), XSD.float_));
+                longs++;
+            }
+        }
+        return types > 0 && labels > 0 && lats > 0 && longs > 0;
+    }
+
+    static List<Statement> list(Resource subject, Property property) {
+        StmtIterator statements = subject.listProperties(property);
+        try {
+            return statements.toList();
+        }
+        finally {
+            statements.close();
+        }
+    }
+
+    /**
+     * The number of points of interest in the index.
+     */
+    int size() {
+        return poiRefs.length;
+    }
+
+    /**
+     * Adds the triples describing a point of interest to a graph.
+     */
+    private void addTriples(int poi, Collection<Triple> result) {
+        UriRef poiRef = poiRefs[poi];
+        for (int a = attributeOffsets[poi]; a < attributeOffsets[poi + 1]; a++) {
+            result.add(new TripleImpl(poiRef, PREDICATES[attributePredicates[a]], dictionary[attributeValues[a]]));
+        }
+    }
+
+    /**
+     * Adds the points of interest within a circle to a graph, each linked to the position searched.
+     * @param lat latitude of the center
+     * @param lon longitude of the center
+     * @param radius radius in meters
+     * @param position the position the points of interest are linked to with schema:containedIn
+     * @param result the graph or the collection the triples are added to
+     * @return the number of points of interest found within the circle
+     */
+    int addNearby(double lat, double lon, double radius, UriRef position, Collection<Triple> result) {
+        double degrees = DistanceUnitsUtils.dist2Degrees(radius, "m");
+        Point center = SpatialQuery.ctx.makePoint(lon, lat);
+        Rectangle box = SpatialQuery.ctx.makeCircle(center, degrees).getBoundingBox();
+        DistanceCalculator distance = SpatialQuery.ctx.getDistCalc();
+        Runs runs = runs(box);
+        // a point of interest may have several positions within the circle
+        BitSet found = new BitSet(poiRefs.length);
+        for (int r = 0; r < runs.size; r++) {
+            for (int i = runs.starts[r]; i < runs.ends[r]; i++) {
+                if (inBox(box, latitudes[i], longitudes[i]) && distance.distance(center, longitudes[i], latitudes[i]) <= degrees) {
+                    int poi = pois[i];
+                    result.add(new TripleImpl(poiRefs[poi], schema_containedIn, position));
+                    addTriples(poi, result);
+                    found.set(poi);
+                }
+            }
+        }
+        return found.cardinality();
+    }
+
+    /**
+     * Adds the points of interest nearest to a position to a graph, ordered by distance. Circles of growing 
+     * radius are searched until one holds k points of interest or the maximum radius is reached: the k 
+     * nearest in a circle are the k nearest overall.
+     * @param lat latitude of the center
+     * @param lon longitude of the center
+     * @param k the number of points of interest to search for
+     * @param maxRadius the maximum distance in meters of the points of interest
+     * @param position the position the points of interest are linked to
+     * @param result the graph or the collection the triples are added to
+     * @return the number of points of interest found
+     */
+    int addNearest(double lat, double lon, int k, double maxRadius, UriRef position, Collection<Triple> result) {
+        Point center = SpatialQuery.ctx.makePoint(lon, lat);
+        DistanceCalculator distance = SpatialQuery.ctx.getDistCalc();
+        // the k nearest points of interest found so far as distance and point of interest, the farthest first
+        PriorityQueue<double[]> nearest = new PriorityQueue<double[]>(k, new Comparator<double[]>() {
+            @Override
+            public int compare(double[] a, double[] b) {
+                return compareNearest(b[0], (int) b[1], a[0], (int) a[1]);
+            }
+        });
+        BitSet queued = new BitSet(poiRefs.length);
+        double radius = Math.min(NEAREST_START_RADIUS, maxRadius);
+        while (true) {
+            double degrees = DistanceUnitsUtils.dist2Degrees(radius, "m");
+            Runs runs = runs(SpatialQuery.ctx.makeCircle(center, degrees).getBoundingBox());
+            nearest.clear();
+            queued.clear();
+            for (int r = 0; r < runs.size; r++) {
+                for (int i = runs.starts[r]; i < runs.ends[r]; i++) {
+                    double poiDegrees = distance.distance(center, longitudes[i], latitudes[i]);
+                    if (poiDegrees <= degrees) {
+                        offer(nearest, queued, k, poiDegrees, pois[i]);
+                    }
+                }
+            }
+            if (nearest.size() == k || radius >= maxRadius) {
+                break;
+            }
+            radius = Math.min(radius * 2, maxRadius);
+        }
+        NearestPois found = new NearestPois();
+        for (double[] candidate : nearest) {
+            int poi = (int) candidate[1];
+            List<Triple> triples = new ArrayList<Triple>(attributeOffsets[poi + 1] - attributeOffsets[poi]);
+            addTriples(poi, triples);
+            found.add(poiRefs[poi], NearestPois.toMeters(candidate[0]), triples);
+        }
+        return found.addTo(k, position, result);
+    }
+
+    /**
+     * Keeps a point of interest among the k nearest if it is nearer than the farthest of them,
+     * a point of interest with several positions only once at its shortest distance. The queue is
+     * searched only for a point of interest already in it, the others are offered in logarithmic time.
+     */
+    private void offer(PriorityQueue<double[]> nearest, BitSet queued, int k, double degrees, int poi) {
+        if (queued.get(poi)) {
+            for (double[] candidate : nearest) {
+                if (candidate[1] == poi) {
+                    if (degrees < candidate[0]) {
+                        nearest.remove(candidate);
+                        candidate[0] = degrees;
+                        nearest.add(candidate);
+                    }
+                    return;
+                }
+            }
+        }
+        if (nearest.size() == k) {
+            double[] farthest = nearest.peek();
+            if (compareNearest(degrees, poi, farthest[0], (int) farthest[1]) >= 0) {
+                return;
+            }
+            nearest.poll();
+            queued.clear((int) farthest[1]);
+        }
+        nearest.add(new double[] { degrees, poi });
+        queued.set(poi);
+    }
+
+    /**
+     * Orders points of interest by distance, the ones at the same distance as {@link NearestPois} does.
+     */
+    private int compareNearest(double degreesA, int poiA, double degreesB, int poiB) {
+        int byDistance = Double.compare(degreesA, degreesB);
+        return byDistance != 0 ? byDistance : poiRefs[poiA].getUnicodeString().compareTo(poiRefs[poiB].getUnicodeString());
+    }
+
+    private static boolean inBox(Rectangle box, double latitude, double longitude) {
+        if (latitude < box.getMinY() || latitude > box.getMaxY()) {
+            return false;
+        }
+        return box.getCrossesDateLine() ?
+                longitude >= box.getMinX() || longitude <= box.getMaxX() :
+                longitude >= box.getMinX() && longitude <= box.getMaxX();
+    }
+
+    /**
+     * The runs of entries, as start and end index, whose cells cover a box. A box crossing the date line 
+     * is covered as two boxes, one on each side of it.
+     */
+    private Runs runs(Rectangle box) {
+        Runs runs = new Runs();
+        int minY = cellY(box.getMinY());
+        int maxY = cellY(box.getMaxY());
+        if (box.getCrossesDateLine()) {
+            cover(cellX(box.getMinX()), minY, GRID_CELLS - 1, maxY, runs);
+            cover(0, minY, cellX(box.getMaxX()), maxY, runs);
+        }
+        else {
+            cover(cellX(box.getMinX()), minY, cellX(box.getMaxX()), maxY, runs);
+        }
+        return runs;
+    }
+
+    /**
+     * Covers the cells from minX, minY to maxX, maxY with square blocks of the grid, descending from the whole
+     * grid into the quarters of the blocks partly covered until the blocks are an eighth of the box wide.
+     */
+    private void cover(int minX, int minY, int maxX, int maxY, Runs runs) {
+        int width = Math.max(maxX - minX, maxY - minY) + 1;
+        int minBlock = Math.max(1, Integer.highestOneBit(width) / BLOCKS_PER_SIDE);
+        cover(minX, minY, maxX, maxY, 0, 0, GRID_CELLS, minBlock, runs);
+    }
+
+    private void cover(int minX, int minY, int maxX, int maxY, int blockX, int blockY, int block, int minBlock, Runs runs) {
+        long blockMaxX = (long) blockX + block - 1;
+        long blockMaxY = (long) blockY + block - 1;
+        if (blockX > maxX || blockY > maxY || blockMaxX < minX || blockMaxY < minY) {
+            return;
+        }
+        boolean inside = blockX >= minX && blockY >= minY && blockMaxX <= maxX && blockMaxY <= maxY;
+        if (inside || block <= minBlock) {
+            // the keys of an aligned square block are consecutive
+            long first = key(blockX, blockY);
+            runs.add(lowerBound(keys, first), lowerBound(keys, first + (long) block * block));
+            return;
+        }
+        int half = block / 2;
+        cover(minX, minY, maxX, maxY, blockX, blockY, half, minBlock, runs);
+        cover(minX, minY, maxX, maxY, blockX + half, blockY, half, minBlock, runs);
+        cover(minX, minY, maxX, maxY, blockX, blockY + half, half, minBlock, runs);
+        cover(minX, minY, maxX, maxY, blockX + half, blockY + half, half, minBlock, runs);
+    }
+
+    /**
+     * Runs of consecutive entries to scan, the ones adjacent to each other merged.
+     */
+    private static class Runs {
+        int[] starts = new int[16];
+        int[] ends = new int[16];
+        int size;
+
+        void add(int start, int end) {
+            if (start >= end) {
+                return;
+            }
+            if (size > 0 && ends[size - 1] == start) {
+                ends[size - 1] = end;
+                return;
+            }
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            starts[size] = start;
+            ends[size] = end;
+            size++;
+        }
+    }
+
+    private static int cellX(double longitude) {
+        return cell((longitude + 180) / 360);
+    }
+
+    private static int cellY(double latitude) {
+        return cell((latitude + 90) / 180);
+    }
+
+    private static int cell(double fraction) {
+        return (int) Math.max(0, Math.min(GRID_CELLS - 1, Math.floor(fraction * GRID_CELLS)));
+    }
+
+    /**
+     * The Z-order key of a cell, interleaving the bits of its column and its row.
+     */
+    static long key(int x, int y) {
+        return spread(x) | (spread(y) << 1);
+    }
+
+    private static long spread(int value) {
+        long bits = value & 0xFFFFFFFFL;
+        bits = (bits | (bits << 16)) & 0x0000FFFF0000FFFFL;
+        bits = (bits | (bits << 8)) & 0x00FF00FF00FF00FFL;
+        bits = (bits | (bits << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        bits = (bits | (bits << 2)) & 0x3333333333333333L;
+        bits = (bits | (bits << 1)) & 0x5555555555555555L;
+        return bits;
+    }
+
+    /**
+     * The first entry of a sorted array not below the given value.
+     */
+    private static int lowerBound(long[] values, long value) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < value) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+}
@@ -0,0 +1,79 @@
+package eu.fusepool.p3.geo.enriching;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs the searches slower than a threshold, and a sample of the others for tracing, one line of
+ * <code>key=value</code> pairs each with the parameters, the number of results and the time of the search.
+ * The line is only built for the searches logged, so that the searches not logged cost a comparison.
+ * Slow searches are logged as warnings to <code>eu.fusepool.p3.geo.enriching.slow</code>, sampled ones
+ * at info level to <code>eu.fusepool.p3.geo.enriching.trace</code>.
+ */
+class QueryLog {
+
+    private static final Logger slowLog = LoggerFactory.getLogger("eu.fusepool.p3.geo.enriching.slow");
+    private static final Logger traceLog = LoggerFactory.getLogger("eu.fusepool.p3.geo.enriching.trace");
+
+    private volatile int traceOneIn;
+    private volatile long slowNanos;
+
+    /**
+     * @param traceOneIn one search in this number is traced, 0 to trace none
+     * @param slowMillis the time in milliseconds from which a search is slow, 0 to log none
+     */
+    QueryLog(int traceOneIn, long slowMillis) {
+        configure(traceOneIn, slowMillis);
+    }
+
+    final void configure(int traceOneIn, long slowMillis) {
+        if (traceOneIn < 0 || slowMillis < 0) {
+            throw new IllegalArgumentException("The sampling and the threshold of the query log cannot be negative");
+        }
+        this.traceOneIn = traceOneIn;
+        this.slowNanos = slowMillis * 1000000L;
+    }
+
+    /**
+     * Whether a search that took the given time is logged, because it is slow or sampled.
+     */
+    boolean isLogged(long nanos) {
+        return isSlow(nanos) || (traceOneIn > 0 && ThreadLocalRandom.current().nextInt(traceOneIn) == 0);
+    }
+
+    private boolean isSlow(long nanos) {
+        long threshold = slowNanos;
+        return threshold > 0 && nanos >= threshold;
+    }
+
+    /**
+     * Logs a search for which {@link #isLogged} is true.
+     * @param search the kind of search
+     * @param parameters the names and values of the parameters of the search besides the position
+     */
+    void log(String search, long nanos, int results, WGS84Point point, String graphName, Object... parameters) {
+        StringBuilder line = new StringBuilder(128);
+        line.append("search=").append(search)
+            .append(" graph=").append(graphName)
+            .append(" position=").append(point.getUriName())
+            .append(" lat=").append(point.getLat())
+            .append(" long=").append(point.getLong());
+        for (int i = 0; i + 1 < parameters.length; i += 2) {
+            if (parameters[i + 1] != null) {
+                line.append(' ').append(parameters[i]).append('=').append(parameters[i + 1]);
+            }
+        }
+        line.append(" results=").append(results)
+            .append(" time_ms=").append(String.format(Locale.ROOT, "%.2f", nanos / 1.0e6));
+        if (isSlow(nanos)) {
+            slowLog.warn(line.toString());
+        }
+        else {
+            traceLog.info(line.toString());
+        }
+    }
+
+}
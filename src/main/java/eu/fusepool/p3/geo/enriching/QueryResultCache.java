@@ -0,0 +1,191 @@
+package eu.fusepool.p3.geo.enriching;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.clerezza.rdf.core.NonLiteral;
+import org.apache.clerezza.rdf.core.Triple;
+import org.apache.clerezza.rdf.core.UriRef;
+import org.apache.clerezza.rdf.core.impl.TripleImpl;
+
+/**
+ * Keeps the results of recent searches. Positions are snapped to a grid of a given number of decimals
+ * of a degree, so that searches around positions that differ only slightly share a result. The search
+ * of a missing result is done around the snapped position. The least recently used results are evicted
+ * once the cache is full.
+ */
+class QueryResultCache {
+
+    private static final UriRef schema_containedIn = new UriRef("http://schema.org/containedIn");
+    private static final String SNAPPED_POSITION = "urn:fusepoolp3:geo:snapped-position";
+
+    private final int maxEntries;
+    private final double scale;
+    private final Metrics metrics;
+    private final Map<Key, Result> results;
+    // incremented on every invalidation, so that results of searches that overlap it are not kept
+    private long generation = 0;
+
+    /**
+     * A search done on a miss.
+     */
+    interface Search {
+        void search(WGS84Point point, Collection<Triple> result);
+    }
+
+    private static class Key {
+        final String graphName;
+        final long latitude;
+        final long longitude;
+        final double radius;
+        final String startDate;
+        final String endDate;
+
+        Key(String graphName, long latitude, long longitude, double radius, String startDate, String endDate) {
+            this.graphName = graphName;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.radius = radius;
+            this.startDate = startDate;
+            this.endDate = endDate;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (! (obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return graphName.equals(other.graphName) && latitude == other.latitude && longitude == other.longitude
+                    && radius == other.radius && equals(startDate, other.startDate) && equals(endDate, other.endDate);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = graphName.hashCode();
+            hash = 31 * hash + (int) (latitude ^ (latitude >>> 32));
+            hash = 31 * hash + (int) (longitude ^ (longitude >>> 32));
+            long radiusBits = Double.doubleToLongBits(radius);
+            hash = 31 * hash + (int) (radiusBits ^ (radiusBits >>> 32));
+            hash = 31 * hash + (startDate != null ? startDate.hashCode() : 0);
+            hash = 31 * hash + (endDate != null ? endDate.hashCode() : 0);
+            return hash;
+        }
+
+        private static boolean equals(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    /**
+     * The triples found without the links to the position searched, which are added for each request.
+     */
+    private static class Result {
+        final List<Triple> triples = new ArrayList<Triple>();
+        final List<NonLiteral> pois = new ArrayList<NonLiteral>();
+    }
+
+    /**
+     * @param maxEntries the maximum number of results kept
+     * @param decimals the number of decimals of a degree positions are snapped to
+     * @param metrics records the time of the lookups and of the copies of the results, the hits, misses and evictions
+     */
+    QueryResultCache(int maxEntries, int decimals, Metrics metrics) {
+        this.maxEntries = maxEntries;
+        this.metrics = metrics;
+        this.scale = Math.pow(10, decimals);
+        this.results = new LinkedHashMap<Key, Result>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+                if (size() > QueryResultCache.this.maxEntries) {
+                    QueryResultCache.this.metrics.addCacheEviction();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Adds the result of a search to a graph or a collection, doing the search if the result is not in the cache.
+     * @param position the position the points of interest found are linked to
+     * @return the number of points of interest linked to the position
+     */
+    int get(WGS84Point point, String graphName, double radius, UriRef position, Search search, Collection<Triple> resultGraph) {
+        long lookupStart = System.nanoTime();
+        long latitude = Math.round(point.getLat() * scale);
+        long longitude = Math.round(point.getLong() * scale);
+        Key key = new Key(graphName, latitude, longitude, radius, point.getStartDate(), point.getEndDate());
+        Result result;
+        long searchGeneration;
+        synchronized (this) {
+            result = results.get(key);
+            searchGeneration = generation;
+        }
+        if (result != null) {
+            metrics.addCacheHit();
+        }
+        else {
+            metrics.addCacheMiss();
+        }
+        metrics.recordSince(Metrics.Phase.CACHE_CHECK, lookupStart);
+        if (result == null) {
+            WGS84Point snapped = new WGS84Point();
+            snapped.setUri(SNAPPED_POSITION);
+            snapped.setLat(latitude / scale);
+            snapped.setLong(longitude / scale);
+            snapped.setRadius(radius);
+            snapped.setStartDate(point.getStartDate());
+            snapped.setEndDate(point.getEndDate());
+            result = new Result();
+            // a point of interest found in several rows of a search is kept once
+            Collection<Triple> found = new LinkedHashSet<Triple>();
+            search.search(snapped, found);
+            for (Triple triple : found) {
+                if (triple.getPredicate().equals(schema_containedIn)) {
+                    result.pois.add(triple.getSubject());
+                }
+                else {
+                    result.triples.add(triple);
+                }
+            }
+            synchronized (this) {
+                if (generation == searchGeneration) {
+                    results.put(key, result);
+                }
+            }
+        }
+        long copyStart = System.nanoTime();
+        resultGraph.addAll(result.triples);
+        for (NonLiteral poi : result.pois) {
+            resultGraph.add(new TripleImpl(poi, schema_containedIn, position));
+        }
+        metrics.recordSince(Metrics.Phase.MATERIALIZATION, copyStart);
+        return result.pois.size();
+    }
+
+    /**
+     * Removes the results of a graph, after it has been loaded again or evicted.
+     */
+    synchronized void invalidate(String graphName) {
+        generation++;
+        Iterator<Key> keys = results.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().graphName.equals(graphName)) {
+                keys.remove();
+            }
+        }
+    }
+
+    synchronized int size() {
+        return results.size();
+    }
+
+}
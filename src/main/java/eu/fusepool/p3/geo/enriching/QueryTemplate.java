@@ -0,0 +1,63 @@
+package eu.fusepool.p3.geo.enriching;
+
+import org.apache.jena.atlas.lib.StrUtils;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.ARQ;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.sparql.algebra.Algebra;
+import com.hp.hpl.jena.sparql.algebra.Op;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.Plan;
+import com.hp.hpl.jena.sparql.engine.QueryEngineFactory;
+import com.hp.hpl.jena.sparql.engine.QueryEngineRegistry;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.BindingFactory;
+import com.hp.hpl.jena.sparql.engine.binding.BindingMap;
+import com.hp.hpl.jena.sparql.util.Context;
+
+/**
+ * A SPARQL query that is parsed and compiled to algebra once. Its parameters are variables
+ * of the query that are bound to a value for each execution, so that no values are ever
+ * spliced into the text of the query.
+ */
+class QueryTemplate {
+
+    private final Op op;
+
+    QueryTemplate(String... lines) {
+        op = Algebra.compile(QueryFactory.create(StrUtils.strjoinNL(lines)));
+    }
+
+    /**
+     * The values of the parameters of one execution.
+     */
+    static class Parameters {
+        private final BindingMap binding = BindingFactory.create();
+
+        /**
+         * Binds a variable of the query, leaving it unbound if the value is null.
+         */
+        Parameters set(String name, Node value) {
+            if (value != null) {
+                binding.add(Var.alloc(name), value);
+            }
+            return this;
+        }
+    }
+
+    /**
+     * Executes the query with the given parameters. Must be called within a read transaction
+     * and the iterator returned must be closed.
+     */
+    QueryIterator execute(Dataset dataset, Parameters parameters) {
+        DatasetGraph datasetGraph = dataset.asDatasetGraph();
+        Context context = Context.setupContext(ARQ.getContext(), datasetGraph);
+        QueryEngineFactory factory = QueryEngineRegistry.findFactory(op, datasetGraph, context);
+        Plan plan = factory.create(op, datasetGraph, parameters.binding, context);
+        return plan.iterator();
+    }
+
+}
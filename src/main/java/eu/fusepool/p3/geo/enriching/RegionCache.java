@@ -0,0 +1,84 @@
+package eu.fusepool.p3.geo.enriching;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+
+/**
+ * Keeps the regions of recent searches as prepared geometries, which index their edges on the first
+ * point-in-polygon tests so that later tests against the same region are fast. Regions are given as
+ * Well-Known Text with longitude before latitude and are looked up by their text with the white space
+ * normalized. The least recently used regions are evicted once the cache is full.
+ */
+class RegionCache {
+
+    private final int maxEntries;
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+    private final Map<String, PreparedGeometry> regions;
+
+    RegionCache(final int maxEntries) {
+        this.maxEntries = maxEntries;
+        regions = new LinkedHashMap<String, PreparedGeometry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedGeometry> eldest) {
+                return size() > RegionCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the prepared geometry of a region, parsing it if it is not in the cache.
+     * @throws IllegalArgumentException if the text is not a valid geometry
+     */
+    PreparedGeometry get(String wkt) {
+        String key = normalize(wkt);
+        synchronized (regions) {
+            PreparedGeometry region = regions.get(key);
+            if (region != null) {
+                return region;
+            }
+        }
+        PreparedGeometry region = PreparedGeometryFactory.prepare(read(key));
+        synchronized (regions) {
+            regions.put(key, region);
+        }
+        return region;
+    }
+
+    /**
+     * The geometry of a point, to be tested against a region.
+     */
+    Geometry point(double lat, double lon) {
+        return geometryFactory.createPoint(new Coordinate(lon, lat));
+    }
+
+    /**
+     * Parses a geometry, without the reference system that may precede it in a GeoSPARQL literal.
+     * @throws IllegalArgumentException if the text is not a valid geometry
+     */
+    Geometry read(String wkt) {
+        String text = wkt.trim();
+        if (text.startsWith("<") && text.indexOf('>') > 0) {
+            text = text.substring(text.indexOf('>') + 1);
+        }
+        try {
+            return new WKTReader(geometryFactory).read(text);
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Not a valid region: " + wkt, e);
+        }
+    }
+
+    private static String normalize(String wkt) {
+        return wkt.trim().replaceAll("\\s+", " ");
+    }
+
+}
@@ -0,0 +1,134 @@
+package eu.fusepool.p3.geo.enriching;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.jena.query.spatial.EntityDefinition;
+import org.apache.jena.query.spatial.SpatialIndexException;
+import org.apache.jena.query.spatial.SpatialIndexLucene;
+import org.apache.jena.query.spatial.SpatialQuery;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.spatial.SpatialStrategy;
+import org.apache.lucene.spatial.prefix.RecursivePrefixTreeStrategy;
+import org.apache.lucene.spatial.prefix.tree.GeohashPrefixTree;
+import org.apache.lucene.spatial.query.SpatialArgs;
+import org.apache.lucene.spatial.query.SpatialOperation;
+import org.apache.lucene.store.Directory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.spatial4j.core.shape.Shape;
+
+/**
+ * A Lucene spatial index that keeps its searcher open across queries, where {@link SpatialIndexLucene}
+ * opens a new reader for each one. The searcher is refreshed when the changes of a write transaction
+ * are committed to the index, or after changes made with another writer by calling {@link #refresh}.
+ * Queries are answered as by {@link SpatialIndexLucene}, the results of a query with a limit above
+ * the default maximum are fetched in a second search when more entities are found.
+ */
+class SharedSearcherSpatialIndex extends SpatialIndexLucene {
+
+    private static final Logger log = LoggerFactory.getLogger(SharedSearcherSpatialIndex.class);
+
+    // the levels of the prefix tree of SpatialIndexLucene
+    private static final int MAX_LEVELS = 11;
+    private static final int MAX_RESULTS = 10000;
+
+    private final SpatialStrategy strategy;
+    // created once the superclass has set up the index
+    private volatile SearcherManager searchers = null;
+
+    SharedSearcherSpatialIndex(Directory directory, EntityDefinition docDef) {
+        super(directory, docDef);
+        strategy = new RecursivePrefixTreeStrategy(new GeohashPrefixTree(SpatialQuery.ctx, MAX_LEVELS), docDef.getGeoField());
+        try {
+            searchers = new SearcherManager(directory, null);
+        } catch (IOException e) {
+            throw new SpatialIndexException(e);
+        }
+    }
+
+    @Override
+    public List<Node> query(Shape shape, int limit, SpatialOperation operation) {
+        SearcherManager manager = searchers;
+        try {
+            IndexSearcher searcher = manager.acquire();
+            try {
+                return query(searcher, shape, limit, operation);
+            }
+            finally {
+                manager.release(searcher);
+            }
+        } catch (IOException e) {
+            throw new SpatialIndexException(e);
+        }
+    }
+
+    private List<Node> query(IndexSearcher searcher, Shape shape, int limit, SpatialOperation operation) throws IOException {
+        Sort distanceSort = new Sort(strategy.makeDistanceValueSource(shape.getCenter()).getSortField(false)).rewrite(searcher);
+        SpatialArgs args = new SpatialArgs(operation, shape);
+        args.setDistErr(0.0);
+        Filter filter = strategy.makeFilter(args);
+        // the queue of the search is allocated for the number of results asked for
+        int first = limit > 0 ? Math.min(limit, MAX_RESULTS) : MAX_RESULTS;
+        TopDocs docs = searcher.search(new MatchAllDocsQuery(), filter, first, distanceSort);
+        if (docs.totalHits > first) {
+            if (limit > first) {
+                docs = searcher.search(new MatchAllDocsQuery(), filter, Math.min(limit, docs.totalHits), distanceSort);
+            }
+            else if (limit <= 0) {
+                log.warn("Spatial query results cut to {} of {} entities found", first, docs.totalHits);
+            }
+        }
+        List<Node> results = new ArrayList<Node>();
+        for (ScoreDoc scoreDoc : docs.scoreDocs) {
+            Document doc = searcher.doc(scoreDoc.doc);
+            for (String entity : doc.getValues(getDocDef().getEntityField())) {
+                results.add(NodeFactory.createURI(entity));
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public void finishIndexing() {
+        super.finishIndexing();
+        refresh();
+    }
+
+    /**
+     * Opens a new searcher if the index has changed.
+     */
+    void refresh() {
+        SearcherManager manager = searchers;
+        if (manager == null) {
+            return;
+        }
+        try {
+            manager.maybeRefreshBlocking();
+        } catch (IOException e) {
+            throw new SpatialIndexException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            searchers.close();
+        } catch (IOException e) {
+            throw new SpatialIndexException(e);
+        }
+        super.close();
+    }
+
+}
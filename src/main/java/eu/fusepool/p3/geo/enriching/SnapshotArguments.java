@@ -0,0 +1,24 @@
+package eu.fusepool.p3.geo.enriching;
+
+import org.wymiwyg.commons.util.arguments.ArgumentsWithHelp;
+import org.wymiwyg.commons.util.arguments.CommandLine;
+
+/**
+ * The arguments of the <code>build-snapshot</code> command.
+ */
+public interface SnapshotArguments extends ArgumentsWithHelp {
+
+    @CommandLine(longName = "snapshots-dir", shortName = {"S"}, required = true,
+            description = "The directory of the versions of the snapshot, the version built is added to it")
+    public String getSnapshotsDir();
+
+    @CommandLine(longName = "datasets", shortName = {"d"}, required = true,
+            description = "The comma separated urls of the knowledge bases to load into the snapshot")
+    public String getDatasets();
+
+    @CommandLine(longName = "bulk-load-threads", shortName = {"B"}, required = false,
+            defaultValue = "0",
+            description = "The number of threads parsing a knowledge base in N-Triples while it is loaded in bulk, 0 to load knowledge bases triple by triple")
+    public int getBulkLoadThreads();
+
+}
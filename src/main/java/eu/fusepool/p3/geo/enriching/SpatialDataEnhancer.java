@@ -7,49 +7,93 @@ import java.net.URL;
 import java.net.URLConnection;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.apache.clerezza.rdf.core.Literal;
 import org.apache.clerezza.rdf.core.NonLiteral;
 import org.apache.clerezza.rdf.core.Resource;
+import org.apache.clerezza.rdf.core.Triple;
 import org.apache.clerezza.rdf.core.TripleCollection;
 import org.apache.clerezza.rdf.core.TypedLiteral;
 import org.apache.clerezza.rdf.core.UriRef;
-import org.apache.clerezza.rdf.core.impl.PlainLiteralImpl;
 import org.apache.clerezza.rdf.core.impl.SimpleMGraph;
 import org.apache.clerezza.rdf.core.impl.TripleImpl;
-import org.apache.clerezza.rdf.core.impl.TypedLiteralImpl;
 import org.apache.clerezza.rdf.ontologies.FOAF;
 import org.apache.clerezza.rdf.ontologies.RDF;
 import org.apache.clerezza.rdf.ontologies.RDFS;
 import org.apache.clerezza.rdf.ontologies.XSD;
+import org.apache.clerezza.rdf.utils.UnionMGraph;
 import org.apache.jena.atlas.lib.StrUtils;
 import org.apache.jena.atlas.logging.LogCtl;
+import org.apache.jena.query.spatial.DatasetGraphSpatial;
 import org.apache.jena.query.spatial.EntityDefinition;
 import org.apache.jena.query.spatial.SpatialDatasetFactory;
 import org.apache.jena.query.spatial.SpatialIndex;
 import org.apache.jena.query.spatial.SpatialIndexLucene;
 import org.apache.jena.query.spatial.SpatialQuery;
+import org.apache.jena.riot.Lang;
 import org.apache.jena.riot.RDFDataMgr;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
 import com.hp.hpl.jena.query.Dataset;
 import com.hp.hpl.jena.query.DatasetFactory;
-import com.hp.hpl.jena.query.Query;
-import com.hp.hpl.jena.query.QueryExecution;
-import com.hp.hpl.jena.query.QueryExecutionFactory;
-import com.hp.hpl.jena.query.QueryFactory;
-import com.hp.hpl.jena.query.QuerySolution;
 import com.hp.hpl.jena.query.ReadWrite;
-import com.hp.hpl.jena.query.ResultSet;
 import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
 import com.hp.hpl.jena.rdf.model.ResourceFactory;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+import com.hp.hpl.jena.sparql.core.Var;
+import com.hp.hpl.jena.sparql.engine.QueryIterator;
+import com.hp.hpl.jena.sparql.engine.binding.Binding;
+import com.hp.hpl.jena.tdb.StoreConnection;
 import com.hp.hpl.jena.tdb.TDBFactory;
+import com.hp.hpl.jena.tdb.base.file.Location;
+import com.spatial4j.core.distance.DistanceCalculator;
+import com.spatial4j.core.shape.Point;
+import com.spatial4j.core.shape.Shape;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
 /**
  * Enhances an input graph with information taken from a remote source. 
  * @author luigi
@@ -65,10 +109,59 @@ public class SpatialDataEnhancer {
     private static final UriRef schema_endDate = new UriRef("http://schema.org/endDate");
     private static final UriRef schema_circle = new UriRef("http://schema.org/circle");
     private static final UriRef schema_containedIn = new UriRef("http://schema.org/containedIn");
+    private static final UriRef schema_geo = new UriRef("http://schema.org/geo");
+    private static final UriRef fp3geo_nearest = new UriRef(NearestPois.NEAREST);
+    private static final UriRef schema_polygon = new UriRef("http://schema.org/polygon");
+    private static final UriRef geo_geometry = new UriRef(EntityDefinition.geo_geometry.getURI());
+    private static final UriRef geosparql_asWKT = new UriRef(EntityDefinition.geosparql_asWKT.getURI());
+    private static final UriRef geosparql_wktLiteral = new UriRef(EntityDefinition.geosparql_wktLiteral.getURI());
+    private static final int REGION_CACHE_SIZE = 256;
+    // the number of types of points of interest converted once for all the rows found
+    private static final int SHARED_URIS = 4096;
+    // searches taking longer are logged as slow unless configured otherwise
+    private static final long DEFAULT_SLOW_QUERY_MILLIS = 1000;
+    // the radius of the first search for the nearest points of interest, doubled until enough are found
+    private static final double NEAREST_START_RADIUS = 250.0;
+    private static final int QUERY_THREADS = Runtime.getRuntime().availableProcessors();
     
     File LUCENE_INDEX_DIR = null;
     File TDB_DIR = null;
     Dataset spatialDataset = null;
+    KnowledgeBaseCatalog catalog = null;
+    private final ConcurrentMap<String, FutureTask<Void>> loadsInProgress = new ConcurrentHashMap<String, FutureTask<Void>>();
+    private final Set<String> refreshing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // serializes the writes to the triple store with the writes to the spatial index done outside of a transaction
+    private final Lock writeLock = new ReentrantLock();
+    private ScheduledExecutorService refresher = null;
+    // the time each graph was last used, kept in memory only as it changes with every request
+    private final ConcurrentMap<String, Long> lastAccess = new ConcurrentHashMap<String, Long>();
+    private int maxGraphs = 0;
+    private long maxTriples = 0;
+    private long maxBytes = 0;
+    private final IndexDirectory indexDirectory;
+    // a snapshot is searched only, its knowledge bases are never loaded, refreshed or evicted
+    private final boolean readOnly;
+    private boolean inMemoryIndex = false;
+    private volatile BulkLoader bulkLoader = null;
+    private volatile QueryResultCache resultCache = null;
+    private final RegionCache regionCache = new RegionCache(REGION_CACHE_SIZE);
+    private final NodeBridge nodes = new NodeBridge(SHARED_URIS);
+    private final Metrics metrics = new Metrics();
+    private final QueryLog queryLog = new QueryLog(0, DEFAULT_SLOW_QUERY_MILLIS);
+    // the in-memory indexes of the points of interest by stored graph
+    private final ConcurrentMap<String, PoiIndex> poiIndexes = new ConcurrentHashMap<String, PoiIndex>();
+    // the in-memory indexes of the events by stored graph
+    private final ConcurrentMap<String, EventIndex> eventIndexes = new ConcurrentHashMap<String, EventIndex>();
+    // searches the points of a request in parallel
+    private final ExecutorService queryExecutor = Executors.newFixedThreadPool(QUERY_THREADS, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "spatial-query-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
     
     private class Circle {
         double centerLong;
@@ -76,48 +169,210 @@ public class SpatialDataEnhancer {
         double radius = 500.0; // default value for radius in meters
     }
     
+    private static final String SHADOW_GRAPH_PREFIX = "urn:fusepoolp3:geo:shadow:";
+    // the pairs of latitude and longitude predicates the spatial index and the in-memory indexes read
+    static final Property[][] SPATIAL_PREDICATE_PAIRS = {
+        { EntityDefinition.geo_latitude, EntityDefinition.geo_longitude },
+        { ResourceFactory.createProperty("http://schema.org/latitude"), ResourceFactory.createProperty("http://schema.org/longitude") }
+    };
+    // the predicates of geometries in Well-Known Text the spatial index reads
+    private static final Property[] WKT_PREDICATES = { EntityDefinition.geo_geometry, EntityDefinition.geosparql_asWKT };
+    
     static {
         LogCtl.setLog4j();
     }
     static Logger log = LoggerFactory.getLogger("JenaSpatial");
     
+    private static final String PREFIXES = StrUtils.strjoinNL("PREFIX spatial: <http://jena.apache.org/spatial#>",
+            "PREFIX geo: <http://www.w3.org/2003/01/geo/wgs84_pos#>",
+            "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>",
+            "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>",
+            "PREFIX schema: <http://schema.org/>",
+            "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>",
+            "PREFIX geosparql: <http://www.opengis.net/ont/geosparql#>");
+    // parameters: ?graph, ?centerLat, ?centerLong, ?radius in meters
+    private static final QueryTemplate NEARBY_QUERY = new QueryTemplate(PREFIXES,
+            "SELECT * ",
+            "WHERE { ",
+            "GRAPH ?graph ",
+            " { ?s spatial:nearby (?centerLat ?centerLong ?radius 'm') ;",
+            "      rdf:type ?type ; ",
+            "      geo:lat ?lat ;" ,
+            "      geo:long ?lon ; ",
+            "      rdfs:label ?label .", " }",
+            "}");
+    // parameters: ?graph, ?minLat, ?minLong, ?maxLat, ?maxLong of the bounding box of a region, ?limit of the entities found
+    private static final QueryTemplate WITHIN_QUERY = new QueryTemplate(PREFIXES,
+            "SELECT * ",
+            "WHERE { ",
+            "GRAPH ?graph ",
+            " { ?s spatial:withinBox (?minLat ?minLong ?maxLat ?maxLong ?limit) ;",
+            "      rdf:type ?type ; ",
+            "      rdfs:label ?label .",
+            "   OPTIONAL { ?s geo:lat ?lat ; geo:long ?lon . }",
+            "   OPTIONAL { ?s geosparql:asWKT ?wkt . }",
+            "   OPTIONAL { ?s geo:geometry ?geometry . }",
+            " }",
+            "}");
+    // parameters: ?graph, ?centerLat, ?centerLong, ?radius in meters, ?from and ?to dates, either left unbound for an open time frame
+    private static final QueryTemplate EVENTS_NEARBY_QUERY = new QueryTemplate(PREFIXES,
+            "SELECT * ",
+            "WHERE { ",
+            "GRAPH ?graph ",
+            " { ?location spatial:nearby (?centerLat ?centerLong ?radius 'm') .",
+            "   ?location geo:lat ?lat ." ,
+            "   ?location geo:long ?lon . ",
+            "   ?location rdf:type ?type . ",
+            "   ?location rdfs:label ?label .",
+            "   ?event schema:location ?location .",
+            "   ?event rdfs:label ?eventLabel .",
+            "   ?event schema:startDate ?start .",
+            "   ?event schema:endDate ?end .",
+            "   FILTER((! BOUND(?from) || ?start >= ?from) && (! BOUND(?to) || ?end <= ?to)) ",
+            " }",
+            "}");
+    private static final Var VAR_S = Var.alloc("s");
+    private static final Var VAR_LOCATION = Var.alloc("location");
+    private static final Var VAR_TYPE = Var.alloc("type");
+    private static final Var VAR_LAT = Var.alloc("lat");
+    private static final Var VAR_LON = Var.alloc("lon");
+    private static final Var VAR_LABEL = Var.alloc("label");
+    private static final Var VAR_EVENT = Var.alloc("event");
+    private static final Var VAR_EVENT_LABEL = Var.alloc("eventLabel");
+    private static final Var VAR_START = Var.alloc("start");
+    private static final Var VAR_END = Var.alloc("end");
+    private static final Var VAR_WKT = Var.alloc("wkt");
+    private static final Var VAR_GEOMETRY = Var.alloc("geometry");
+    
+    /**
+     * The implementations of the directory of the spatial index.
+     */
+    public enum IndexDirectory {
+        /** The file system directory Lucene considers best for the platform */
+        FS,
+        /** Files mapped into memory */
+        MMAP,
+        /** Files read with positional reads */
+        NIO,
+        /** In memory only, rebuilt from the triple store when a data directory is reused */
+        MEMORY
+    }
+    
+    /**
+     * Creates an enhancer with a temporary store that is discarded on restart.
+     */
     public SpatialDataEnhancer() throws IOException {
+        this(IndexDirectory.FS);
+    }
+    
+    /**
+     * Creates an enhancer with a temporary store that is discarded on restart.
+     * @param indexDirectory the implementation of the directory of the spatial index
+     */
+    public SpatialDataEnhancer(IndexDirectory indexDirectory) throws IOException {
+        this.indexDirectory = indexDirectory;
+        this.readOnly = false;
         LUCENE_INDEX_DIR = File.createTempFile("lucene-", "-index");
         TDB_DIR = File.createTempFile("jenatdb-", "-dataset");
+        catalog = new KnowledgeBaseCatalog(null);
         //spatialDataset = initInMemoryDatasetWithLuceneSpatialIndex(LUCENE_INDEX_DIR);
-        spatialDataset = initTDBDatasetWithLuceneSpatialIndex(LUCENE_INDEX_DIR, TDB_DIR);
+        spatialDataset = initTDBDatasetWithLuceneSpatialIndex(LUCENE_INDEX_DIR, TDB_DIR, false);
+    }
+    
+    /**
+     * Creates an enhancer with a store kept in the given directory. The knowledge bases 
+     * loaded by a previous run are reused and the store is checked for consistency. 
+     * @param dataDir
+     * @throws IOException
+     */
+    public SpatialDataEnhancer(File dataDir) throws IOException {
+        this(dataDir, IndexDirectory.FS);
+    }
+    
+    /**
+     * Creates an enhancer with a store kept in the given directory. The knowledge bases 
+     * loaded by a previous run are reused and the store is checked for consistency. 
+     * @param dataDir
+     * @param indexDirectory the implementation of the directory of the spatial index
+     * @throws IOException
+     */
+    public SpatialDataEnhancer(File dataDir, IndexDirectory indexDirectory) throws IOException {
+        this(dataDir, indexDirectory, false);
+        for (String problem : checkConsistency(true)) {
+            log.warn(problem);
+        }
+    }
+    
+    private SpatialDataEnhancer(File dataDir, IndexDirectory indexDirectory, boolean readOnly) throws IOException {
+        this.indexDirectory = indexDirectory;
+        this.readOnly = readOnly;
+        dataDir.mkdirs();
+        LUCENE_INDEX_DIR = new File(dataDir, "lucene");
+        TDB_DIR = new File(dataDir, "tdb");
+        catalog = new KnowledgeBaseCatalog(new File(dataDir, "catalog.properties"));
+        spatialDataset = initTDBDatasetWithLuceneSpatialIndex(LUCENE_INDEX_DIR, TDB_DIR, true);
+    }
+    
+    /**
+     * Opens a snapshot built by {@link IndexSnapshot#build}, with the spatial index mapped into memory. 
+     * The snapshot was checked for consistency when it was built and is not checked again, the knowledge 
+     * bases it holds are searched only: requests on other knowledge bases fail, and the snapshot 
+     * is never refreshed nor evicted from.
+     * @param snapshotDir the directory of a version of the snapshot
+     */
+    public static SpatialDataEnhancer openSnapshot(File snapshotDir) throws IOException {
+        IndexSnapshot.readProperties(snapshotDir);
+        return new SpatialDataEnhancer(snapshotDir, IndexDirectory.MMAP, true);
+    }
+    
+    /**
+     * Whether the store is a snapshot that is searched only.
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+    
+    /**
+     * Stops the background work and closes the spatial index and the triple store, writing 
+     * what they still hold in memory to their files. The enhancer cannot be used afterwards.
+     */
+    public synchronized void close() {
+        queryExecutor.shutdownNow();
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+        writeLock.lock();
+        try {
+            getSpatialIndex().close();
+            StoreConnection.release(new Location(TDB_DIR.getAbsolutePath()));
+        }
+        finally {
+            writeLock.unlock();
+        }
     }
     /**
      * Takes a RDF data set to search for point of interest close to objects provided in a graph.  
+     * The graph returned is a view of the given graph together with the points of interest found,
+     * so that the data to enhance is not copied. A triple found that is in the given graph already
+     * is in the view once.
      * @throws ParseException 
      * @throws Exception 
      */
     public TripleCollection enhance(String dataSetUrl, TripleCollection dataToEnhance) {
-        TripleCollection result = new SimpleMGraph();
+        TripleCollection poiGraph = new SimpleMGraph();
         if( dataToEnhance != null ){
         	if( ! dataToEnhance.isEmpty() ) {
-		        result.addAll(dataToEnhance);
 		        //look for the knowledge base name in the triple store before fetching the data from the url.
-		        if( ! isCachedGraph(spatialDataset, dataSetUrl) ){
-		          loadKnowledgeBase(spatialDataset, dataSetUrl, dataSetUrl);
+		        ensureKnowledgeBase(dataSetUrl);
+		        List<TripleCollection> batchResults = queryAll(getPoints(dataToEnhance), dataSetUrl);
+		        if (batchResults.size() == 1) {
+		            poiGraph = batchResults.get(0);
 		        }
 		        else {
-		            log.info("Rdf data set " + dataSetUrl + " already in the triple store.");
-		        }
-		        WGS84Point point = getPoint(dataToEnhance);
-		        double radius = getCircle(dataToEnhance).radius;
-		        if(point.getStartDate() != null || point.getEndDate() != null){ 
-    		        TripleCollection poiGraph = queryEventsNearby(point, dataSetUrl, radius);
-    		        if(poiGraph.size() > 0){
-    		         result.addAll(poiGraph);
+    		        for (TripleCollection batchResult : batchResults) {
+    		            poiGraph.addAll(batchResult);
     		        }
 		        }
-		        else {
-		            TripleCollection poiGraph = queryNearby(point, dataSetUrl, radius);
-                    if(poiGraph.size() > 0){
-                     result.addAll(poiGraph);
-                    }
-		        }
         	}
         	else {
         		throw new IllegalArgumentException("An empty graph cannot be enhanced");
@@ -126,8 +381,216 @@ public class SpatialDataEnhancer {
         else {
         	throw new NullPointerException("A null object has been passed instead of a graph.");
         }
-        return result;
+        return union(dataToEnhance, poiGraph);
+    }
+    
+    /**
+     * Enhances data read from a stream. The positions are searched while the data is parsed, 
+     * without the data being parsed into a graph of its own first.
+     * @param lang the syntax of the data
+     */
+    public TripleCollection enhance(String dataSetUrl, InputStream data, Lang lang) {
+        ensureKnowledgeBase(dataSetUrl);
+        TripleCollection requestGraph = new SimpleMGraph();
+        StreamingEnhancement enhancement = new StreamingEnhancement(this, dataSetUrl, requestGraph);
+        long parseStart = System.nanoTime();
+        try {
+            RDFDataMgr.parse(enhancement, data, lang);
+        } catch (RuntimeException e) {
+            enhancement.cancel();
+            throw e;
+        }
+        metrics.recordSince(Metrics.Phase.PARSE, parseStart);
+        if (requestGraph.isEmpty()) {
+            throw new IllegalArgumentException("An empty graph cannot be enhanced");
+        }
+        return union(requestGraph, enhancement.complete());
+    }
+    
+    /**
+     * A view of the data enhanced together with the points of interest found, without the triples found 
+     * that are in the data already, as the view does not remove duplicates: the view would return them twice 
+     * and count them twice in its size. Only the triples found are looked up in the data, which is not copied.
+     */
+    private static TripleCollection union(TripleCollection data, TripleCollection poiGraph) {
+        List<Triple> duplicates = new ArrayList<Triple>();
+        for (Triple triple : poiGraph) {
+            if (data.contains(triple)) {
+                duplicates.add(triple);
+            }
+        }
+        poiGraph.removeAll(duplicates);
+        return new UnionMGraph(data, poiGraph);
     }
+    
+    /**
+     * Starts the searches for the positions of a graph on the query threads, whose results are written as GeoJSON
+     * by the writer returned, as they are found. The triples found are not put into a graph.
+     */
+    public GeoJsonWriter enhanceGeoJson(final String dataSetUrl, TripleCollection dataToEnhance) {
+        if (dataToEnhance.isEmpty()) {
+            throw new IllegalArgumentException("An empty graph cannot be enhanced");
+        }
+        ensureKnowledgeBase(dataSetUrl);
+        List<Future<List<Triple>>> searches = new ArrayList<Future<List<Triple>>>();
+        for (final WGS84Point point : getPoints(dataToEnhance)) {
+            searches.add(queryExecutor.submit(new Callable<List<Triple>>() {
+                @Override
+                public List<Triple> call() {
+                    List<Triple> found = new ArrayList<Triple>();
+                    query(point, dataSetUrl, found);
+                    return found;
+                }
+            }));
+        }
+        return new GeoJsonWriter(searches, regionCache, metrics);
+    }
+
+    /**
+     * Starts the search nearby a point on a query thread.
+     */
+    Future<TripleCollection> submitQuery(final WGS84Point point, final String dataSetUrl) {
+        return queryExecutor.submit(new Callable<TripleCollection>() {
+            @Override
+            public TripleCollection call() {
+                return query(point, dataSetUrl);
+            }
+        });
+    }
+    
+    /**
+     * Searches for the points of interest or events nearby each point. The points are split in batches
+     * searched in parallel by the query threads, each point of interest found is linked to its own point.
+     * @return the points of interest found for each batch
+     */
+    private List<TripleCollection> queryAll(List<WGS84Point> points, final String dataSetUrl) {
+        List<TripleCollection> results = new ArrayList<TripleCollection>();
+        if (points.size() == 1) {
+            results.add(query(points.get(0), dataSetUrl));
+            return results;
+        }
+        int batches = Math.min(QUERY_THREADS, points.size());
+        List<Callable<TripleCollection>> tasks = new ArrayList<Callable<TripleCollection>>();
+        for (int i = 0; i < batches; i++) {
+            final List<WGS84Point> batch = points.subList(points.size() * i / batches, points.size() * (i + 1) / batches);
+            tasks.add(new Callable<TripleCollection>() {
+                @Override
+                public TripleCollection call() {
+                    TripleCollection batchResult = new SimpleMGraph();
+                    for (WGS84Point point : batch) {
+                        query(point, dataSetUrl, batchResult);
+                    }
+                    return batchResult;
+                }
+            });
+        }
+        try {
+            for (Future<TripleCollection> batchResult : queryExecutor.invokeAll(tasks)) {
+                results.add(batchResult.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while searching " + dataSetUrl, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        return results;
+    }
+    
+    /**
+     * Searches for events nearby a point if it comes with dates, for points of interest within a region if it 
+     * comes with one, for the nearest points of interest if it comes with their number, for points of interest 
+     * within its radius otherwise. 
+     */
+    private TripleCollection query(WGS84Point point, String dataSetUrl) {
+        TripleCollection resultGraph = new SimpleMGraph();
+        query(point, dataSetUrl, resultGraph);
+        return resultGraph;
+    }
+    
+    /**
+     * Searches like {@link #query(WGS84Point, String)}, adding the triples found to a graph or to a collection
+     * that takes them as they are found, such as the features of a GeoJSON response.
+     */
+    void query(WGS84Point point, String dataSetUrl, Collection<Triple> result) {
+        int pois;
+        if(point.getStartDate() != null || point.getEndDate() != null){ 
+            pois = queryEventsNearby(point, dataSetUrl, point.getRadius(), result);
+        }
+        else if (point.getRegion() != null) {
+            pois = searchWithin(point, dataSetUrl, point.getRegion(), result);
+        }
+        else if (point.getNearest() > 0) {
+            pois = searchNearest(point, dataSetUrl, point.getNearest(), point.getRadius(), result);
+        }
+        else {
+            pois = queryNearby(point, dataSetUrl, point.getRadius(), result);
+        }
+        metrics.addPoisReturned(pois);
+    }
+    /**
+     * Makes sure a knowledge base is in the triple store, loading it if needed, under the normalized form of 
+     * its url. Only one load runs for a given url, concurrent callers for the same url wait for that load to finish.  
+     * @param dataSetUrl
+     */
+    public void ensureKnowledgeBase(String dataSetUrl) {
+        // equivalent urls share one graph
+        final String graphName = KnowledgeBaseCatalog.normalize(dataSetUrl);
+        if( isCachedGraph(spatialDataset, graphName) ){
+            lastAccess.put(graphName, System.currentTimeMillis());
+            log.debug("Rdf data set " + graphName + " already in the triple store.");
+            return;
+        }
+        if (readOnly) {
+            throw new IllegalArgumentException("The knowledge base " + graphName + " is not in the snapshot");
+        }
+        FutureTask<Void> load = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() {
+                // a load that completed since the first check has already been removed from the map
+                if( ! isCachedGraph(spatialDataset, graphName) ){
+                    loadKnowledgeBase(spatialDataset, graphName, graphName);
+                }
+                return null;
+            }
+        });
+        FutureTask<Void> runningLoad = loadsInProgress.putIfAbsent(graphName, load);
+        if (runningLoad == null) {
+            runningLoad = load;
+            try {
+                load.run();
+            }
+            finally {
+                loadsInProgress.remove(graphName, load);
+            }
+        }
+        else {
+            log.info("Waiting for rdf data set " + graphName + " to be loaded by another request.");
+        }
+        try {
+            runningLoad.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for " + graphName, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+    
+    /**
+     * Tells whether a knowledge base is currently being loaded, so that callers that do not 
+     * want to wait can answer straight away. 
+     */
+    public boolean isLoading(String dataSetUrl) {
+        return loadsInProgress.containsKey(KnowledgeBaseCatalog.normalize(dataSetUrl));
+    }
+    
     /**
      * Extracts one spatial point or event from the client data.
      * @param graph
@@ -151,6 +614,84 @@ public class SpatialDataEnhancer {
         }
         return point;
     }
+    /**
+     * Extracts all the spatial points or events from the client data. The radius of a point is taken from 
+     * the circle linked to it by schema:geo, or else from the first circle in the data. A node linked by schema:geo
+     * can also give the number of nearest points of interest to search for, these are searched within the circle 
+     * of the point if it has one of its own, on the whole earth otherwise. Instead of a circle the node can give 
+     * a region to search within, as a schema:polygon or as a geosparql:asWKT geometry. The dates of a point 
+     * are taken from the event located at it by schema:location, or else from the first event in the data
+     * when no event is linked to a location.
+     * @param graph
+     * @return
+     */
+    public List<WGS84Point> getPoints(TripleCollection graph) {
+        List<WGS84Point> points = new ArrayList<WGS84Point>();
+        Circle defaultCircle = getCircle(graph);
+        boolean locatedEvents = graph.filter(null, schema_location, null).hasNext();
+        Set<NonLiteral> pointRefs = new HashSet<NonLiteral>();
+        Iterator<Triple> latitudes = graph.filter(null, geo_lat, null);
+        while (latitudes.hasNext()) {
+            Triple latitude = latitudes.next();
+            NonLiteral pointRef = latitude.getSubject();
+            Iterator<Triple> longitudes = graph.filter(pointRef, geo_long, null);
+            if (! longitudes.hasNext() || ! pointRefs.add(pointRef)) {
+                continue;
+            }
+            WGS84Point point = new WGS84Point();
+            point.setUri(pointRef.toString());
+            point.setLat(Double.valueOf(((Literal) latitude.getObject()).getLexicalForm()));
+            point.setLong(Double.valueOf(((Literal) longitudes.next().getObject()).getLexicalForm()));
+            point.setRadius(defaultCircle.radius);
+            boolean ownCircle = false;
+            Iterator<Triple> geos = graph.filter(pointRef, schema_geo, null);
+            while (geos.hasNext()) {
+                Resource circleRef = geos.next().getObject();
+                if (circleRef instanceof NonLiteral) {
+                    Iterator<Triple> nearests = graph.filter((NonLiteral) circleRef, fp3geo_nearest, null);
+                    if (nearests.hasNext() && point.getNearest() == 0) {
+                        point.setNearest(parseNearest(((Literal) nearests.next().getObject()).getLexicalForm()));
+                    }
+                    Iterator<Triple> polygons = graph.filter((NonLiteral) circleRef, schema_polygon, null);
+                    if (polygons.hasNext() && point.getRegion() == null) {
+                        point.setRegion(parsePolygon(((Literal) polygons.next().getObject()).getLexicalForm()));
+                    }
+                    Iterator<Triple> wkts = graph.filter((NonLiteral) circleRef, geosparql_asWKT, null);
+                    if (wkts.hasNext() && point.getRegion() == null) {
+                        point.setRegion(((Literal) wkts.next().getObject()).getLexicalForm());
+                    }
+                    Iterator<Triple> circles = graph.filter((NonLiteral) circleRef, schema_circle, null);
+                    if (circles.hasNext() && ! ownCircle) {
+                        point.setRadius(parseCircle(((Literal) circles.next().getObject()).getLexicalForm()).radius);
+                        ownCircle = true;
+                    }
+                }
+            }
+            if (point.getNearest() > 0 && ! ownCircle) {
+                point.setRadius(NearestPois.MAX_RADIUS);
+            }
+            NonLiteral eventRef = null;
+            if (locatedEvents) {
+                Iterator<Triple> events = graph.filter(null, schema_location, pointRef);
+                eventRef = events.hasNext() ? events.next().getSubject() : null;
+            }
+            else if (graph.filter(null, schema_startDate, null).hasNext()) {
+                eventRef = graph.filter(null, schema_startDate, null).next().getSubject();
+            }
+            if (eventRef != null) {
+                point.setStartDate(getDate(graph, eventRef, schema_startDate));
+                point.setEndDate(getDate(graph, eventRef, schema_endDate));
+            }
+            points.add(point);
+        }
+        return points;
+    }
+    
+    private String getDate(TripleCollection graph, NonLiteral eventRef, UriRef property) {
+        Iterator<Triple> dates = graph.filter(eventRef, property, null);
+        return dates.hasNext() ? ((Literal) dates.next().getObject()).getLexicalForm() : null;
+    }
+    
     /**
      * Returns a circle object with the geo coordinate and radius of the circle centered around a position.
      * @param positionRef
@@ -158,15 +699,54 @@ public class SpatialDataEnhancer {
      * @return
      */
     public Circle getCircle(TripleCollection graph) {
-        Circle circle = new Circle();
         if (graph.filter(null, schema_circle, null).hasNext()) {
-            String circleTxt = ((PlainLiteralImpl) graph.filter(null, schema_circle, null).next().getObject()).getLexicalForm();
-            String [] circleData = circleTxt.split(" ");
-            circle.centerLat = Double.parseDouble(circleData[0]);
-            circle.centerLong = Double.parseDouble(circleData[1]);
-            if (circleData[2] != null && ! "".equals(circleData[2]) ) {
-                circle.radius = Double.parseDouble(circleData[2]);
-            }
+            return parseCircle(((Literal) graph.filter(null, schema_circle, null).next().getObject()).getLexicalForm());
+        }
+        return new Circle();
+    }
+    
+    /**
+     * Returns the radius of a circle given as the value of schema:circle.
+     */
+    double parseRadius(String circleTxt) {
+        return parseCircle(circleTxt).radius;
+    }
+    
+    /**
+     * Returns the number of nearest points of interest to search for given as the value of fp3geo:nearest.
+     */
+    int parseNearest(String nearestTxt) {
+        return Integer.parseInt(nearestTxt.trim());
+    }
+    
+    /**
+     * Returns the region given as the value of schema:polygon, a series of latitude and longitude pairs, 
+     * as Well-Known Text.
+     */
+    String parsePolygon(String polygonTxt) {
+        String [] coordinates = polygonTxt.trim().split("[\\s,]+");
+        if (coordinates.length < 6 || coordinates.length % 2 != 0) {
+            throw new IllegalArgumentException("Not a polygon: " + polygonTxt);
+        }
+        StringBuilder wkt = new StringBuilder("POLYGON ((");
+        for (int i = 0; i < coordinates.length; i += 2) {
+            wkt.append(Double.parseDouble(coordinates[i + 1])).append(' ').append(Double.parseDouble(coordinates[i])).append(", ");
+        }
+        // the ring is closed if the last point is not the first
+        if (! (coordinates[0].equals(coordinates[coordinates.length - 2]) && coordinates[1].equals(coordinates[coordinates.length - 1]))) {
+            wkt.append(Double.parseDouble(coordinates[1])).append(' ').append(Double.parseDouble(coordinates[0])).append(", ");
+        }
+        wkt.setLength(wkt.length() - 2);
+        return wkt.append("))").toString();
+    }
+    
+    private Circle parseCircle(String circleTxt) {
+        Circle circle = new Circle();
+        String [] circleData = circleTxt.split(" ");
+        circle.centerLat = Double.parseDouble(circleData[0]);
+        circle.centerLong = Double.parseDouble(circleData[1]);
+        if (circleData[2] != null && ! "".equals(circleData[2]) ) {
+            circle.radius = Double.parseDouble(circleData[2]);
         }
         return circle;
     }
@@ -180,62 +760,425 @@ public class SpatialDataEnhancer {
      */
     public TripleCollection queryNearby(WGS84Point point, String graphName, double radius){
         TripleCollection resultGraph = new SimpleMGraph();
-        log.info("queryNearby()");
+        queryNearby(point, graphName, radius, resultGraph);
+        return resultGraph;
+    }
+    
+    private int queryNearby(WGS84Point point, final String graphName, final double radius, Collection<Triple> resultGraph){
+        QueryResultCache cache = resultCache;
+        if (cache != null) {
+            return cache.get(point, KnowledgeBaseCatalog.normalize(graphName), radius, new UriRef(checkUriName(point.getUriName())), new QueryResultCache.Search() {
+                @Override
+                public void search(WGS84Point snapped, Collection<Triple> result) {
+                    searchNearby(snapped, graphName, radius, result);
+                }
+            }, resultGraph);
+        }
+        return searchNearby(point, graphName, radius, resultGraph);
+    }
+    
+    private int searchNearby(WGS84Point point, String graphName, double radius, Collection<Triple> resultGraph){
         long startTime = System.nanoTime();
-        String pre = StrUtils.strjoinNL("PREFIX spatial: <http://jena.apache.org/spatial#>",
-                "PREFIX geo: <http://www.w3.org/2003/01/geo/wgs84_pos#>",
-                "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>",
-                "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>");
-        
-        String qs = StrUtils.strjoinNL("SELECT * ",
-                "FROM NAMED <" + graphName + ">",
-                "WHERE { ",
-                "GRAPH <" + graphName + "> ",
-                " { ?s spatial:nearby (" + point.getLat() + " " + point.getLong() + " " + radius + " 'm') ;",
-                "      rdf:type ?type ; ",
-                "      geo:lat ?lat ;" ,
-                "      geo:long ?lon ; ",
-                "      rdfs:label ?label .", " }",
-                "}");
-
-        log.info(pre + "\n" + qs);
-        spatialDataset.begin(ReadWrite.READ);
+        String storedGraph = beginRead(graphName);
         int poiCounter = 0;
         try {
-            Query q = QueryFactory.create(pre + "\n" + qs);
-            QueryExecution qexec = QueryExecutionFactory.create(q, spatialDataset);
-            ResultSet results = qexec.execSelect() ;
-            for ( ; results.hasNext() ; ) {
-                QuerySolution solution = results.nextSolution() ;
-                String poiUri = solution.getResource("s").getURI();
-                String poiName = checkUriName(poiUri);
-                String poiType = checkUriName(solution.getResource("type").getURI());
-                String poiLabel = solution.getLiteral("label").getString();
-                String poiLatitude = solution.getLiteral("lat").getString();
-                String poiLongitude = solution.getLiteral("lon").getString();
-                log.info("poi name: " + poiName + " label = " + poiLabel);
-                UriRef poiRef = new UriRef(poiName);
-                String positionUri = checkUriName(point.getUriName());
-                resultGraph.add( new TripleImpl(poiRef, schema_containedIn, new UriRef(positionUri)) );               
-                resultGraph.add( new TripleImpl(poiRef, RDFS.label, new PlainLiteralImpl(poiLabel)) );
-                resultGraph.add( new TripleImpl(poiRef, RDF.type, new UriRef(poiType)));
-                resultGraph.add( new TripleImpl(poiRef, geo_lat, new TypedLiteralImpl(poiLatitude, XSD.float_)) );
-                resultGraph.add( new TripleImpl(poiRef, geo_long, new TypedLiteralImpl(poiLongitude, XSD.float_)) );  
-                poiCounter++;
-                
-            }
-          
+            PoiIndex poiIndex = inMemoryIndex ? getPoiIndex(graphName, storedGraph) : null;
+            if (poiIndex != null) {
+                poiCounter = poiIndex.addNearby(point.getLat(), point.getLong(), radius, new UriRef(checkUriName(point.getUriName())), resultGraph);
+            }
+            else {
+                poiCounter = sparqlNearby(point, storedGraph, radius, resultGraph);
+            }
         } 
         finally {
             spatialDataset.end();
         }
-        long finishTime = System.nanoTime();
-        double time = (finishTime - startTime) / 1.0e6;
-        log.info(String.format("FINISH - %.2fms", time));
-        log.info(String.format("Found " + poiCounter + " points of interest."));
+        long time = System.nanoTime() - startTime;
+        metrics.record(Metrics.Phase.SPATIAL_QUERY, time);
+        if (queryLog.isLogged(time)) {
+            queryLog.log("nearby", time, poiCounter, point, graphName, "radius", radius);
+        }
+        return poiCounter;
+    }
+    /**
+     * Searches for the points of interest within a region, such as a district given as a polygon. The spatial index 
+     * finds the points of interest within the bounding box of the region, then each is tested against the region. 
+     * The region is kept prepared for the tests in a cache of the regions of recent searches. Points of interest 
+     * located by a geometry in Well-Known Text are found if the region covers their geometry.
+     * @param point the position the points of interest are linked to
+     * @param graphName
+     * @param wkt the region in Well-Known Text, longitude before latitude
+     * @return
+     */
+    public TripleCollection queryWithin(WGS84Point point, String graphName, String wkt){
+        TripleCollection resultGraph = new SimpleMGraph();
+        searchWithin(point, graphName, wkt, resultGraph);
         return resultGraph;
-
     }
+    
+    private int searchWithin(WGS84Point point, String graphName, String wkt, Collection<Triple> resultGraph){
+        long startTime = System.nanoTime();
+        PreparedGeometry region = regionCache.get(wkt);
+        String storedGraph = beginRead(graphName);
+        int poiCounter = 0;
+        try {
+            poiCounter = sparqlWithin(point, storedGraph, region, resultGraph);
+        } 
+        finally {
+            spatialDataset.end();
+        }
+        long time = System.nanoTime() - startTime;
+        metrics.record(Metrics.Phase.SPATIAL_QUERY, time);
+        if (queryLog.isLogged(time)) {
+            queryLog.log("within", time, poiCounter, point, graphName, "wkt", wkt);
+        }
+        return poiCounter;
+    }
+    
+    /**
+     * Searches for points of interest within the bounding box of a region with the spatial index and SPARQL, 
+     * adding the ones within the region to the result graph. Must be called within a read transaction.
+     * @return the number of points of interest within the region
+     */
+    private int sparqlWithin(WGS84Point point, String storedGraph, PreparedGeometry region, Collection<Triple> resultGraph) {
+        Set<UriRef> pois = new HashSet<UriRef>();
+        long materialization = 0;
+        Envelope box = region.getGeometry().getEnvelopeInternal();
+        QueryTemplate.Parameters parameters = new QueryTemplate.Parameters()
+                .set("graph", NodeFactory.createURI(storedGraph))
+                .set("minLat", NodeFactory.createLiteral(Double.toString(box.getMinY()), XSDDatatype.XSDdouble))
+                .set("minLong", NodeFactory.createLiteral(Double.toString(box.getMinX()), XSDDatatype.XSDdouble))
+                .set("maxLat", NodeFactory.createLiteral(Double.toString(box.getMaxY()), XSDDatatype.XSDdouble))
+                .set("maxLong", NodeFactory.createLiteral(Double.toString(box.getMaxX()), XSDDatatype.XSDdouble))
+                // all the entities within the box, a region is not cut to the default maximum of the spatial index
+                .set("limit", NodeFactory.createLiteral(Integer.toString(Integer.MAX_VALUE), XSDDatatype.XSDint));
+        UriRef position = new UriRef(checkUriName(point.getUriName()));
+        QueryIterator results = WITHIN_QUERY.execute(spatialDataset, parameters);
+        try {
+            while (results.hasNext()) {
+                Binding solution = results.nextBinding();
+                Node lat = solution.get(VAR_LAT);
+                Node lon = solution.get(VAR_LON);
+                Node wkt = solution.get(VAR_WKT);
+                Node geometry = solution.get(VAR_GEOMETRY);
+                Geometry location;
+                try {
+                    if (lat != null && lon != null) {
+                        location = regionCache.point(Double.parseDouble(lat.getLiteralLexicalForm()), Double.parseDouble(lon.getLiteralLexicalForm()));
+                    }
+                    else if (wkt != null) {
+                        location = regionCache.read(wkt.getLiteralLexicalForm());
+                    }
+                    else if (geometry != null) {
+                        location = regionCache.read(geometry.getLiteralLexicalForm());
+                    }
+                    else {
+                        // found by a pair of coordinates other than geo:lat and geo:long, not returned by the nearby search either
+                        continue;
+                    }
+                } catch (IllegalArgumentException e) {
+                    // not a number or not a geometry, not indexed by the spatial index either
+                    continue;
+                }
+                if (! region.covers(location)) {
+                    continue;
+                }
+                long rowStart = System.nanoTime();
+                UriRef poiRef = nodes.uri(solution.get(VAR_S));
+                resultGraph.add( new TripleImpl(poiRef, schema_containedIn, position) );
+                pois.add(poiRef);
+                resultGraph.add( new TripleImpl(poiRef, RDFS.label, nodes.plainLiteral(solution.get(VAR_LABEL))) );
+                resultGraph.add( new TripleImpl(poiRef, RDF.type, nodes.sharedUri(solution.get(VAR_TYPE))) );
+                if (lat != null && lon != null) {
+                    resultGraph.add( new TripleImpl(poiRef, geo_lat, nodes.typedLiteral(lat, XSD.float_)) );
+                    resultGraph.add( new TripleImpl(poiRef, geo_long, nodes.typedLiteral(lon, XSD.float_)) );
+                }
+                else if (wkt != null) {
+                    resultGraph.add( new TripleImpl(poiRef, geosparql_asWKT, nodes.typedLiteral(wkt, geosparql_wktLiteral)) );
+                }
+                else {
+                    String dataType = geometry.getLiteralDatatypeURI();
+                    resultGraph.add( new TripleImpl(poiRef, geo_geometry,
+                            dataType != null ? nodes.typedLiteral(geometry, new UriRef(dataType)) : nodes.plainLiteral(geometry)) );
+                }
+                materialization += System.nanoTime() - rowStart;
+            }
+        }
+        finally {
+            results.close();
+        }
+        metrics.record(Metrics.Phase.MATERIALIZATION, materialization);
+        return pois.size();
+    }
+    
+    /**
+     * Searches for the k points of interest nearest to a point, ordered by distance. Each point of interest is 
+     * linked to a node giving its distance in meters from the point and its rank. The search starts within 
+     * a small circle whose radius is doubled until k points of interest are found or the maximum radius 
+     * is reached, with SPARQL or with the in-memory index alike.
+     * @param point
+     * @param graphName
+     * @param k the number of points of interest to search for
+     * @param maxRadius the maximum distance in meters of the points of interest
+     * @return
+     */
+    public TripleCollection queryNearest(WGS84Point point, String graphName, int k, double maxRadius){
+        TripleCollection resultGraph = new SimpleMGraph();
+        searchNearest(point, graphName, k, maxRadius, resultGraph);
+        return resultGraph;
+    }
+    
+    private int searchNearest(WGS84Point point, String graphName, int k, double maxRadius, Collection<Triple> resultGraph){
+        long startTime = System.nanoTime();
+        UriRef position = new UriRef(checkUriName(point.getUriName()));
+        String storedGraph = beginRead(graphName);
+        int poiCounter = 0;
+        try {
+            PoiIndex poiIndex = inMemoryIndex ? getPoiIndex(graphName, storedGraph) : null;
+            if (poiIndex != null) {
+                poiCounter = poiIndex.addNearest(point.getLat(), point.getLong(), k, maxRadius, position, resultGraph);
+            }
+            else {
+                double radius = Math.min(NEAREST_START_RADIUS, maxRadius);
+                NearestPois found = sparqlNearest(point, storedGraph, radius);
+                while (found.size() < k && radius < maxRadius) {
+                    radius = Math.min(radius * 2, maxRadius);
+                    found = sparqlNearest(point, storedGraph, radius);
+                }
+                long materializationStart = System.nanoTime();
+                poiCounter = found.addTo(k, position, resultGraph);
+                metrics.recordSince(Metrics.Phase.MATERIALIZATION, materializationStart);
+            }
+        } 
+        finally {
+            spatialDataset.end();
+        }
+        long time = System.nanoTime() - startTime;
+        metrics.record(Metrics.Phase.SPATIAL_QUERY, time);
+        if (queryLog.isLogged(time)) {
+            queryLog.log("nearest", time, poiCounter, point, graphName, "k", k, "max_radius", maxRadius);
+        }
+        return poiCounter;
+    }
+    
+    /**
+     * Searches for the points of interest within a circle with the spatial index and SPARQL, with their distance 
+     * from its center. Must be called within a read transaction.
+     */
+    private NearestPois sparqlNearest(WGS84Point point, String storedGraph, double radius) {
+        NearestPois found = new NearestPois();
+        long materialization = 0;
+        QueryTemplate.Parameters parameters = new QueryTemplate.Parameters()
+                .set("graph", NodeFactory.createURI(storedGraph))
+                .set("centerLat", NodeFactory.createLiteral(Double.toString(point.getLat()), XSDDatatype.XSDdouble))
+                .set("centerLong", NodeFactory.createLiteral(Double.toString(point.getLong()), XSDDatatype.XSDdouble))
+                .set("radius", NodeFactory.createLiteral(Double.toString(radius), XSDDatatype.XSDdouble));
+        Point center = SpatialQuery.ctx.makePoint(point.getLong(), point.getLat());
+        DistanceCalculator distance = SpatialQuery.ctx.getDistCalc();
+        QueryIterator results = NEARBY_QUERY.execute(spatialDataset, parameters);
+        try {
+            while (results.hasNext()) {
+                Binding solution = results.nextBinding();
+                Node lat = solution.get(VAR_LAT);
+                Node lon = solution.get(VAR_LON);
+                double degrees;
+                try {
+                    degrees = distance.distance(center, Double.parseDouble(lon.getLiteralLexicalForm()), Double.parseDouble(lat.getLiteralLexicalForm()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                long rowStart = System.nanoTime();
+                UriRef poiRef = nodes.uri(solution.get(VAR_S));
+                found.add(poiRef, NearestPois.toMeters(degrees), Arrays.<Triple>asList(
+                        new TripleImpl(poiRef, RDFS.label, nodes.plainLiteral(solution.get(VAR_LABEL))),
+                        new TripleImpl(poiRef, RDF.type, nodes.sharedUri(solution.get(VAR_TYPE))),
+                        new TripleImpl(poiRef, geo_lat, nodes.typedLiteral(lat, XSD.float_)),
+                        new TripleImpl(poiRef, geo_long, nodes.typedLiteral(lon, XSD.float_))));
+                materialization += System.nanoTime() - rowStart;
+            }
+        }
+        finally {
+            results.close();
+        }
+        metrics.record(Metrics.Phase.MATERIALIZATION, materialization);
+        return found;
+    }
+    
+    /**
+     * Keeps the points of interest and the events of each knowledge base in in-memory indexes that answer
+     * {@link #queryNearby} and {@link #queryEventsNearby} without going through SPARQL and the spatial index. 
+     * Needs memory in proportion to the points of interest and events of the knowledge bases loaded.
+     */
+    public void setInMemoryIndex(boolean inMemoryIndex) {
+        this.inMemoryIndex = inMemoryIndex;
+        if (! inMemoryIndex) {
+            poiIndexes.clear();
+            eventIndexes.clear();
+        }
+    }
+    
+    /**
+     * Loads knowledge bases with the parsing done on other threads than the inserts into the triple store,
+     * N-Triples in parallel, and with the spatial index updated once per knowledge base.
+     * @param threads the number of threads parsing N-Triples, 0 to load knowledge bases triple by triple
+     */
+    public void setBulkLoad(int threads) {
+        bulkLoader = threads > 0 ? new BulkLoader(threads) : null;
+    }
+    
+    /**
+     * Keeps the results of the most recent searches. Positions are snapped to the given number of decimals 
+     * of a degree, so that searches around positions closer than that share their result.
+     * @param maxEntries the maximum number of results kept, 0 to keep none
+     * @param decimals the number of decimals of a degree positions are snapped to
+     */
+    public void setResultCache(int maxEntries, int decimals) {
+        resultCache = maxEntries > 0 ? new QueryResultCache(maxEntries, decimals, metrics) : null;
+    }
+    
+    /**
+     * Logs the searches slower than a threshold with their parameters and number of results, and traces 
+     * a sample of the others. The searches are not traced by default.
+     * @param traceOneIn one search in this number is traced, 0 to trace none
+     * @param slowMillis the time in milliseconds from which a search is logged as slow, 0 to log none
+     */
+    public void setQueryLog(int traceOneIn, long slowMillis) {
+        queryLog.configure(traceOneIn, slowMillis);
+    }
+    
+    /**
+     * The latencies of the phases of the searches and loads, and the counts of the points of interest 
+     * returned, of the knowledge bases loaded and evicted and of the lookups in the result cache.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+    
+    public long getCacheHitCount() {
+        return metrics.getCacheHits();
+    }
+    
+    public long getCacheMissCount() {
+        return metrics.getCacheMisses();
+    }
+    
+    public long getCacheEvictionCount() {
+        return metrics.getCacheEvictions();
+    }
+    
+    private void invalidateResults(String graphName) {
+        QueryResultCache cache = resultCache;
+        if (cache != null) {
+            cache.invalidate(graphName);
+        }
+    }
+    
+    /**
+     * Starts a read transaction on a knowledge base and returns the named graph holding its data. The graph 
+     * is resolved before the transaction starts and checked again once it has: a refresh commits the new 
+     * graph before pointing the catalog at it and drops the old one only afterwards, so a name that has not 
+     * changed across the start is in the snapshot of the transaction. Otherwise the transaction is started again.
+     */
+    private String beginRead(String graphName) {
+        while (true) {
+            String storedGraph = catalog.getStoredGraph(graphName);
+            spatialDataset.begin(ReadWrite.READ);
+            if (storedGraph.equals(catalog.getStoredGraph(graphName))) {
+                return storedGraph;
+            }
+            spatialDataset.end();
+        }
+    }
+    
+    /**
+     * Returns the in-memory index of a stored graph, building it if needed. 
+     * Must be called within a read transaction.
+     */
+    private PoiIndex getPoiIndex(String graphName, String storedGraph) {
+        PoiIndex poiIndex = poiIndexes.get(storedGraph);
+        if (poiIndex == null) {
+            poiIndex = PoiIndex.build(spatialDataset.getNamedModel(storedGraph));
+            poiIndexes.putIfAbsent(storedGraph, poiIndex);
+            // a graph dropped meanwhile by a refresh or an eviction must not stay in memory
+            if (! storedGraph.equals(catalog.getStoredGraph(graphName)) || ! catalog.contains(graphName)) {
+                poiIndexes.remove(storedGraph);
+            }
+            log.info("Indexed " + poiIndex.size() + " points of interest of graph " + graphName + " in memory.");
+        }
+        return poiIndex;
+    }
+    
+    /**
+     * Returns the in-memory index of the events of a stored graph, building it if needed. 
+     * Must be called within a read transaction.
+     */
+    private EventIndex getEventIndex(String graphName, String storedGraph) {
+        EventIndex eventIndex = eventIndexes.get(storedGraph);
+        if (eventIndex == null) {
+            eventIndex = EventIndex.build(spatialDataset.getNamedModel(storedGraph));
+            eventIndexes.putIfAbsent(storedGraph, eventIndex);
+            if (! storedGraph.equals(catalog.getStoredGraph(graphName)) || ! catalog.contains(graphName)) {
+                eventIndexes.remove(storedGraph);
+            }
+            log.info("Indexed " + eventIndex.size() + " events of graph " + graphName + " in memory.");
+        }
+        return eventIndex;
+    }
+    
+    /**
+     * Builds the in-memory indexes of a knowledge base just loaded, if such indexes are kept.
+     */
+    private void buildIndexes(String graphName) {
+        if (! inMemoryIndex) {
+            return;
+        }
+        String storedGraph = beginRead(graphName);
+        try {
+            getPoiIndex(graphName, storedGraph);
+            getEventIndex(graphName, storedGraph);
+        }
+        finally {
+            spatialDataset.end();
+        }
+    }
+    
+    /**
+     * Searches for points of interest with the spatial index and SPARQL, adding them to the result graph.
+     * Must be called within a read transaction.
+     * @return the number of points of interest found
+     */
+    private int sparqlNearby(WGS84Point point, String storedGraph, double radius, Collection<Triple> resultGraph) {
+        // a point of interest with several types or labels is found in several rows
+        Set<UriRef> pois = new HashSet<UriRef>();
+        long materialization = 0;
+        QueryTemplate.Parameters parameters = new QueryTemplate.Parameters()
+                .set("graph", NodeFactory.createURI(storedGraph))
+                .set("centerLat", NodeFactory.createLiteral(Double.toString(point.getLat()), XSDDatatype.XSDdouble))
+                .set("centerLong", NodeFactory.createLiteral(Double.toString(point.getLong()), XSDDatatype.XSDdouble))
+                .set("radius", NodeFactory.createLiteral(Double.toString(radius), XSDDatatype.XSDdouble));
+        UriRef position = new UriRef(checkUriName(point.getUriName()));
+        QueryIterator results = NEARBY_QUERY.execute(spatialDataset, parameters);
+        try {
+            while (results.hasNext()) {
+                Binding solution = results.nextBinding();
+                long rowStart = System.nanoTime();
+                UriRef poiRef = nodes.uri(solution.get(VAR_S));
+                resultGraph.add( new TripleImpl(poiRef, schema_containedIn, position) );
+                pois.add(poiRef);
+                resultGraph.add( new TripleImpl(poiRef, RDFS.label, nodes.plainLiteral(solution.get(VAR_LABEL))) );
+                resultGraph.add( new TripleImpl(poiRef, RDF.type, nodes.sharedUri(solution.get(VAR_TYPE))) );
+                resultGraph.add( new TripleImpl(poiRef, geo_lat, nodes.typedLiteral(solution.get(VAR_LAT), XSD.float_)) );
+                resultGraph.add( new TripleImpl(poiRef, geo_long, nodes.typedLiteral(solution.get(VAR_LON), XSD.float_)) );
+                materialization += System.nanoTime() - rowStart;
+            }
+        }
+        finally {
+            results.close();
+        }
+        metrics.record(Metrics.Phase.MATERIALIZATION, materialization);
+        return pois.size();
+    }
+    
     /**
      * Searches for events within a circle of a given radius, starting from a date or within a time frame. 
      * The data used is stored in a named graph.
@@ -246,78 +1189,97 @@ public class SpatialDataEnhancer {
      */
     public TripleCollection queryEventsNearby(WGS84Point point, String graphName, double radius){
         TripleCollection resultGraph = new SimpleMGraph();
-        log.info("queryNearby()");
+        queryEventsNearby(point, graphName, radius, resultGraph);
+        return resultGraph;
+    }
+    
+    private int queryEventsNearby(WGS84Point point, final String graphName, final double radius, Collection<Triple> resultGraph){
+        QueryResultCache cache = resultCache;
+        if (cache != null) {
+            return cache.get(point, KnowledgeBaseCatalog.normalize(graphName), radius, new UriRef(checkUriName(point.getUriName())), new QueryResultCache.Search() {
+                @Override
+                public void search(WGS84Point snapped, Collection<Triple> result) {
+                    searchEventsNearby(snapped, graphName, radius, result);
+                }
+            }, resultGraph);
+        }
+        return searchEventsNearby(point, graphName, radius, resultGraph);
+    }
+    
+    private int searchEventsNearby(WGS84Point point, String graphName, double radius, Collection<Triple> resultGraph){
         long startTime = System.nanoTime();
-        String pre = StrUtils.strjoinNL("PREFIX spatial: <http://jena.apache.org/spatial#>",
-                "PREFIX geo: <http://www.w3.org/2003/01/geo/wgs84_pos#>",
-                "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#>",
-                "PREFIX rdfs: <http://www.w3.org/2000/01/rdf-schema#>",
-                "PREFIX schema: <http://schema.org/>",
-                "PREFIX xsd: <http://www.w3.org/2001/XMLSchema#>");
-        
-        String qs = StrUtils.strjoinNL("SELECT * ",
-                "FROM NAMED <" + graphName + ">",
-                "WHERE { ",
-                "GRAPH <" + graphName + "> ",
-                " { ?location spatial:nearby (" + point.getLat() + " " + point.getLong() + " " + radius + " 'm') .",
-                "   ?location geo:lat ?lat ." ,
-                "   ?location geo:long ?lon . ",
-                "   ?location rdf:type ?type . ",
-                "   ?location rdfs:label ?label .",
-                "   ?event schema:location ?location .",
-                "   ?event rdfs:label ?eventLabel .",
-                "   ?event schema:startDate ?start .",
-                "   ?event schema:endDate ?end .",
-                "   FILTER(?start >= \"" + point.getStartDate() + "\"^^xsd:date && ?end <= \"" + point.getEndDate() + "\"^^xsd:date ) ",
-                " }",
-                "}");
-
-        log.info(pre + "\n" + qs);
-        spatialDataset.begin(ReadWrite.READ);
+        String storedGraph = beginRead(graphName);
         int poiCounter = 0;
         try {
-            Query q = QueryFactory.create(pre + "\n" + qs);
-            QueryExecution qexec = QueryExecutionFactory.create(q, spatialDataset);
-            ResultSet results = qexec.execSelect() ;
-            for ( ; results.hasNext() ; ) {
-                QuerySolution solution = results.nextSolution() ;
-                String poiUri = solution.getResource("location").getURI();
-                String poiName = checkUriName(poiUri);
-                String poiLabel = solution.getLiteral("label").getString();
-                String poiLatitude = solution.getLiteral("lat").getString();
-                String poiLongitude = solution.getLiteral("lon").getString();
-                log.info("poi name: " + poiName + " label = " + poiLabel);
-                UriRef poiRef = new UriRef(poiName);                
-                String positionUri = checkUriName(point.getUriName());
-                resultGraph.add( new TripleImpl(poiRef, schema_containedIn, new UriRef(positionUri)) );               
-                resultGraph.add( new TripleImpl(poiRef, RDFS.label, new PlainLiteralImpl(poiLabel)) );
-                resultGraph.add( new TripleImpl(poiRef, geo_lat, new TypedLiteralImpl(poiLatitude, XSD.float_)) );
-                resultGraph.add( new TripleImpl(poiRef, geo_long, new TypedLiteralImpl(poiLongitude, XSD.float_)) );           
-                String eventUri = solution.getResource("event").getURI();
-                String eventLabel = solution.getLiteral("eventLabel").getString();
-                String startDate = solution.getLiteral("start").getString();
-                String endDate = solution.getLiteral("end").getString();
-                UriRef eventRef = new UriRef(eventUri);
-                resultGraph.add(new TripleImpl(eventRef, RDFS.label, new PlainLiteralImpl(eventLabel)) );
-                resultGraph.add(new TripleImpl(eventRef,schema_location, poiRef));
-                resultGraph.add(new TripleImpl(poiRef,schema_event, eventRef));
-                resultGraph.add(new TripleImpl(eventRef,schema_startDate,new TypedLiteralImpl(startDate, XSD.double_)));
-                resultGraph.add(new TripleImpl(eventRef,schema_endDate,new TypedLiteralImpl(endDate, XSD.double_)));
-                poiCounter++;
-                
+            EventIndex eventIndex = inMemoryIndex ? getEventIndex(graphName, storedGraph) : null;
+            if (eventIndex != null) {
+                poiCounter = eventIndex.addNearby(point.getLat(), point.getLong(), radius, point.getStartDate(), point.getEndDate(), 
+                        new UriRef(checkUriName(point.getUriName())), resultGraph);
+            }
+            else {
+                poiCounter = sparqlEventsNearby(point, storedGraph, radius, resultGraph);
             }
-          
         } 
         finally {
             spatialDataset.end();
         }
-        long finishTime = System.nanoTime();
-        double time = (finishTime - startTime) / 1.0e6;
-        log.info(String.format("FINISH - %.2fms", time));
-        log.info(String.format("Found " + poiCounter + " points of interest."));
-        return resultGraph;
-
+        long time = System.nanoTime() - startTime;
+        metrics.record(Metrics.Phase.SPATIAL_QUERY, time);
+        if (queryLog.isLogged(time)) {
+            queryLog.log("events_nearby", time, poiCounter, point, graphName, "radius", radius, 
+                    "from", point.getStartDate(), "to", point.getEndDate());
+        }
+        return poiCounter;
+    }
+    
+    /**
+     * Searches for events with the spatial index and SPARQL, adding them to the result graph.
+     * Must be called within a read transaction.
+     * @return the number of points of interest found
+     */
+    private int sparqlEventsNearby(WGS84Point point, String storedGraph, double radius, Collection<Triple> resultGraph) {
+        // a location with several events is found in several rows
+        Set<UriRef> pois = new HashSet<UriRef>();
+        long materialization = 0;
+        QueryTemplate.Parameters parameters = new QueryTemplate.Parameters()
+                .set("graph", NodeFactory.createURI(storedGraph))
+                .set("centerLat", NodeFactory.createLiteral(Double.toString(point.getLat()), XSDDatatype.XSDdouble))
+                .set("centerLong", NodeFactory.createLiteral(Double.toString(point.getLong()), XSDDatatype.XSDdouble))
+                .set("radius", NodeFactory.createLiteral(Double.toString(radius), XSDDatatype.XSDdouble))
+                .set("from", dateNode(point.getStartDate()))
+                .set("to", dateNode(point.getEndDate()));
+        UriRef position = new UriRef(checkUriName(point.getUriName()));
+        QueryIterator results = EVENTS_NEARBY_QUERY.execute(spatialDataset, parameters);
+        try {
+            while (results.hasNext()) {
+                Binding solution = results.nextBinding();
+                long rowStart = System.nanoTime();
+                UriRef poiRef = nodes.uri(solution.get(VAR_LOCATION));
+                resultGraph.add( new TripleImpl(poiRef, schema_containedIn, position) );
+                pois.add(poiRef);
+                resultGraph.add( new TripleImpl(poiRef, RDFS.label, nodes.plainLiteral(solution.get(VAR_LABEL))) );
+                resultGraph.add( new TripleImpl(poiRef, geo_lat, nodes.typedLiteral(solution.get(VAR_LAT), XSD.float_)) );
+                resultGraph.add( new TripleImpl(poiRef, geo_long, nodes.typedLiteral(solution.get(VAR_LON), XSD.float_)) );
+                UriRef eventRef = nodes.uri(solution.get(VAR_EVENT));
+                resultGraph.add(new TripleImpl(eventRef, RDFS.label, nodes.plainLiteral(solution.get(VAR_EVENT_LABEL))) );
+                resultGraph.add(new TripleImpl(eventRef,schema_location, poiRef));
+                resultGraph.add(new TripleImpl(poiRef,schema_event, eventRef));
+                resultGraph.add(new TripleImpl(eventRef,schema_startDate, nodes.typedLiteral(solution.get(VAR_START), XSD.double_)));
+                resultGraph.add(new TripleImpl(eventRef,schema_endDate, nodes.typedLiteral(solution.get(VAR_END), XSD.double_)));
+                materialization += System.nanoTime() - rowStart;
+            }
+        }
+        finally {
+            results.close();
+        }
+        metrics.record(Metrics.Phase.MATERIALIZATION, materialization);
+        return pois.size();
+    }
+    
+    private static Node dateNode(String date) {
+        return date != null ? NodeFactory.createLiteral(date, XSDDatatype.XSDdate) : null;
     }
+    
     /**
      * Extracts the name from the URI (removes '<' and '>' )
      * @param uri
@@ -340,10 +1302,12 @@ public class SpatialDataEnhancer {
         return createDatasetByCode(indexDir);
     }
 
-    private Dataset initTDBDatasetWithLuceneSpatialIndex(File indexDir, File TDBDir) throws IOException {
+    private Dataset initTDBDatasetWithLuceneSpatialIndex(File indexDir, File TDBDir, boolean reuse) throws IOException {
         SpatialQuery.init();
-        deleteOldFiles(indexDir);
-        deleteOldFiles(TDBDir);
+        if (! reuse) {
+            deleteOldFiles(indexDir);
+            deleteOldFiles(TDBDir);
+        }
         indexDir.mkdirs();
         TDBDir.mkdir();
         return createDatasetByCode(indexDir, TDBDir);
@@ -370,26 +1334,35 @@ public class SpatialDataEnhancer {
     private Dataset joinDataset(Dataset baseDataset, File indexDir) throws IOException {
         EntityDefinition entDef = new EntityDefinition("entityField", "geoField");
 
-        // you need JTS lib in the classpath to run the examples
-        //entDef.setSpatialContextFactory(SpatialQuery.JTS_SPATIAL_CONTEXT_FACTORY_CLASS);
+        // JTS reads the polygons and other geometries in Well-Known Text of geo:geometry and geosparql:asWKT
+        entDef.setSpatialContextFactory(SpatialQuery.JTS_SPATIAL_CONTEXT_FACTORY_CLASS);
         // set custom goe predicates
-        
-        entDef.addSpatialPredicatePair(ResourceFactory.createResource("http://schema.org/latitude"), ResourceFactory.createResource("http://schema.org/longitude"));
-        /*
-        entDef.addSpatialPredicatePair(ResourceFactory.createResource("http://localhost/jena_example/#latitude_2"), ResourceFactory.createResource("http://localhost/jena_example/#longitude_2"));
-        entDef.addWKTPredicate(ResourceFactory.createResource("http://localhost/jena_example/#wkt_1"));
-        entDef.addWKTPredicate(ResourceFactory.createResource("http://localhost/jena_example/#wkt_2"));
-        */
-        // Lucene, index in File system.
-        Directory dir = FSDirectory.open(indexDir);
+        for (Property[] pair : SPATIAL_PREDICATE_PAIRS) {
+            entDef.addSpatialPredicatePair(pair[0], pair[1]);
+        }
+        Directory dir;
+        switch (indexDirectory) {
+        case MMAP:
+            dir = new MMapDirectory(indexDir);
+            break;
+        case NIO:
+            dir = new NIOFSDirectory(indexDir);
+            break;
+        case MEMORY:
+            dir = new RAMDirectory();
+            break;
+        default:
+            // Lucene, index in File system.
+            dir = FSDirectory.open(indexDir);
+        }
 
-        // Join together into a dataset
-        Dataset ds = SpatialDatasetFactory.createLucene(baseDataset, dir, entDef);
+        // Join together into a dataset, with a searcher reused across queries
+        Dataset ds = SpatialDatasetFactory.create(baseDataset, new SharedSearcherSpatialIndex(dir, entDef));
 
         return ds;
     }
     
-    private void emptyAndDeleteDirectory(File dir) {
+    static void emptyAndDeleteDirectory(File dir) {
         File[] contents = dir.listFiles();
         if (contents != null) {
             for (File content : contents) {
@@ -420,35 +1393,298 @@ public class SpatialDataEnhancer {
      * @throws Exception
      */
     public void loadKnowledgeBase(Dataset spatialDataset, String url, String graphName)  {
-        
+        checkWritable();
+        graphName = KnowledgeBaseCatalog.normalize(graphName);
         log.info("Start loading data from: " + url);
         long startTime = System.nanoTime();
-        spatialDataset.begin(ReadWrite.WRITE);
-        try {
-            Model m = spatialDataset.getNamedModel(graphName);
-            RDFDataMgr.read(m, url);
-            spatialDataset.commit();
-        } finally {
-            spatialDataset.end();
-        }
-        
         long numberOfTriples = 0;
-        
-        spatialDataset.begin(ReadWrite.READ);
-        try {
-            Model m = spatialDataset.getNamedModel(graphName);
-            numberOfTriples = m.size();
-            spatialDataset.commit();
-        } finally {
-            spatialDataset.end();
+        try (KnowledgeBaseDownload download = KnowledgeBaseDownload.open(url, null)) {
+            numberOfTriples = loadIntoGraph(spatialDataset, download, url, graphName);
+            catalog.put(new KnowledgeBaseCatalog.Entry(graphName, graphName, url, System.currentTimeMillis(), 
+                    numberOfTriples, download.getBytesRead(), download.getEtag(), download.getLastModified()));
+            metrics.addGraphLoaded(download.getBytesRead());
+            invalidateResults(graphName);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot load data from " + url, e);
         }
+        lastAccess.put(graphName, System.currentTimeMillis());
+        enforceStorageBudget(graphName);
+        buildIndexes(graphName);
 
         long finishTime = System.nanoTime();
+        metrics.record(Metrics.Phase.KNOWLEDGE_BASE_LOAD, finishTime - startTime);
         double time = (finishTime - startTime) / 1.0e6;
-        log.info(String.format("Finish loading " + numberOfTriples + " triples in graph " + graphName + " - %.2fms", time));
+        log.info(String.format("Finish loading " + numberOfTriples + " triples in graph " + graphName + " - %.2fms, %.0f triples/s", 
+                time, numberOfTriples / (time / 1000)));
        
     }
     
+    /**
+     * Reads downloaded data into a named graph in one write transaction.
+     * @return the number of triples in the graph
+     */
+    private long loadIntoGraph(Dataset spatialDataset, KnowledgeBaseDownload download, String url, String storedGraph) throws IOException {
+        writeLock.lock();
+        try {
+            spatialDataset.begin(ReadWrite.WRITE);
+            try {
+                Model m = spatialDataset.getNamedModel(storedGraph);
+                BulkLoader loader = bulkLoader;
+                if (loader != null && spatialDataset.asDatasetGraph() instanceof DatasetGraphSpatial) {
+                    // the triples go to the triple store underneath, bypassing the spatial index, which 
+                    // gets the positions afterwards and commits them once with the transaction
+                    DatasetGraphSpatial datasetGraph = (DatasetGraphSpatial) spatialDataset.asDatasetGraph();
+                    loader.load(download.getData(), download.getLang(), url, 
+                            datasetGraph.getWrapped().getGraph(NodeFactory.createURI(storedGraph)));
+                    Map<String, Shape> entities = new HashMap<String, Shape>();
+                    collectSpatialEntities(m, entities);
+                    for (Map.Entry<String, Shape> entity : entities.entrySet()) {
+                        datasetGraph.getSpatialIndex().add(entity.getKey(), entity.getValue());
+                    }
+                }
+                else {
+                    RDFDataMgr.read(m, download.getData(), url, download.getLang());
+                }
+                long numberOfTriples = m.size();
+                spatialDataset.commit();
+                return numberOfTriples;
+            } finally {
+                spatialDataset.end();
+            }
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+    
+    /**
+     * Fetches a knowledge base again if it has been modified since it was loaded. The new version is 
+     * loaded into a shadow graph that replaces the current one only once it is complete. Queries see 
+     * either the old or the new version, as they resolve the graph with {@link #beginRead}, which starts 
+     * again the transactions started while the graphs were swapped. Requests to servers that support it are conditional
+     * on the ETag or the modification date of the version loaded.
+     * @param graphName
+     * @return true if a new version has been loaded
+     */
+    public boolean refresh(String graphName) {
+        KnowledgeBaseCatalog.Entry entry = catalog.get(graphName);
+        if (readOnly || entry == null || ! refreshing.add(entry.graphName)) {
+            return false;
+        }
+        graphName = entry.graphName;
+        try (KnowledgeBaseDownload download = KnowledgeBaseDownload.open(entry.sourceUrl, entry)) {
+            if (download.isNotModified()) {
+                log.debug("Rdf data set " + graphName + " not modified.");
+                catalog.put(entry.checkedAt(System.currentTimeMillis()));
+                return false;
+            }
+            String shadowGraph = SHADOW_GRAPH_PREFIX + UUID.randomUUID();
+            long loadStart = System.nanoTime();
+            long numberOfTriples = loadIntoGraph(spatialDataset, download, entry.sourceUrl, shadowGraph);
+            catalog.put(new KnowledgeBaseCatalog.Entry(graphName, shadowGraph, entry.sourceUrl, System.currentTimeMillis(), 
+                    numberOfTriples, download.getBytesRead(), download.getEtag(), download.getLastModified()));
+            metrics.recordSince(Metrics.Phase.KNOWLEDGE_BASE_LOAD, loadStart);
+            metrics.addGraphLoaded(download.getBytesRead());
+            invalidateResults(graphName);
+            dropStoredGraph(entry.storedGraph);
+            log.info("Refreshed rdf data set " + graphName + " with " + numberOfTriples + " triples.");
+            enforceStorageBudget(graphName);
+            buildIndexes(graphName);
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot refresh data from " + entry.sourceUrl, e);
+        }
+        finally {
+            refreshing.remove(graphName);
+        }
+    }
+    
+    /**
+     * Refreshes the knowledge bases that have not been checked for longer than the given time.
+     * @param ttl time to live in milliseconds
+     */
+    public void refreshStaleGraphs(long ttl) {
+        long now = System.currentTimeMillis();
+        for (KnowledgeBaseCatalog.Entry entry : catalog.getEntries()) {
+            if (now - entry.loadedAt >= ttl) {
+                try {
+                    refresh(entry.graphName);
+                } catch (RuntimeException e) {
+                    log.warn("Refreshing " + entry.graphName + " failed, keeping the version loaded.", e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Starts refreshing the knowledge bases in the background once they are older than the given time.
+     * @param ttl time to live in milliseconds
+     */
+    public synchronized void startRefresher(final long ttl) {
+        checkWritable();
+        if (refresher != null) {
+            throw new IllegalStateException("The refresher is already running");
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "knowledge-base-refresher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.max(ttl / 10, 1000);
+        refresher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refreshStaleGraphs(ttl);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Limits the knowledge bases kept in the store. When a limit is exceeded the least recently used 
+     * knowledge bases are evicted. As TDB does not give back the disk space of deleted triples, the bytes 
+     * are counted as the size of the data downloaded rather than the size of the files on disk.  
+     * @param maxGraphs maximum number of knowledge bases, 0 for no limit
+     * @param maxTriples maximum number of triples in all knowledge bases, 0 for no limit
+     * @param maxBytes maximum number of bytes downloaded for all knowledge bases, 0 for no limit
+     */
+    public void setStorageBudget(int maxGraphs, long maxTriples, long maxBytes) {
+        this.maxGraphs = maxGraphs;
+        this.maxTriples = maxTriples;
+        this.maxBytes = maxBytes;
+        enforceStorageBudget(null);
+    }
+    
+    /**
+     * Evicts the least recently used knowledge bases until the store is within its budget.
+     * Knowledge bases being loaded or refreshed are never evicted.
+     * @param keep a knowledge base that must not be evicted, typically the one just loaded
+     */
+    private void enforceStorageBudget(String keep) {
+        while (! readOnly && isOverBudget()) {
+            String leastRecentlyUsed = null;
+            long leastRecentAccess = Long.MAX_VALUE;
+            for (KnowledgeBaseCatalog.Entry entry : catalog.getEntries()) {
+                if (entry.graphName.equals(keep) || loadsInProgress.containsKey(entry.graphName) || refreshing.contains(entry.graphName)) {
+                    continue;
+                }
+                Long accessed = lastAccess.get(entry.graphName);
+                long time = accessed != null ? accessed : entry.loadedAt;
+                if (time < leastRecentAccess) {
+                    leastRecentAccess = time;
+                    leastRecentlyUsed = entry.graphName;
+                }
+            }
+            if (leastRecentlyUsed == null) {
+                log.warn("Storage budget exceeded but no knowledge base can be evicted.");
+                return;
+            }
+            evict(leastRecentlyUsed);
+        }
+    }
+    
+    private boolean isOverBudget() {
+        return (maxGraphs > 0 && catalog.size() > maxGraphs)
+                || (maxTriples > 0 && catalog.getTotalTriples() > maxTriples)
+                || (maxBytes > 0 && catalog.getTotalBytes() > maxBytes);
+    }
+    
+    /**
+     * Removes a knowledge base from the store and from the spatial index. 
+     * It is loaded again when it is requested again.
+     */
+    public void evict(String graphName) {
+        checkWritable();
+        KnowledgeBaseCatalog.Entry entry = catalog.get(graphName);
+        if (entry == null) {
+            return;
+        }
+        graphName = entry.graphName;
+        catalog.remove(graphName);
+        lastAccess.remove(graphName);
+        invalidateResults(graphName);
+        dropStoredGraph(entry.storedGraph);
+        metrics.addGraphEvicted();
+        log.info("Evicted rdf data set " + graphName + " with " + entry.triples + " triples.");
+    }
+    
+    private void checkWritable() {
+        if (readOnly) {
+            throw new IllegalStateException("The knowledge bases of a snapshot cannot be changed");
+        }
+    }
+    
+    /**
+     * The number of knowledge bases evicted to stay within the storage budget.
+     */
+    public long getEvictionCount() {
+        return metrics.getGraphsEvicted();
+    }
+    
+    public int getGraphCount() {
+        return catalog.size();
+    }
+    
+    public long getTripleCount() {
+        return catalog.getTotalTriples();
+    }
+    
+    public long getLoadedBytes() {
+        return catalog.getTotalBytes();
+    }
+    
+    /**
+     * Removes a named graph from the triple store together with the spatial documents 
+     * of the entities that are not located in any other graph.
+     */
+    private void dropStoredGraph(String storedGraph) {
+        poiIndexes.remove(storedGraph);
+        eventIndexes.remove(storedGraph);
+        writeLock.lock();
+        try {
+            Set<String> orphans = new HashSet<String>();
+            spatialDataset.begin(ReadWrite.WRITE);
+            try {
+                Map<String, Shape> entities = new HashMap<String, Shape>();
+                collectSpatialEntities(spatialDataset.getNamedModel(storedGraph), entities);
+                spatialDataset.removeNamedModel(storedGraph);
+                for (String entity : entities.keySet()) {
+                    if (! isLocated(entity)) {
+                        orphans.add(entity);
+                    }
+                }
+                spatialDataset.commit();
+            } finally {
+                spatialDataset.end();
+            }
+            // the spatial index has no write transaction open any more 
+            deleteFromIndex(getSpatialIndex(), orphans);
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+    
+    /**
+     * Tells whether an entity has a position in any graph of the dataset.
+     */
+    private boolean isLocated(String entity) {
+        Node subject = NodeFactory.createURI(entity);
+        for (Property[] pair : SPATIAL_PREDICATE_PAIRS) {
+            if (spatialDataset.asDatasetGraph().find(Node.ANY, subject, pair[0].asNode(), Node.ANY).hasNext()) {
+                return true;
+            }
+        }
+        for (Property predicate : WKT_PREDICATES) {
+            if (spatialDataset.asDatasetGraph().find(Node.ANY, subject, predicate.asNode(), Node.ANY).hasNext()) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
     public Dataset getDataset() {
         return spatialDataset;
     }
@@ -465,21 +1701,217 @@ public class SpatialDataEnhancer {
         return connection.getInputStream();
     }
     
+    /**
+     * Tells whether a graph has been loaded, looking it up in the catalog so that no transaction is needed.
+     */
     public boolean isCachedGraph(Dataset dataset, String graphName){
-        boolean isCached = false;
-        dataset.begin(ReadWrite.READ);
+        return catalog.contains(graphName);
+    }
+    
+    /**
+     * Checks that the catalog, the TDB dataset and the Lucene spatial index agree with each other, 
+     * as they may not after a crash. Graphs in TDB that are missing from the catalog are added to it,
+     * or dropped if they are shadow graphs of an interrupted refresh, and catalog entries without a graph 
+     * are removed. Entities in TDB without a spatial document are indexed again and documents of entities 
+     * no longer in TDB are deleted. Running loads are completed before the check starts.
+     * @param repair whether the inconsistencies found should be fixed
+     * @return a description of each inconsistency found
+     */
+    public List<String> checkConsistency(boolean repair) {
+        writeLock.lock();
         try {
-            Iterator<String> inames = getDataset().listNames();
-            while(inames.hasNext()){
-                if( graphName.equals( inames.next() )) {
-                     isCached = true;  
+            List<String> problems = new ArrayList<String>();
+            Set<String> tdbGraphs = new HashSet<String>();
+            spatialDataset.begin(ReadWrite.READ);
+            try {
+                Iterator<String> inames = spatialDataset.listNames();
+                while (inames.hasNext()) {
+                    tdbGraphs.add(inames.next());
+                }
+            }
+            finally {
+                spatialDataset.end();
+            }
+            Set<String> storedGraphs = new HashSet<String>();
+            for (KnowledgeBaseCatalog.Entry entry : catalog.getEntries()) {
+                storedGraphs.add(entry.storedGraph);
+                if (! tdbGraphs.contains(entry.storedGraph)) {
+                    problems.add("Graph " + entry.graphName + " is in the catalog but not in the triple store.");
+                    if (repair) {
+                        catalog.remove(entry.graphName);
+                    }
+                }
+            }
+            for (String graphName : tdbGraphs) {
+                if (storedGraphs.contains(graphName)) {
+                    continue;
+                }
+                if (graphName.startsWith(SHADOW_GRAPH_PREFIX)) {
+                    problems.add("Graph " + graphName + " is left over from an interrupted refresh.");
+                    if (repair) {
+                        dropStoredGraph(graphName);
+                    }
+                }
+                else if (catalog.contains(graphName)) {
+                    problems.add("Graph " + graphName + " has the same normalized URL as graph " + catalog.getStoredGraph(graphName) + ".");
+                    if (repair) {
+                        dropStoredGraph(graphName);
+                    }
+                }
+                else {
+                    problems.add("Graph " + graphName + " is in the triple store but not in the catalog.");
+                    if (repair) {
+                        catalog.put(new KnowledgeBaseCatalog.Entry(graphName, graphName, System.currentTimeMillis(), countTriples(graphName)));
+                    }
+                }
+            }
+            
+            Map<String, Shape> tdbEntities = new HashMap<String, Shape>();
+            spatialDataset.begin(ReadWrite.READ);
+            try {
+                Iterator<String> inames = spatialDataset.listNames();
+                while (inames.hasNext()) {
+                    collectSpatialEntities(spatialDataset.getNamedModel(inames.next()), tdbEntities);
+                }
+            }
+            finally {
+                spatialDataset.end();
+            }
+            SpatialIndexLucene index = getSpatialIndex();
+            Set<String> indexedEntities = readIndexedEntities(index);
+            Map<String, Shape> unindexed = new HashMap<String, Shape>(tdbEntities);
+            unindexed.keySet().removeAll(indexedEntities);
+            Set<String> orphans = new HashSet<String>(indexedEntities);
+            orphans.removeAll(tdbEntities.keySet());
+            if (! unindexed.isEmpty()) {
+                problems.add(unindexed.size() + " entities in the triple store are not in the spatial index.");
+                if (repair) {
+                    index.startIndexing();
+                    for (Map.Entry<String, Shape> entity : unindexed.entrySet()) {
+                        index.add(entity.getKey(), entity.getValue());
+                    }
+                    index.finishIndexing();
+                }
+            }
+            if (! orphans.isEmpty()) {
+                problems.add(orphans.size() + " entities in the spatial index are not in the triple store.");
+                if (repair) {
+                    deleteFromIndex(index, orphans);
                 }
             }
+            return problems;
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+    
+    private long countTriples(String graphName) {
+        spatialDataset.begin(ReadWrite.READ);
+        try {
+            return spatialDataset.getNamedModel(graphName).size();
         }
         finally {
-            dataset.end();
+            spatialDataset.end();
+        }
+    }
+    
+    /**
+     * Collects the subjects of a model that have a latitude and a longitude, or a geometry in Well-Known Text,
+     * as the spatial index sees them.
+     */
+    private void collectSpatialEntities(Model model, Map<String, Shape> entities) {
+        for (Property[] pair : SPATIAL_PREDICATE_PAIRS) {
+            StmtIterator latitudes = model.listStatements(null, pair[0], (RDFNode) null);
+            try {
+                while (latitudes.hasNext()) {
+                    Statement latitude = latitudes.next();
+                    if (! latitude.getSubject().isURIResource()) {
+                        continue;
+                    }
+                    Statement longitude = latitude.getSubject().getProperty(pair[1]);
+                    if (longitude == null || ! latitude.getObject().isLiteral() || ! longitude.getObject().isLiteral()) {
+                        continue;
+                    }
+                    try {
+                        double lat = Double.parseDouble(latitude.getLiteral().getLexicalForm());
+                        double lon = Double.parseDouble(longitude.getLiteral().getLexicalForm());
+                        entities.put(latitude.getSubject().getURI(), SpatialQuery.ctx.makePoint(lon, lat));
+                    } catch (NumberFormatException e) {
+                        // not indexed by the spatial index either
+                    }
+                }
+            }
+            finally {
+                latitudes.close();
+            }
+        }
+        for (Property predicate : WKT_PREDICATES) {
+            StmtIterator geometries = model.listStatements(null, predicate, (RDFNode) null);
+            try {
+                while (geometries.hasNext()) {
+                    Statement geometry = geometries.next();
+                    if (! geometry.getSubject().isURIResource() || ! geometry.getObject().isLiteral()
+                            || entities.containsKey(geometry.getSubject().getURI())) {
+                        continue;
+                    }
+                    try {
+                        entities.put(geometry.getSubject().getURI(), SpatialQuery.ctx.readShapeFromWkt(geometry.getLiteral().getLexicalForm()));
+                    } catch (ParseException e) {
+                        // not indexed by the spatial index either
+                    } catch (RuntimeException e) {
+                        // not a shape the spatial context supports
+                    }
+                }
+            }
+            finally {
+                geometries.close();
+            }
+        }
+    }
+    
+    private SpatialIndexLucene getSpatialIndex() {
+        return (SpatialIndexLucene) spatialDataset.getContext().get(SpatialQuery.spatialIndex);
+    }
+    
+    private Set<String> readIndexedEntities(SpatialIndexLucene index) {
+        Set<String> entities = new HashSet<String>();
+        String entityField = index.getDocDef().getEntityField();
+        try {
+            if (! DirectoryReader.indexExists(index.getDirectory())) {
+                return entities;
+            }
+            try (DirectoryReader reader = DirectoryReader.open(index.getDirectory())) {
+                Bits liveDocs = MultiFields.getLiveDocs(reader);
+                for (int i = 0; i < reader.maxDoc(); i++) {
+                    if (liveDocs == null || liveDocs.get(i)) {
+                        String entity = reader.document(i).get(entityField);
+                        if (entity != null) {
+                            entities.add(entity);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read the spatial index", e);
+        }
+        return entities;
+    }
+    
+    private void deleteFromIndex(SpatialIndexLucene index, Collection<String> entities) {
+        String entityField = index.getDocDef().getEntityField();
+        IndexWriterConfig config = new IndexWriterConfig(SpatialIndexLucene.VER, index.getAnalyzer());
+        try (IndexWriter writer = new IndexWriter(index.getDirectory(), config)) {
+            for (String entity : entities) {
+                writer.deleteDocuments(new Term(entityField, entity));
+            }
+            writer.commit();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot delete from the spatial index", e);
+        }
+        if (index instanceof SharedSearcherSpatialIndex) {
+            ((SharedSearcherSpatialIndex) index).refresh();
         }
-        return isCached;
     }
 
 }
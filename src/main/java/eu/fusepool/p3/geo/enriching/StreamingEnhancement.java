@@ -0,0 +1,335 @@
+package eu.fusepool.p3.geo.enriching;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.clerezza.rdf.core.BNode;
+import org.apache.clerezza.rdf.core.TripleCollection;
+import org.apache.clerezza.rdf.core.impl.SimpleMGraph;
+import org.apache.clerezza.rdf.jena.commons.Jena2TriaUtil;
+import org.apache.jena.query.spatial.EntityDefinition;
+import org.apache.jena.riot.system.StreamRDF;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.core.Quad;
+
+/**
+ * Receives the triples of a request as they are parsed. The triples are added to the request graph
+ * straight away and the positions are picked up on the fly: a search is started as soon as the latitude,
+ * the longitude and the circle of a position are known, while the rest of the request is still being parsed.
+ * Once all triples have been received the positions are resolved as {@link SpatialDataEnhancer#getPoints}
+ * does, and the searches started with a radius or dates that turned out to be different are started again.
+ */
+class StreamingEnhancement implements StreamRDF {
+
+    private static final Node geo_lat = NodeFactory.createURI("http://www.w3.org/2003/01/geo/wgs84_pos#lat");
+    private static final Node geo_long = NodeFactory.createURI("http://www.w3.org/2003/01/geo/wgs84_pos#long");
+    private static final Node schema_geo = NodeFactory.createURI("http://schema.org/geo");
+    private static final Node schema_circle = NodeFactory.createURI("http://schema.org/circle");
+    private static final Node fp3geo_nearest = NodeFactory.createURI(NearestPois.NEAREST);
+    private static final Node schema_polygon = NodeFactory.createURI("http://schema.org/polygon");
+    private static final Node geosparql_asWKT = EntityDefinition.geosparql_asWKT.asNode();
+    private static final Node schema_location = NodeFactory.createURI("http://schema.org/location");
+    private static final Node schema_startDate = NodeFactory.createURI("http://schema.org/startDate");
+    private static final Node schema_endDate = NodeFactory.createURI("http://schema.org/endDate");
+
+    private final SpatialDataEnhancer enhancer;
+    private final String dataSetUrl;
+    private final TripleCollection requestGraph;
+    private final Jena2TriaUtil converter = new Jena2TriaUtil(new HashMap<Node, BNode>());
+
+    private final Map<Node, Location> locations = new LinkedHashMap<Node, Location>();
+    // the circle literals by circle node and the locations linked to each circle node
+    private final Map<Node, String> circles = new HashMap<Node, String>();
+    private final Map<Node, String> nearests = new HashMap<Node, String>();
+    // the regions by circle node in Well-Known Text
+    private final Map<Node, String> regions = new HashMap<Node, String>();
+    private final Map<Node, List<Node>> circleLocations = new HashMap<Node, List<Node>>();
+    private String firstCircle = null;
+    private final Map<Node, Event> events = new HashMap<Node, Event>();
+    private Node firstEvent = null;
+    private boolean locatedEvents = false;
+
+    private static class Location {
+        String latitude;
+        String longitude;
+        final List<Node> circleRefs = new ArrayList<Node>();
+        Node eventRef;
+        WGS84Point searched;
+        Future<TripleCollection> search;
+    }
+
+    private static class Event {
+        String startDate;
+        String endDate;
+    }
+
+    StreamingEnhancement(SpatialDataEnhancer enhancer, String dataSetUrl, TripleCollection requestGraph) {
+        this.enhancer = enhancer;
+        this.dataSetUrl = dataSetUrl;
+        this.requestGraph = requestGraph;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void triple(Triple triple) {
+        requestGraph.add(converter.convertTriple(triple));
+        Node subject = triple.getSubject();
+        Node predicate = triple.getPredicate();
+        Node object = triple.getObject();
+        if (predicate.equals(geo_lat) && object.isLiteral()) {
+            Location location = getLocation(subject);
+            if (location.latitude == null) {
+                location.latitude = object.getLiteralLexicalForm();
+                startSearch(subject, location);
+            }
+        }
+        else if (predicate.equals(geo_long) && object.isLiteral()) {
+            Location location = getLocation(subject);
+            if (location.longitude == null) {
+                location.longitude = object.getLiteralLexicalForm();
+                startSearch(subject, location);
+            }
+        }
+        else if (predicate.equals(schema_geo)) {
+            getLocation(subject).circleRefs.add(object);
+            List<Node> linked = circleLocations.get(object);
+            if (linked == null) {
+                linked = new ArrayList<Node>();
+                circleLocations.put(object, linked);
+            }
+            linked.add(subject);
+            startSearch(subject, getLocation(subject));
+        }
+        else if (predicate.equals(schema_circle) && object.isLiteral()) {
+            if (firstCircle == null) {
+                firstCircle = object.getLiteralLexicalForm();
+            }
+            if (! circles.containsKey(subject)) {
+                circles.put(subject, object.getLiteralLexicalForm());
+                startSearches(subject);
+            }
+        }
+        else if (predicate.equals(fp3geo_nearest) && object.isLiteral()) {
+            if (! nearests.containsKey(subject)) {
+                nearests.put(subject, object.getLiteralLexicalForm());
+                startSearches(subject);
+            }
+        }
+        else if ((predicate.equals(schema_polygon) || predicate.equals(geosparql_asWKT)) && object.isLiteral()) {
+            if (! regions.containsKey(subject)) {
+                String region = object.getLiteralLexicalForm();
+                regions.put(subject, predicate.equals(schema_polygon) ? enhancer.parsePolygon(region) : region);
+                startSearches(subject);
+            }
+        }
+        else if (predicate.equals(schema_location)) {
+            locatedEvents = true;
+            Location location = getLocation(object);
+            if (location.eventRef == null) {
+                location.eventRef = subject;
+            }
+        }
+        else if (predicate.equals(schema_startDate) && object.isLiteral()) {
+            Event event = getEvent(subject);
+            if (event.startDate == null) {
+                event.startDate = object.getLiteralLexicalForm();
+            }
+            if (firstEvent == null) {
+                firstEvent = subject;
+            }
+        }
+        else if (predicate.equals(schema_endDate) && object.isLiteral()) {
+            Event event = getEvent(subject);
+            if (event.endDate == null) {
+                event.endDate = object.getLiteralLexicalForm();
+            }
+        }
+    }
+
+    @Override
+    public void quad(Quad quad) {
+        triple(quad.asTriple());
+    }
+
+    @Override
+    public void base(String base) {
+    }
+
+    @Override
+    public void prefix(String prefix, String iri) {
+    }
+
+    @Override
+    public void finish() {
+    }
+
+    /**
+     * Resolves all positions received, starts the searches still missing and collects the points
+     * of interest found once all searches are done.
+     * @return the points of interest found
+     */
+    TripleCollection complete() {
+        TripleCollection poiGraph = new SimpleMGraph();
+        for (Map.Entry<Node, Location> entry : locations.entrySet()) {
+            Location location = entry.getValue();
+            if (location.latitude == null || location.longitude == null) {
+                continue;
+            }
+            WGS84Point point = resolve(entry.getKey(), location, true);
+            if (location.search == null || ! isSameSearch(location.searched, point)) {
+                if (location.search != null) {
+                    location.search.cancel(false);
+                }
+                location.searched = point;
+                location.search = enhancer.submitQuery(point, dataSetUrl);
+            }
+        }
+        try {
+            for (Location location : locations.values()) {
+                if (location.search != null) {
+                    poiGraph.addAll(location.search.get());
+                }
+            }
+        } catch (InterruptedException e) {
+            cancel();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while searching " + dataSetUrl, e);
+        } catch (ExecutionException e) {
+            cancel();
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        return poiGraph;
+    }
+
+    /**
+     * Cancels the searches started, for a request that cannot be answered.
+     */
+    void cancel() {
+        for (Location location : locations.values()) {
+            if (location.search != null) {
+                location.search.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Starts the searches for the positions linked to a circle node.
+     */
+    private void startSearches(Node circleRef) {
+        List<Node> linked = circleLocations.get(circleRef);
+        if (linked != null) {
+            for (Node locationRef : linked) {
+                startSearch(locationRef, getLocation(locationRef));
+            }
+        }
+    }
+
+    /**
+     * Starts the search for a position once its latitude, longitude and circle, number of nearest
+     * points of interest or region are known.
+     */
+    private void startSearch(Node locationRef, Location location) {
+        if (location.search != null || location.latitude == null || location.longitude == null) {
+            return;
+        }
+        WGS84Point point = resolve(locationRef, location, false);
+        if (point != null) {
+            location.searched = point;
+            location.search = enhancer.submitQuery(point, dataSetUrl);
+        }
+    }
+
+    /**
+     * Creates the point to search for a position.
+     * @param complete whether all triples have been received, if not null is returned when none of the circle,
+     * the number of nearest points of interest and the region of the position is known yet
+     */
+    private WGS84Point resolve(Node locationRef, Location location, boolean complete) {
+        WGS84Point point = new WGS84Point();
+        point.setUri(converter.convertNonLiteral(locationRef).toString());
+        point.setLat(Double.valueOf(location.latitude));
+        point.setLong(Double.valueOf(location.longitude));
+        String circle = null;
+        String nearest = null;
+        String region = null;
+        for (Node circleRef : location.circleRefs) {
+            if (region == null && regions.containsKey(circleRef)) {
+                region = regions.get(circleRef);
+            }
+            if (circle == null && circles.containsKey(circleRef)) {
+                circle = circles.get(circleRef);
+            }
+            if (nearest == null && nearests.containsKey(circleRef)) {
+                nearest = nearests.get(circleRef);
+            }
+        }
+        point.setRegion(region);
+        if (nearest != null) {
+            point.setNearest(enhancer.parseNearest(nearest));
+            if (circle == null) {
+                point.setRadius(NearestPois.MAX_RADIUS);
+            }
+        }
+        else if (circle == null) {
+            if (! complete && region == null) {
+                return null;
+            }
+            circle = firstCircle;
+        }
+        if (circle != null) {
+            point.setRadius(enhancer.parseRadius(circle));
+        }
+        Node eventRef = locatedEvents ? location.eventRef : firstEvent;
+        if (eventRef != null && events.containsKey(eventRef)) {
+            Event event = events.get(eventRef);
+            point.setStartDate(event.startDate);
+            point.setEndDate(event.endDate);
+        }
+        return point;
+    }
+
+    private static boolean isSameSearch(WGS84Point searched, WGS84Point point) {
+        return searched.getRadius() == point.getRadius()
+                && searched.getNearest() == point.getNearest()
+                && equals(searched.getRegion(), point.getRegion())
+                && equals(searched.getStartDate(), point.getStartDate())
+                && equals(searched.getEndDate(), point.getEndDate());
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private Location getLocation(Node locationRef) {
+        Location location = locations.get(locationRef);
+        if (location == null) {
+            location = new Location();
+            locations.put(locationRef, location);
+        }
+        return location;
+    }
+
+    private Event getEvent(Node eventRef) {
+        Event event = events.get(eventRef);
+        if (event == null) {
+            event = new Event();
+            events.put(eventRef, event);
+        }
+        return event;
+    }
+
+}
@@ -9,6 +9,9 @@ public class WGS84Point {
 	private String uriName;
 	private String startDate;
 	private String endDate;
+	private double radius = 500.0; // default value for radius in meters
+	private int nearest = 0;
+	private String region;
 	
 	public String getStartDate() {
         return startDate;
@@ -26,6 +29,39 @@ public class WGS84Point {
         this.endDate = endDate;
     }
 
+	/**
+	 * The radius in meters of the circle around the point within which to search.
+	 */
+	public double getRadius() {
+	    return radius;
+	}
+	
+	public void setRadius(double radius) {
+	    this.radius = radius;
+	}
+	
+	/**
+	 * The number of nearest points of interest to search for within the radius, 0 to search for all of them.
+	 */
+	public int getNearest() {
+	    return nearest;
+	}
+	
+	public void setNearest(int nearest) {
+	    this.nearest = nearest;
+	}
+	
+	/**
+	 * The region to search within as Well-Known Text, longitude before latitude, null to search around the point.
+	 */
+	public String getRegion() {
+	    return region;
+	}
+	
+	public void setRegion(String region) {
+	    this.region = region;
+	}
+	
 	public String getUriName(){
 	    return uriName;
 	}
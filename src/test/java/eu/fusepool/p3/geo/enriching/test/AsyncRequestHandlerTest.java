@@ -0,0 +1,167 @@
+package eu.fusepool.p3.geo.enriching.test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.fusepool.p3.geo.enriching.AsyncRequestHandler;
+import eu.fusepool.p3.geo.enriching.GeoEnrichingTransformerFactory;
+import eu.fusepool.p3.geo.enriching.Metrics;
+import eu.fusepool.p3.geo.enriching.SpatialDataEnhancer;
+import eu.fusepool.p3.transformer.server.handler.TransformerFactoryHandler;
+
+/**
+ * Requests are handled by the workers once their knowledge base is loaded, without holding a thread of 
+ * the server. Requests beyond the workers and the queue, or waiting past their deadline, are answered with 503.
+ */
+public class AsyncRequestHandlerTest {
+
+    private static final String REQUEST = "@prefix geo: <http://www.w3.org/2003/01/geo/wgs84_pos#> .\n"
+            + "<urn:place:test> geo:lat 46.0672 ; geo:long 11.12 .\n";
+
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final ExecutorService clients = Executors.newCachedThreadPool();
+    private SpatialDataEnhancer enhancer;
+    private Metrics metrics;
+    private Server server;
+    private String url;
+
+    @Before
+    public void setUp() throws Exception {
+        enhancer = new SpatialDataEnhancer();
+        metrics = enhancer.getMetrics();
+    }
+
+    private void start(AsyncRequestHandler handler, int threads) throws Exception {
+        int port = findFreePort();
+        url = "http://localhost:" + port + "/";
+        server = new Server(new QueuedThreadPool(threads));
+        ServerConnector connector = new ServerConnector(server, 1, 1);
+        connector.setPort(port);
+        server.addConnector(connector);
+        server.setHandler(handler);
+        server.start();
+    }
+
+    @Test
+    public void testShedding() throws Exception {
+        // one worker, one request waiting at most half a second
+        AsyncRequestHandler handler = new AsyncRequestHandler(enhancer, 1, 1, 500, 1);
+        handler.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+                    throws IOException, ServletException {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                response.setStatus(HttpServletResponse.SC_OK);
+                baseRequest.setHandled(true);
+            }
+        });
+        start(handler, 8);
+        Future<Integer> first = clients.submit(request());
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        Future<Integer> waiting = clients.submit(request());
+        Thread.sleep(100);
+        // the worker is busy and the queue full
+        HttpURLConnection rejected = (HttpURLConnection) new URL(url).openConnection();
+        Assert.assertEquals(503, rejected.getResponseCode());
+        Assert.assertEquals("1", rejected.getHeaderField("Retry-After"));
+        // the request waiting is rejected at its deadline
+        Assert.assertEquals(503, waiting.get(5, TimeUnit.SECONDS).intValue());
+        release.countDown();
+        Assert.assertEquals(200, first.get(5, TimeUnit.SECONDS).intValue());
+        Assert.assertEquals(2, metrics.getRequestsRejected());
+        // with the worker free requests are handled again
+        Assert.assertEquals(200, request().call().intValue());
+    }
+
+    @Test
+    public void testManyRequestsOnColdKnowledgeBase() throws Exception {
+        String dataUrl = getClass().getResource("farmacie-trentino-uuid.ttl").toString();
+        AsyncRequestHandler handler = new AsyncRequestHandler(enhancer, 2, 100, 0, 1);
+        handler.setHandler(new TransformerFactoryHandler(new GeoEnrichingTransformerFactory(enhancer)));
+        // fewer threads than requests, the requests waiting for the knowledge base are suspended
+        start(handler, 8);
+        final String requestUrl = url + "?graph=" + URLEncoder.encode(dataUrl, "UTF-8");
+        List<Future<Integer>> responses = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < 50; i++) {
+            responses.add(clients.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    HttpURLConnection connection = (HttpURLConnection) new URL(requestUrl).openConnection();
+                    connection.setRequestMethod("POST");
+                    connection.setRequestProperty("Content-Type", "text/turtle");
+                    connection.setDoOutput(true);
+                    OutputStream out = connection.getOutputStream();
+                    out.write(REQUEST.getBytes("UTF-8"));
+                    out.close();
+                    return connection.getResponseCode();
+                }
+            }));
+        }
+        for (Future<Integer> response : responses) {
+            Assert.assertEquals(200, response.get(60, TimeUnit.SECONDS).intValue());
+        }
+        Assert.assertEquals(1, metrics.getGraphsLoaded());
+        Assert.assertEquals(0, metrics.getRequestsRejected());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        clients.shutdownNow();
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    private Callable<Integer> request() {
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+                return connection.getResponseCode();
+            }
+        };
+    }
+
+    private static int findFreePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+}
@@ -0,0 +1,131 @@
+package eu.fusepool.p3.geo.enriching.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.clerezza.rdf.core.Triple;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.ReadWrite;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.NodeIterator;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+import eu.fusepool.p3.geo.enriching.SpatialDataEnhancer;
+import eu.fusepool.p3.geo.enriching.WGS84Point;
+
+/**
+ * Knowledge bases loaded in bulk must be the same as loaded triple by triple. Also compares the time
+ * both take on a synthetic knowledge base in N-Triples, large enough to be parsed in several chunks.
+ */
+public class BulkLoadTest {
+
+    private static final String[] DATASETS = { "farmacie-trentino-uuid.ttl", "local-business-trento-uuid.ttl", "spatial-data-latlong.ttl" };
+    private static final int SYNTHETIC_POIS = 10000;
+    private static final double[][] CIRCLES = {
+        { 46.0672, 11.12, 500 },
+        { 46.07, 11.13, 5000 },
+        { 46.2, 11.2, 50000 },
+        { 41.79, 12.24, 10000 }
+    };
+
+    private static File synthetic;
+
+    @BeforeClass
+    public static void writeSyntheticKnowledgeBase() throws IOException {
+        synthetic = File.createTempFile("synthetic-", ".nt");
+        Random random = new Random(42);
+        try (PrintWriter out = new PrintWriter(synthetic, "UTF-8")) {
+            for (int i = 0; i < SYNTHETIC_POIS; i++) {
+                String poi = "<urn:poi:" + i + ">";
+                out.println(poi + " <http://www.w3.org/1999/02/22-rdf-syntax-ns#type> <http://schema.org/Place> .");
+                out.println(poi + " <http://www.w3.org/2000/01/rdf-schema#label> \"Place " + i + "\" .");
+                out.println(poi + " <http://www.w3.org/2003/01/geo/wgs84_pos#lat> \"" + (45.7 + random.nextDouble())
+                        + "\"^^<http://www.w3.org/2001/XMLSchema#double> .");
+                out.println(poi + " <http://www.w3.org/2003/01/geo/wgs84_pos#long> \"" + (10.6 + random.nextDouble())
+                        + "\"^^<http://www.w3.org/2001/XMLSchema#double> .");
+                out.println(poi + " <http://schema.org/address> _:address" + i + " .");
+                out.println("_:address" + i + " <http://www.w3.org/2000/01/rdf-schema#label> \"Street " + i + "\" .");
+            }
+        }
+    }
+
+    @AfterClass
+    public static void deleteSyntheticKnowledgeBase() {
+        synthetic.delete();
+    }
+
+    @Test
+    public void testSameAsTripleByTriple() throws Exception {
+        SpatialDataEnhancer tripleByTriple = new SpatialDataEnhancer();
+        SpatialDataEnhancer bulk = new SpatialDataEnhancer();
+        bulk.setBulkLoad(2);
+        for (String dataset : DATASETS) {
+            String dataUrl = getClass().getResource(dataset).toString();
+            tripleByTriple.ensureKnowledgeBase(dataUrl);
+            bulk.ensureKnowledgeBase(dataUrl);
+            for (double[] circle : CIRCLES) {
+                WGS84Point point = createPoint(circle[0], circle[1]);
+                Assert.assertEquals("Different results in " + dataset + " around " + circle[0] + " " + circle[1],
+                        new HashSet<Triple>(tripleByTriple.queryNearby(point, dataUrl, circle[2])),
+                        new HashSet<Triple>(bulk.queryNearby(point, dataUrl, circle[2])));
+            }
+        }
+        Assert.assertEquals(tripleByTriple.getTripleCount(), bulk.getTripleCount());
+    }
+
+    @Test
+    public void testSyntheticKnowledgeBase() throws Exception {
+        String dataUrl = synthetic.toURI().toString();
+        SpatialDataEnhancer tripleByTriple = new SpatialDataEnhancer();
+        tripleByTriple.ensureKnowledgeBase(dataUrl);
+        SpatialDataEnhancer bulk = new SpatialDataEnhancer();
+        bulk.setBulkLoad(Runtime.getRuntime().availableProcessors());
+        bulk.ensureKnowledgeBase(dataUrl);
+        long triples = bulk.getTripleCount();
+        Assert.assertEquals(SYNTHETIC_POIS * 6, triples);
+        Assert.assertEquals(tripleByTriple.getTripleCount(), triples);
+        // the blank nodes of all chunks are the same nodes
+        Assert.assertEquals(SYNTHETIC_POIS, countAddresses(bulk.getDataset(), dataUrl));
+        Set<Triple> expected = new HashSet<Triple>(tripleByTriple.queryNearby(createPoint(46.2, 11.1), dataUrl, 2000));
+        Assert.assertFalse(expected.isEmpty());
+        Assert.assertEquals(expected, new HashSet<Triple>(bulk.queryNearby(createPoint(46.2, 11.1), dataUrl, 2000)));
+    }
+
+    private long countAddresses(Dataset dataset, String graphName) {
+        dataset.begin(ReadWrite.READ);
+        try {
+            Model model = dataset.getNamedModel(graphName);
+            Set<RDFNode> addresses = new HashSet<RDFNode>();
+            NodeIterator objects = model.listObjectsOfProperty(model.createProperty("http://schema.org/address"));
+            while (objects.hasNext()) {
+                RDFNode address = objects.next();
+                if (address.asResource().hasProperty(RDFS.label)) {
+                    addresses.add(address);
+                }
+            }
+            return addresses.size();
+        }
+        finally {
+            dataset.end();
+        }
+    }
+
+    private static WGS84Point createPoint(double lat, double lon) {
+        WGS84Point point = new WGS84Point();
+        point.setUri("http://example.org/position");
+        point.setLat(lat);
+        point.setLong(lon);
+        return point;
+    }
+
+}
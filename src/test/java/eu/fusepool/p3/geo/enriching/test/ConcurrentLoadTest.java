@@ -0,0 +1,140 @@
+package eu.fusepool.p3.geo.enriching.test;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.clerezza.rdf.core.MGraph;
+import org.apache.clerezza.rdf.core.TripleCollection;
+import org.apache.clerezza.rdf.core.UriRef;
+import org.apache.clerezza.rdf.core.impl.PlainLiteralImpl;
+import org.apache.clerezza.rdf.core.impl.SimpleMGraph;
+import org.apache.clerezza.rdf.core.impl.TypedLiteralImpl;
+import org.apache.clerezza.rdf.ontologies.XSD;
+import org.apache.clerezza.rdf.utils.GraphNode;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpStatus;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import eu.fusepool.p3.geo.enriching.SpatialDataEnhancer;
+import eu.fusepool.p3.geo.enriching.WGS84Point;
+
+/**
+ * Many threads asking for the same cold knowledge base at once.
+ */
+public class ConcurrentLoadTest {
+
+    private static final UriRef LONG = new UriRef("http://www.w3.org/2003/01/geo/wgs84_pos#long");
+    private static final UriRef LAT = new UriRef("http://www.w3.org/2003/01/geo/wgs84_pos#lat");
+    private static final UriRef schema_circle = new UriRef("http://schema.org/circle");
+    private static final UriRef schema_containedIn = new UriRef("http://schema.org/containedIn");
+
+    private static final int THREADS = 16;
+
+    private static int mockPort = 0;
+    private byte[] mockServerDataSet;
+    private SpatialDataEnhancer enhancer;
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(mockPort);
+
+    @BeforeClass
+    public static void setMockPort() {
+        mockPort = GeoEnrichingTransformerTest.findFreePort();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mockServerDataSet = IOUtils.toByteArray(getClass().getResourceAsStream("spatial-data-latlong.ttl"));
+        enhancer = new SpatialDataEnhancer();
+    }
+
+    @Test
+    public void testSingleLoadForConcurrentRequests() throws Exception {
+        stubFor(get(urlEqualTo("/data/cold.ttl"))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withHeader("Content-Type", "text/turtle")
+                    .withFixedDelay(500)
+                    .withBody(mockServerDataSet)));
+        final String dataUrl = "http://localhost:" + mockPort + "/data/cold.ttl";
+        final UriRef position = new UriRef("http://example.org/position");
+        final TripleCollection clientGraph = createClientGraph(position);
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<TripleCollection>> results = new ArrayList<Future<TripleCollection>>();
+        for (int i = 0; i < THREADS; i++) {
+            results.add(executor.submit(new Callable<TripleCollection>() {
+                @Override
+                public TripleCollection call() throws Exception {
+                    start.await();
+                    return enhancer.enhance(dataUrl, clientGraph);
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<TripleCollection> result : results) {
+            Assert.assertTrue("No point of interest found", result.get().filter(null, schema_containedIn, position).hasNext());
+        }
+        executor.shutdown();
+        verify(1, getRequestedFor(urlEqualTo("/data/cold.ttl")));
+    }
+
+    @Test
+    public void testQueryWhileLoadingOtherGraph() throws Exception {
+        stubFor(get(urlEqualTo("/data/warm.ttl"))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withHeader("Content-Type", "text/turtle")
+                    .withBody(mockServerDataSet)));
+        stubFor(get(urlEqualTo("/data/slow.ttl"))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withHeader("Content-Type", "text/turtle")
+                    .withFixedDelay(3000)
+                    .withBody(mockServerDataSet)));
+        final String warmUrl = "http://localhost:" + mockPort + "/data/warm.ttl";
+        final String slowUrl = "http://localhost:" + mockPort + "/data/slow.ttl";
+        enhancer.ensureKnowledgeBase(warmUrl);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> slowLoad = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                enhancer.ensureKnowledgeBase(slowUrl);
+            }
+        });
+        while (! enhancer.isLoading(slowUrl) && ! slowLoad.isDone()) {
+            Thread.sleep(10);
+        }
+        WGS84Point point = new WGS84Point();
+        point.setUri("http://geo.org/?lat=41.79,lon=12.24");
+        point.setLat(41.79);
+        point.setLong(12.24);
+        Assert.assertFalse(enhancer.queryNearby(point, warmUrl, 10000.0).isEmpty());
+        Assert.assertTrue("Query waited for the load of another graph", enhancer.isLoading(slowUrl));
+        slowLoad.get();
+        executor.shutdown();
+    }
+
+    private TripleCollection createClientGraph(UriRef position) {
+        final MGraph graph = new SimpleMGraph();
+        final GraphNode node = new GraphNode(position, graph);
+        node.addProperty(LAT, new TypedLiteralImpl("41.79", XSD.double_));
+        node.addProperty(LONG, new TypedLiteralImpl("12.24", XSD.double_));
+        node.addProperty(schema_circle, new PlainLiteralImpl("41.79 12.24 10000"));
+        return graph;
+    }
+
+}
@@ -14,6 +14,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import com.jayway.restassured.RestAssured;
+import com.jayway.restassured.path.json.JsonPath;
 
 import eu.fusepool.p3.transformer.server.TransformerServer;
 
@@ -21,6 +22,7 @@ import com.github.tomakehurst.wiremock.junit.WireMockRule;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
 import eu.fusepool.p3.geo.enriching.GeoEnrichingTransformerFactory;
+import eu.fusepool.p3.geo.enriching.SpatialDataEnhancer;
 import eu.fusepool.p3.transformer.client.Transformer;
 import eu.fusepool.p3.transformer.client.TransformerClientImpl;
 import eu.fusepool.p3.transformer.commons.Entity;
@@ -32,7 +34,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
 import java.net.URLEncoder;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -259,6 +265,125 @@ public class GeoEnrichingTransformerTest {
 	}
     
 	
+    /**
+     * With long running loads a request on a knowledge base that is not cached gets a job to poll, 
+     * once the knowledge base is cached requests are answered synchronously.
+     */
+    @Test
+    public void testLongRunningColdLoad() throws Exception {
+        stubFor(get(urlEqualTo("/data/farmacie-trentino-uuid.ttl"))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withHeader("Content-Type", "text/turtle")
+                    .withBody(mockServerDataSet1)));
+        final int port = findFreePort();
+        TransformerServer server = new TransformerServer(port);
+        server.start(new GeoEnrichingTransformerFactory(new SpatialDataEnhancer(), true));
+        final MGraph graphToEnrich = new SimpleMGraph();
+        final UriRef res = new UriRef("http://example.org/res1");
+        final GraphNode node = new GraphNode(res, graphToEnrich);
+        node.addProperty(LAT, new TypedLiteralImpl("46.2220374200606", XSD.float_));
+        node.addProperty(LONG, new TypedLiteralImpl("10.7963137713743", XSD.float_));
+        node.addProperty(schema_circle, new PlainLiteralImpl("46.222 10.796 10000"));
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Serializer.getInstance().serialize(baos, graphToEnrich, "text/turtle");
+        String dataUrl = "http://localhost:" + mockPort + "/data/farmacie-trentino-uuid.ttl";
+        URL transformerUrl = new URL("http://localhost:" + port + "/?graph=" + URLEncoder.encode(dataUrl, "UTF-8"));
+        
+        HttpURLConnection connection = post(transformerUrl, baos.toByteArray());
+        Assert.assertEquals("Cold knowledge base not handled as long running", HttpStatus.SC_ACCEPTED, connection.getResponseCode());
+        URL jobUrl = new URL(transformerUrl, connection.getHeaderField("Location"));
+        long deadline = System.currentTimeMillis() + 60000;
+        do {
+            if (System.currentTimeMillis() > deadline) {
+                Assert.fail("The long running request did not complete");
+            }
+            Thread.sleep(100);
+            connection = (HttpURLConnection) jobUrl.openConnection();
+            connection.setRequestProperty("Accept", "text/turtle");
+        } while (connection.getResponseCode() == HttpStatus.SC_ACCEPTED);
+        Assert.assertEquals(HttpStatus.SC_OK, connection.getResponseCode());
+        Graph responseGraph = Parser.getInstance().parse(connection.getInputStream(), "text/turtle");
+        Assert.assertTrue("No base_near property on res1 in response", responseGraph.filter(null, schema_containedIn, res).hasNext());
+        
+        connection = post(transformerUrl, baos.toByteArray());
+        Assert.assertEquals("Cached knowledge base not answered synchronously", HttpStatus.SC_OK, connection.getResponseCode());
+        responseGraph = Parser.getInstance().parse(connection.getInputStream(), "text/turtle");
+        Assert.assertTrue("No base_near property on res1 in response", responseGraph.filter(null, schema_containedIn, res).hasNext());
+        verify(1, getRequestedFor(urlEqualTo("/data/farmacie-trentino-uuid.ttl")));
+    }
+    
+    /**
+     * Clients preferring GeoJSON get the points of interest found as features, the same as in Turtle. 
+     * The size and time to the first flush of both responses are compared in RequestBenchmark.
+     */
+    @Test
+    public void testGeoJson() throws Exception {
+        stubFor(get(urlEqualTo("/data/farmacie-trentino-uuid.ttl"))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withHeader("Content-Type", "text/turtle")
+                    .withBody(mockServerDataSet1)));
+        final MGraph graphToEnrich = new SimpleMGraph();
+        for (int i = 0; i < 20; i++) {
+            final GraphNode node = new GraphNode(new UriRef("http://example.org/res" + i), graphToEnrich);
+            node.addProperty(LAT, new TypedLiteralImpl(Double.toString(45.9 + i * 0.02), XSD.double_));
+            node.addProperty(LONG, new TypedLiteralImpl(Double.toString(11.0 + i * 0.01), XSD.double_));
+            node.addProperty(schema_circle, new PlainLiteralImpl((45.9 + i * 0.02) + " " + (11.0 + i * 0.01) + " 5000"));
+        }
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        Serializer.getInstance().serialize(baos, graphToEnrich, "text/turtle");
+        String dataUrl = "http://localhost:" + mockPort + "/data/farmacie-trentino-uuid.ttl";
+        URL transformerUrl = new URL(transformerBaseUri + "?graph=" + URLEncoder.encode(dataUrl, "UTF-8"));
+        // loads the knowledge base
+        Assert.assertEquals(HttpStatus.SC_OK, post(transformerUrl, baos.toByteArray()).getResponseCode());
+        
+        HttpURLConnection connection = post(transformerUrl, baos.toByteArray(), "text/turtle");
+        Graph responseGraph = Parser.getInstance().parse(connection.getInputStream(), "text/turtle");
+        
+        connection = post(transformerUrl, baos.toByteArray(), "application/vnd.geo+json, text/turtle;q=0.5");
+        ByteArrayOutputStream geoJsonData = new ByteArrayOutputStream();
+        IOUtils.copy(connection.getInputStream(), geoJsonData);
+        Assert.assertEquals("application/vnd.geo+json", connection.getContentType());
+        
+        JsonPath geoJson = JsonPath.from(geoJsonData.toString("UTF-8"));
+        Assert.assertEquals("FeatureCollection", geoJson.getString("type"));
+        List<Map<String, Object>> features = geoJson.getList("features");
+        Assert.assertFalse(features.isEmpty());
+        Assert.assertEquals(count(responseGraph.filter(null, schema_containedIn, null)), features.size());
+        for (Map<String, Object> feature : features) {
+            Assert.assertEquals("Point", ((Map<?, ?>) feature.get("geometry")).get("type"));
+            UriRef poi = new UriRef((String) feature.get("id"));
+            UriRef position = new UriRef((String) ((Map<?, ?>) feature.get("properties")).get("containedIn"));
+            Assert.assertTrue(responseGraph.filter(poi, schema_containedIn, position).hasNext());
+        }
+    }
+    
+    private static int count(Iterator<Triple> triples) {
+        int count = 0;
+        while (triples.hasNext()) {
+            triples.next();
+            count++;
+        }
+        return count;
+    }
+    
+    private HttpURLConnection post(URL url, byte[] data) throws IOException {
+        return post(url, data, "text/turtle");
+    }
+    
+    private HttpURLConnection post(URL url, byte[] data, String accept) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "text/turtle");
+        connection.setRequestProperty("Accept", accept);
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(data);
+        }
+        return connection;
+    }
+	
 	public static int findFreePort() {
         int port = 0;
         try (ServerSocket server = new ServerSocket(0);) {
@@ -0,0 +1,150 @@
+package eu.fusepool.p3.geo.enriching.test;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.clerezza.rdf.core.Triple;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import eu.fusepool.p3.geo.enriching.SpatialDataEnhancer;
+import eu.fusepool.p3.geo.enriching.WGS84Point;
+
+/**
+ * The in-memory index of points of interest must find what the SPARQL query finds.
+ */
+public class InMemoryIndexTest {
+
+    private static final String[] DATASETS = { "farmacie-trentino-uuid.ttl", "local-business-trento-uuid.ttl", "spatial-data-latlong.ttl" };
+    // latitude, longitude and radius in meters of the circles searched
+    private static final double[][] CIRCLES = {
+        { 46.0672, 11.12, 100 },
+        { 46.0672, 11.12, 500 },
+        { 46.0672, 11.12, 2000 },
+        { 46.07, 11.13, 5000 },
+        { 46.2, 11.2, 50000 },
+        { 41.79, 12.24, 10000 },
+        { 0, 0, 1000 }
+    };
+    // start and end dates of the time frames searched for events, null for an open one
+    private static final String[][] TIME_FRAMES = {
+        { "2015-02-01", "2015-02-28" },
+        { "2015-02-13", "2015-02-13" },
+        { "2014-01-01", "2015-12-31" },
+        { "2014-12-01", "2014-12-24" },
+        { "2014-12-02", "2014-12-24" },
+        { "2016-01-01", "2016-01-31" },
+        { "2015-03-01", "2015-02-01" },
+        { "2015-02-01", null },
+        { null, "2015-02-13" }
+    };
+    private static final String EVENTS = "events-trento.ttl";
+
+    private static SpatialDataEnhancer enhancer;
+
+    @BeforeClass
+    public static void loadDatasets() throws Exception {
+        enhancer = new SpatialDataEnhancer();
+        for (String dataset : DATASETS) {
+            enhancer.ensureKnowledgeBase(dataUrl(dataset));
+        }
+        enhancer.ensureKnowledgeBase(dataUrl(EVENTS));
+    }
+
+    @Test
+    public void testSameResultsAsSparql() throws Exception {
+        int nonEmpty = 0;
+        for (String dataset : DATASETS) {
+            for (double[] circle : CIRCLES) {
+                WGS84Point point = createPoint(circle[0], circle[1]);
+                enhancer.setInMemoryIndex(false);
+                Set<Triple> sparqlResult = new HashSet<Triple>(enhancer.queryNearby(point, dataUrl(dataset), circle[2]));
+                enhancer.setInMemoryIndex(true);
+                Set<Triple> indexResult = new HashSet<Triple>(enhancer.queryNearby(point, dataUrl(dataset), circle[2]));
+                Assert.assertEquals("Different results in " + dataset + " around " + circle[0] + " " + circle[1] + " within " + circle[2] + "m",
+                        sparqlResult, indexResult);
+                if (! sparqlResult.isEmpty()) {
+                    nonEmpty++;
+                }
+            }
+        }
+        Assert.assertTrue("Too few searches with results to compare", nonEmpty >= 6);
+    }
+
+    @Test
+    public void testSameEventsAsSparql() throws Exception {
+        int nonEmpty = 0;
+        for (double[] circle : CIRCLES) {
+            for (String[] timeFrame : TIME_FRAMES) {
+                WGS84Point point = createPoint(circle[0], circle[1]);
+                point.setStartDate(timeFrame[0]);
+                point.setEndDate(timeFrame[1]);
+                enhancer.setInMemoryIndex(false);
+                Set<Triple> sparqlResult = new HashSet<Triple>(enhancer.queryEventsNearby(point, dataUrl(EVENTS), circle[2]));
+                enhancer.setInMemoryIndex(true);
+                Set<Triple> indexResult = new HashSet<Triple>(enhancer.queryEventsNearby(point, dataUrl(EVENTS), circle[2]));
+                Assert.assertEquals("Different events around " + circle[0] + " " + circle[1] + " within " + circle[2] + "m from "
+                        + timeFrame[0] + " to " + timeFrame[1], sparqlResult, indexResult);
+                if (! sparqlResult.isEmpty()) {
+                    nonEmpty++;
+                }
+            }
+        }
+        Assert.assertTrue("Too few searches with results to compare", nonEmpty >= 6);
+    }
+
+    /**
+     * Points of interest spread over the whole earth, many near the date line and the poles, 
+     * where the cells of the index wrap around or are clamped.
+     */
+    @Test
+    public void testSameResultsWorldwide() throws Exception {
+        Random random = new Random(11);
+        File file = File.createTempFile("worldwide-", ".ttl");
+        file.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            out.println("@prefix geo: <http://www.w3.org/2003/01/geo/wgs84_pos#> .");
+            out.println("@prefix rdfs: <http://www.w3.org/2000/01/rdf-schema#> .");
+            for (int i = 0; i < 1000; i++) {
+                double lat = i % 3 == 0 ? 89 - random.nextDouble() * 2 : random.nextDouble() * 170 - 85;
+                double lon = i % 3 == 1 ? 179 + random.nextDouble() * 2 : random.nextDouble() * 360 - 180;
+                if (lon > 180) {
+                    lon -= 360;
+                }
+                out.println("<urn:poi:" + i + "> a <urn:type:" + (i % 7) + "> ; rdfs:label \"poi " + i + "\" ; geo:lat \""
+                        + lat + "\" ; geo:long \"" + lon + "\" .");
+            }
+        }
+        String dataset = file.toURI().toString();
+        enhancer.ensureKnowledgeBase(dataset);
+        double[][] circles = { { 0, 180, 100000 }, { 10, -179.5, 300000 }, { -30, 179.9, 200000 }, 
+            { 89.5, 0, 100000 }, { 88, 120, 200000 }, { 45, 10, 1000000 }, { 0, 0, 20000000 } };
+        for (double[] circle : circles) {
+            WGS84Point point = createPoint(circle[0], circle[1]);
+            enhancer.setInMemoryIndex(false);
+            Set<Triple> sparqlResult = new HashSet<Triple>(enhancer.queryNearby(point, dataset, circle[2]));
+            enhancer.setInMemoryIndex(true);
+            Set<Triple> indexResult = new HashSet<Triple>(enhancer.queryNearby(point, dataset, circle[2]));
+            Assert.assertFalse("No results around " + circle[0] + " " + circle[1], sparqlResult.isEmpty());
+            Assert.assertEquals("Different results around " + circle[0] + " " + circle[1] + " within " + circle[2] + "m",
+                    sparqlResult, indexResult);
+        }
+    }
+
+    private static WGS84Point createPoint(double lat, double lon) {
+        WGS84Point point = new WGS84Point();
+        point.setUri("http://example.org/position");
+        point.setLat(lat);
+        point.setLong(lon);
+        return point;
+    }
+
+    private static String dataUrl(String dataset) {
+        return InMemoryIndexTest.class.getResource(dataset).toString();
+    }
+
+}
@@ -0,0 +1,70 @@
+package eu.fusepool.p3.geo.enriching.test;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.clerezza.rdf.core.Triple;
+import org.junit.Assert;
+import org.junit.Test;
+
+import eu.fusepool.p3.geo.enriching.SpatialDataEnhancer;
+import eu.fusepool.p3.geo.enriching.SpatialDataEnhancer.IndexDirectory;
+import eu.fusepool.p3.geo.enriching.WGS84Point;
+
+/**
+ * All directories of the spatial index give the same results and the searcher sees what is loaded.
+ */
+public class IndexDirectoryTest {
+
+    private static final String FIRST = "farmacie-trentino-uuid.ttl";
+    private static final String SECOND = "local-business-trento-uuid.ttl";
+
+    @Test
+    public void testSameResults() throws Exception {
+        Set<Triple> expectedFirst = null;
+        Set<Triple> expectedSecond = null;
+        for (IndexDirectory indexDirectory : IndexDirectory.values()) {
+            SpatialDataEnhancer enhancer = new SpatialDataEnhancer(indexDirectory);
+            enhancer.ensureKnowledgeBase(dataUrl(FIRST));
+            Set<Triple> first = new HashSet<Triple>(enhancer.queryNearby(createPoint(), dataUrl(FIRST), 5000));
+            Assert.assertFalse(first.isEmpty());
+            // found once the searcher has been refreshed after the load
+            enhancer.ensureKnowledgeBase(dataUrl(SECOND));
+            Set<Triple> second = new HashSet<Triple>(enhancer.queryNearby(createPoint(), dataUrl(SECOND), 5000));
+            Assert.assertFalse(second.isEmpty());
+            if (expectedFirst == null) {
+                expectedFirst = first;
+                expectedSecond = second;
+            }
+            Assert.assertEquals("Different results with " + indexDirectory, expectedFirst, first);
+            Assert.assertEquals("Different results with " + indexDirectory, expectedSecond, second);
+        }
+    }
+
+    @Test
+    public void testMemoryIndexRebuilt() throws Exception {
+        File dataDir = File.createTempFile("geo-enricher-", "-data");
+        dataDir.delete();
+        SpatialDataEnhancer first = new SpatialDataEnhancer(dataDir, IndexDirectory.MEMORY);
+        first.ensureKnowledgeBase(dataUrl(FIRST));
+        // a restarted node indexes the positions of the knowledge bases kept again
+        SpatialDataEnhancer second = new SpatialDataEnhancer(dataDir, IndexDirectory.MEMORY);
+        Assert.assertTrue(second.checkConsistency(false).isEmpty());
+        Assert.assertEquals(new HashSet<Triple>(first.queryNearby(createPoint(), dataUrl(FIRST), 5000)),
+                new HashSet<Triple>(second.queryNearby(createPoint(), dataUrl(FIRST), 5000)));
+    }
+
+    private static WGS84Point createPoint() {
+        WGS84Point point = new WGS84Point();
+        point.setUri("http://example.org/position");
+        point.setLat(46.07);
+        point.setLong(11.13);
+        return point;
+    }
+
+    private static String dataUrl(String dataset) {
+        return IndexDirectoryTest.class.getResource(dataset).toString();
+    }
+
+}
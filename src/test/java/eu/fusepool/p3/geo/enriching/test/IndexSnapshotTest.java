@@ -0,0 +1,133 @@
+package eu.fusepool.p3.geo.enriching.test;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.apache.clerezza.rdf.core.Triple;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpStatus;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import eu.fusepool.p3.geo.enriching.IndexSnapshot;
+import eu.fusepool.p3.geo.enriching.SpatialDataEnhancer;
+import eu.fusepool.p3.geo.enriching.WGS84Point;
+
+/**
+ * Snapshots built offline are opened in the latest version and searched only.
+ */
+public class IndexSnapshotTest {
+
+    private static int mockPort = 0;
+    private File snapshotsDir;
+    private String firstUrl;
+    private String secondUrl;
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(mockPort);
+
+    @BeforeClass
+    public static void setMockPort() {
+        mockPort = GeoEnrichingTransformerTest.findFreePort();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        snapshotsDir = File.createTempFile("geo-enricher-", "-snapshots");
+        snapshotsDir.delete();
+        firstUrl = getClass().getResource("farmacie-trentino-uuid.ttl").toString();
+        secondUrl = getClass().getResource("local-business-trento-uuid.ttl").toString();
+    }
+
+    @Test
+    public void testBuildAndOpen() throws Exception {
+        File older = IndexSnapshot.build(snapshotsDir, Collections.singletonList(firstUrl), 0);
+        Thread.sleep(5);
+        File latest = IndexSnapshot.build(snapshotsDir, Arrays.asList(firstUrl, secondUrl), 0);
+        Assert.assertFalse(older.equals(latest));
+        Assert.assertEquals(latest, IndexSnapshot.resolve(snapshotsDir));
+        Assert.assertEquals(older, IndexSnapshot.resolve(older));
+
+        SpatialDataEnhancer snapshot = SpatialDataEnhancer.openSnapshot(IndexSnapshot.resolve(snapshotsDir));
+        Assert.assertTrue(snapshot.isReadOnly());
+        Assert.assertEquals(2, snapshot.getGraphCount());
+        SpatialDataEnhancer loaded = new SpatialDataEnhancer();
+        loaded.ensureKnowledgeBase(firstUrl);
+        loaded.ensureKnowledgeBase(secondUrl);
+        for (String url : Arrays.asList(firstUrl, secondUrl)) {
+            snapshot.ensureKnowledgeBase(url);
+            Assert.assertEquals(new HashSet<Triple>(loaded.queryNearby(createPoint(), url, 5000)),
+                    new HashSet<Triple>(snapshot.queryNearby(createPoint(), url, 5000)));
+        }
+        try {
+            snapshot.ensureKnowledgeBase(firstUrl + "?other");
+            Assert.fail("A knowledge base not in the snapshot was loaded");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            snapshot.evict(firstUrl);
+            Assert.fail("A knowledge base was evicted from the snapshot");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Assert.assertFalse(snapshot.refresh(firstUrl));
+    }
+
+    @Test
+    public void testNormalizedUrls() throws Exception {
+        stubFor(get(urlEqualTo("/data/kb.ttl"))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withHeader("Content-Type", "text/turtle")
+                    .withBody(IOUtils.toByteArray(getClass().getResourceAsStream("farmacie-trentino-uuid.ttl")))));
+        String url = "http://localhost:" + mockPort + "/data/kb.ttl";
+        IndexSnapshot.build(snapshotsDir, Arrays.asList("HTTP://LocalHost:" + mockPort + "/data/./kb.ttl#pharmacies", url), 0);
+        SpatialDataEnhancer snapshot = SpatialDataEnhancer.openSnapshot(IndexSnapshot.resolve(snapshotsDir));
+        Assert.assertEquals(1, snapshot.getGraphCount());
+        // found in the snapshot by the url the servers normalize requests to
+        snapshot.ensureKnowledgeBase(url);
+        Assert.assertFalse(snapshot.queryNearby(createPoint(), url, 5000).isEmpty());
+    }
+
+    @Test
+    public void testFailedBuild() throws Exception {
+        try {
+            IndexSnapshot.build(snapshotsDir, Arrays.asList(firstUrl, firstUrl + ".missing"), 0);
+            Assert.fail("A snapshot was built with a missing knowledge base");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        Assert.assertEquals(0, snapshotsDir.list().length);
+        try {
+            IndexSnapshot.resolve(snapshotsDir);
+            Assert.fail("A failed build was taken as a snapshot");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoSnapshot() throws Exception {
+        snapshotsDir.mkdirs();
+        IndexSnapshot.resolve(snapshotsDir);
+    }
+
+    private static WGS84Point createPoint() {
+        WGS84Point point = new WGS84Point();
+        point.setUri("http://example.org/position");
+        point.setLat(46.0672);
+        point.setLong(11.12);
+        return point;
+    }
+
+}
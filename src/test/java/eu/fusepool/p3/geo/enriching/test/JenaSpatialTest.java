@@ -17,22 +17,30 @@
  */
 package eu.fusepool.p3.geo.enriching.test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import junit.framework.Assert;
 
+import org.apache.clerezza.rdf.core.Triple;
 import org.apache.clerezza.rdf.core.TripleCollection;
+import org.apache.clerezza.rdf.core.UriRef;
 import org.apache.clerezza.rdf.core.impl.SimpleMGraph;
 import org.apache.clerezza.rdf.core.serializedform.Parser;
+import org.apache.clerezza.rdf.core.serializedform.Serializer;
 import org.apache.clerezza.rdf.core.serializedform.SupportedFormat;
 import org.apache.jena.atlas.lib.StrUtils;
 import org.apache.jena.atlas.logging.LogCtl;
 import org.apache.jena.query.spatial.*;
+import org.apache.jena.riot.Lang;
 import org.apache.jena.riot.RDFDataMgr;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
@@ -135,6 +143,174 @@ public class JenaSpatialTest {
         Assert.assertTrue(! pois.isEmpty());
     }
      
+    @Test
+    public void testEnhanceEveryPoint() throws Exception {
+        String pharmaciesUrl = getClass().getResource("farmacie-trentino-uuid.ttl").toString();
+        String places = StrUtils.strjoinNL("@prefix geo: <http://www.w3.org/2003/01/geo/wgs84_pos#> .",
+                "@prefix xsd: <http://www.w3.org/2001/XMLSchema#> .",
+                "@prefix schema: <http://schema.org/> .",
+                "<urn:place:trento> geo:lat \"46.0672\"^^xsd:double ; geo:long \"11.12\"^^xsd:double ; schema:geo <urn:circle:trento> .",
+                "<urn:circle:trento> schema:circle \"46.0672 11.12 500\" .",
+                "<urn:place:rovereto> geo:lat \"45.89\"^^xsd:double ; geo:long \"11.04\"^^xsd:double ; schema:geo <urn:circle:rovereto> .",
+                "<urn:circle:rovereto> schema:circle \"45.89 11.04 2000\" .",
+                "<urn:place:sea> geo:lat \"0.0\"^^xsd:double ; geo:long \"0.0\"^^xsd:double .");
+        TripleCollection graph = Parser.getInstance().parse(new ByteArrayInputStream(places.getBytes("UTF-8")), SupportedFormat.TURTLE);
+        Assert.assertEquals(3, jenas.getPoints(graph).size());
+        TripleCollection result = jenas.enhance(pharmaciesUrl, graph);
+        UriRef containedIn = new UriRef("http://schema.org/containedIn");
+        UriRef trento = new UriRef("urn:place:trento");
+        UriRef rovereto = new UriRef("urn:place:rovereto");
+        Assert.assertTrue(result.filter(null, containedIn, trento).hasNext());
+        Assert.assertTrue(result.filter(null, containedIn, rovereto).hasNext());
+        Assert.assertFalse(result.filter(null, containedIn, new UriRef("urn:place:sea")).hasNext());
+        // each point of interest is linked to the point it is near to only
+        Iterator<Triple> nearTrento = result.filter(null, containedIn, trento);
+        while (nearTrento.hasNext()) {
+            Assert.assertFalse(result.filter(nearTrento.next().getSubject(), containedIn, rovereto).hasNext());
+        }
+    }
+     
+    /**
+     * A triple both in the request and among the points of interest found is returned once.
+     */
+    @Test
+    public void testEnhanceSharedTriple() throws Exception {
+        String pharmaciesUrl = getClass().getResource("farmacie-trentino-uuid.ttl").toString();
+        String place = StrUtils.strjoinNL("@prefix geo: <http://www.w3.org/2003/01/geo/wgs84_pos#> .",
+                "@prefix xsd: <http://www.w3.org/2001/XMLSchema#> .",
+                "@prefix schema: <http://schema.org/> .",
+                "<urn:place:trento> geo:lat \"46.0672\"^^xsd:double ; geo:long \"11.12\"^^xsd:double ; schema:geo <urn:circle:trento> .",
+                "<urn:circle:trento> schema:circle \"46.0672 11.12 500\" .");
+        TripleCollection request = new SimpleMGraph(
+                Parser.getInstance().parse(new ByteArrayInputStream(place.getBytes("UTF-8")), SupportedFormat.TURTLE));
+        Set<Triple> requestTriples = new HashSet<Triple>(request);
+        Set<Triple> found = new HashSet<Triple>(jenas.enhance(pharmaciesUrl, request));
+        found.removeAll(requestTriples);
+        Assert.assertFalse(found.isEmpty());
+        // the request now holds a triple of a point of interest it is enhanced with
+        Triple shared = found.iterator().next();
+        request.add(shared);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Serializer.getInstance().serialize(out, request, SupportedFormat.N_TRIPLE);
+        byte[] data = out.toByteArray();
+        TripleCollection parsed = jenas.enhance(pharmaciesUrl, request);
+        TripleCollection streamed = jenas.enhance(pharmaciesUrl, new ByteArrayInputStream(data), Lang.NTRIPLES);
+        for (TripleCollection result : new TripleCollection[] { parsed, streamed }) {
+            Set<Triple> distinct = new HashSet<Triple>(result);
+            Assert.assertEquals(distinct.size(), result.size());
+            int count = 0;
+            for (Triple triple : result) {
+                if (triple.equals(shared)) {
+                    count++;
+                }
+            }
+            Assert.assertEquals(1, count);
+            Assert.assertEquals(requestTriples.size() + found.size(), distinct.size());
+        }
+    }
+
+    @Test
+    public void testStreamingEnhance() throws Exception {
+        String pharmaciesUrl = getClass().getResource("farmacie-trentino-uuid.ttl").toString();
+        String eventsUrl = getClass().getResource("events-trento.ttl").toString();
+        String places = StrUtils.strjoinNL("@prefix geo: <http://www.w3.org/2003/01/geo/wgs84_pos#> .",
+                "@prefix xsd: <http://www.w3.org/2001/XMLSchema#> .",
+                "@prefix schema: <http://schema.org/> .",
+                "<urn:place:trento> geo:lat \"46.0672\"^^xsd:double ; geo:long \"11.12\"^^xsd:double ; schema:geo <urn:circle:trento> .",
+                "<urn:circle:trento> schema:circle \"46.0672 11.12 500\" .",
+                // the circle of this position comes after it
+                "<urn:place:rovereto> geo:lat \"45.89\"^^xsd:double ; geo:long \"11.04\"^^xsd:double ; schema:geo <urn:circle:rovereto> .",
+                "<urn:place:piazza> geo:lat \"46.0665\"^^xsd:double ; geo:long \"11.122\"^^xsd:double .",
+                "<urn:circle:rovereto> schema:circle \"45.89 11.04 2000\" .");
+        // the event located at a position comes after it
+        String events = StrUtils.strjoinNL("@prefix geo: <http://www.w3.org/2003/01/geo/wgs84_pos#> .",
+                "@prefix xsd: <http://www.w3.org/2001/XMLSchema#> .",
+                "@prefix schema: <http://schema.org/> .",
+                "<urn:uuid:fusepoolp3:myplace> geo:lat \"46.0665\"^^xsd:double ; geo:long \"11.122\"^^xsd:double ; schema:geo <urn:uuid:fusepoolp3:mycircle> .",
+                "<urn:uuid:fusepoolp3:mycircle> schema:circle \"46.0665 11.122 1000\" .",
+                "<urn:uuid:fusepoolp3:myevent> schema:startDate \"2015-02-01\"^^xsd:date ; schema:endDate \"2015-02-28\"^^xsd:date ;",
+                "    schema:location <urn:uuid:fusepoolp3:myplace> .");
+        // the knowledge base, the request and the positions with points of interest or events within their circle, 
+        // the pharmacies of Trento and Rovereto as in testEnhanceEveryPoint and the concert as in testQueryEventsNearby
+        String[][] requests = { 
+            { pharmaciesUrl, places, "urn:place:trento", "urn:place:rovereto" }, 
+            { eventsUrl, events, "urn:uuid:fusepoolp3:myplace" } 
+        };
+        UriRef containedIn = new UriRef("http://schema.org/containedIn");
+        for (String[] request : requests) {
+            byte[] data = request[1].getBytes("UTF-8");
+            TripleCollection requestGraph = Parser.getInstance().parse(new ByteArrayInputStream(data), SupportedFormat.TURTLE);
+            Set<Triple> requestTriples = new HashSet<Triple>(requestGraph);
+            TripleCollection parsed = jenas.enhance(request[0], requestGraph);
+            TripleCollection streamed = jenas.enhance(request[0], new ByteArrayInputStream(data), Lang.TURTLE);
+            Assert.assertTrue(streamed.containsAll(requestTriples));
+            for (int i = 2; i < request.length; i++) {
+                Assert.assertTrue("Nothing found around " + request[i], streamed.filter(null, containedIn, new UriRef(request[i])).hasNext());
+            }
+            Assert.assertEquals(new HashSet<Triple>(parsed), new HashSet<Triple>(streamed));
+        }
+    }
+     
+    @Test
+    public void testQueryEventsNearby() throws Exception {
+        String eventsUrl = getClass().getResource("events-trento.ttl").toString();
+        jenas.ensureKnowledgeBase(eventsUrl);
+        WGS84Point point = new WGS84Point();
+        point.setUri("urn:uuid:fusepoolp3:myplace");
+        point.setLat(46.0665);
+        point.setLong(11.122);
+        point.setStartDate("2015-02-01");
+        point.setEndDate("2015-02-28");
+        TripleCollection events = jenas.queryEventsNearby(point, eventsUrl, 1000.0);
+        UriRef location = new UriRef("http://schema.org/location");
+        // only the event nearby and within the time frame
+        Assert.assertTrue(events.filter(new UriRef("urn:event:uuid:concerto"), location, null).hasNext());
+        Assert.assertFalse(events.filter(new UriRef("urn:event:uuid:carnevale"), location, null).hasNext());
+        Assert.assertFalse(events.filter(new UriRef("urn:event:uuid:mercatino"), location, null).hasNext());
+        Assert.assertFalse(events.filter(new UriRef("urn:event:uuid:gnocchi"), location, null).hasNext());
+    }
+    
+    @Test
+    public void testQueryEventsOpenTimeFrame() throws Exception {
+        String eventsUrl = getClass().getResource("events-trento.ttl").toString();
+        jenas.ensureKnowledgeBase(eventsUrl);
+        WGS84Point point = new WGS84Point();
+        point.setUri("urn:uuid:fusepoolp3:myplace");
+        point.setLat(46.0665);
+        point.setLong(11.122);
+        point.setStartDate("2015-02-01");
+        TripleCollection events = jenas.queryEventsNearby(point, eventsUrl, 1000.0);
+        UriRef location = new UriRef("http://schema.org/location");
+        // the events starting from the start date, whenever they end
+        Assert.assertTrue(events.filter(new UriRef("urn:event:uuid:concerto"), location, null).hasNext());
+        Assert.assertTrue(events.filter(new UriRef("urn:event:uuid:carnevale"), location, null).hasNext());
+        Assert.assertFalse(events.filter(new UriRef("urn:event:uuid:mercatino"), location, null).hasNext());
+        point.setStartDate(null);
+        point.setEndDate("2015-02-28");
+        events = jenas.queryEventsNearby(point, eventsUrl, 1000.0);
+        // the events ending by the end date, whenever they start
+        Assert.assertTrue(events.filter(new UriRef("urn:event:uuid:concerto"), location, null).hasNext());
+        Assert.assertFalse(events.filter(new UriRef("urn:event:uuid:carnevale"), location, null).hasNext());
+    }
+     
+    @Test
+    public void testReopenDataDirectory() throws Exception {
+        File dataDir = File.createTempFile("geo-enricher-", "-data");
+        dataDir.delete();
+        SpatialDataEnhancer first = new SpatialDataEnhancer(dataDir);
+        URL testFile = getClass().getResource(TEST_DATASET);
+        first.loadKnowledgeBase(first.getDataset(), testFile.toString(), TEST_DATASET_URI);
+        // a restarted node finds the graph without loading it again
+        SpatialDataEnhancer second = new SpatialDataEnhancer(dataDir);
+        Assert.assertTrue(second.isCachedGraph(second.getDataset(), TEST_DATASET_URI));
+        Assert.assertTrue(second.checkConsistency(false).isEmpty());
+        WGS84Point point = new WGS84Point();
+        point.setUri("http://geo.org/?lat=41.79,lon=12.24");
+        point.setLat(41.79);
+        point.setLong(12.24);
+        Assert.assertFalse(second.queryNearby(point, TEST_DATASET_URI, 10000.0).isEmpty());
+    }
+     
     private void queryData(Dataset spatialDataset) {
         log.info("queryData()");
         long startTime = System.nanoTime();
@@ -0,0 +1,88 @@
+package eu.fusepool.p3.geo.enriching.test;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+
+import org.apache.clerezza.rdf.core.TripleCollection;
+import org.apache.clerezza.rdf.core.UriRef;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpStatus;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import eu.fusepool.p3.geo.enriching.SpatialDataEnhancer;
+import eu.fusepool.p3.geo.enriching.WGS84Point;
+
+/**
+ * Conditional refresh of a knowledge base that has been loaded before.
+ */
+public class KnowledgeBaseRefreshTest {
+
+    private static final UriRef schema_containedIn = new UriRef("http://schema.org/containedIn");
+
+    private static int mockPort = 0;
+    private byte[] pharmacies;
+    private byte[] businesses;
+    private SpatialDataEnhancer enhancer;
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(mockPort);
+
+    @BeforeClass
+    public static void setMockPort() {
+        mockPort = GeoEnrichingTransformerTest.findFreePort();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        pharmacies = IOUtils.toByteArray(getClass().getResourceAsStream("farmacie-trentino-uuid.ttl"));
+        businesses = IOUtils.toByteArray(getClass().getResourceAsStream("local-business-trento-uuid.ttl"));
+        enhancer = new SpatialDataEnhancer();
+    }
+
+    @Test
+    public void testRefresh() throws Exception {
+        final String dataUrl = "http://localhost:" + mockPort + "/data/kb.ttl";
+        stubFor(get(urlEqualTo("/data/kb.ttl"))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withHeader("Content-Type", "text/turtle")
+                    .withHeader("ETag", "\"v1\"")
+                    .withBody(pharmacies)));
+        enhancer.ensureKnowledgeBase(dataUrl);
+        WGS84Point trento = new WGS84Point();
+        trento.setUri("http://example.org/trento");
+        trento.setLat(46.0672);
+        trento.setLong(11.1200);
+        TripleCollection before = enhancer.queryNearby(trento, dataUrl, 2000);
+
+        // unchanged data is not loaded again
+        stubFor(get(urlEqualTo("/data/kb.ttl"))
+                .withHeader("If-None-Match", equalTo("\"v1\""))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_NOT_MODIFIED)));
+        Assert.assertFalse("Unmodified data set loaded again", enhancer.refresh(dataUrl));
+        Assert.assertEquals(before.size(), enhancer.queryNearby(trento, dataUrl, 2000).size());
+
+        // changed data replaces the version loaded
+        stubFor(get(urlEqualTo("/data/kb.ttl"))
+                .withHeader("If-None-Match", equalTo("\"v1\""))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withHeader("Content-Type", "text/turtle")
+                    .withHeader("ETag", "\"v2\"")
+                    .withBody(businesses)));
+        Assert.assertTrue("Modified data set not loaded", enhancer.refresh(dataUrl));
+        TripleCollection after = enhancer.queryNearby(trento, dataUrl, 2000);
+        Assert.assertTrue("No point of interest from the new version", after.filter(null, schema_containedIn, null).hasNext());
+        Assert.assertFalse("No point of interest in the old version", before.isEmpty());
+        Assert.assertFalse("Points of interest from the old version still found", after.containsAll(before));
+        Assert.assertTrue(enhancer.checkConsistency(false).isEmpty());
+        verify(3, getRequestedFor(urlEqualTo("/data/kb.ttl")));
+    }
+
+}
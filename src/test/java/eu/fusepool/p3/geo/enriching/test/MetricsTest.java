@@ -0,0 +1,122 @@
+package eu.fusepool.p3.geo.enriching.test;
+
+import java.net.ServerSocket;
+
+import org.apache.clerezza.rdf.core.MGraph;
+import org.apache.clerezza.rdf.core.UriRef;
+import org.apache.clerezza.rdf.core.impl.SimpleMGraph;
+import org.apache.clerezza.rdf.core.impl.TripleImpl;
+import org.apache.clerezza.rdf.core.impl.TypedLiteralImpl;
+import org.apache.clerezza.rdf.ontologies.XSD;
+import org.eclipse.jetty.server.Server;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.jayway.restassured.RestAssured;
+import com.jayway.restassured.response.Response;
+
+import eu.fusepool.p3.geo.enriching.Metrics;
+import eu.fusepool.p3.geo.enriching.MetricsHandler;
+import eu.fusepool.p3.geo.enriching.SpatialDataEnhancer;
+
+/**
+ * The phases of the searches are timed and the work done counted.
+ */
+public class MetricsTest {
+
+    private static final UriRef geo_lat = new UriRef("http://www.w3.org/2003/01/geo/wgs84_pos#lat");
+    private static final UriRef geo_long = new UriRef("http://www.w3.org/2003/01/geo/wgs84_pos#long");
+
+    private SpatialDataEnhancer enhancer;
+    private String dataUrl;
+
+    @Before
+    public void setUp() throws Exception {
+        enhancer = new SpatialDataEnhancer();
+        enhancer.setResultCache(16, 3);
+        dataUrl = getClass().getResource("farmacie-trentino-uuid.ttl").toString();
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+        Metrics metrics = enhancer.getMetrics();
+        enhancer.enhance(dataUrl, request(46.0672, 11.12));
+        Assert.assertEquals(1, metrics.getGraphsLoaded());
+        Assert.assertTrue(metrics.getBytesDownloaded() > 0);
+        Assert.assertEquals(1, metrics.getCount(Metrics.Phase.KNOWLEDGE_BASE_LOAD));
+        Assert.assertEquals(1, metrics.getCount(Metrics.Phase.CACHE_CHECK));
+        Assert.assertEquals(1, metrics.getCount(Metrics.Phase.SPATIAL_QUERY));
+        long pois = metrics.getPoisReturned();
+        Assert.assertTrue(pois > 0);
+        // a hit on the cache copies the result without searching
+        enhancer.enhance(dataUrl, request(46.0672, 11.12));
+        Assert.assertEquals(2, metrics.getCount(Metrics.Phase.CACHE_CHECK));
+        Assert.assertEquals(1, metrics.getCount(Metrics.Phase.SPATIAL_QUERY));
+        Assert.assertEquals(2 * pois, metrics.getPoisReturned());
+        Assert.assertEquals(1, metrics.getGraphsLoaded());
+        Assert.assertEquals(1, metrics.getCacheHits());
+        Assert.assertEquals(1, metrics.getCacheMisses());
+        enhancer.evict(dataUrl);
+        Assert.assertEquals(1, metrics.getGraphsEvicted());
+    }
+
+    @Test
+    public void testPoisReturnedDistinct() throws Exception {
+        // the castle has two types, it is found in two rows by SPARQL
+        String placesUrl = getClass().getResource("wkt-places-trento.ttl").toString();
+        SpatialDataEnhancer sparql = new SpatialDataEnhancer();
+        SpatialDataEnhancer inMemory = new SpatialDataEnhancer();
+        inMemory.setInMemoryIndex(true);
+        for (SpatialDataEnhancer enhancer : new SpatialDataEnhancer[] { sparql, this.enhancer, inMemory }) {
+            enhancer.enhance(placesUrl, request(46.0706, 11.1273));
+            Assert.assertEquals(1, enhancer.getMetrics().getPoisReturned());
+        }
+        // a hit on the cache counts the points of interest as the search did
+        enhancer.enhance(placesUrl, request(46.0706, 11.1273));
+        Assert.assertEquals(1, enhancer.getMetrics().getCount(Metrics.Phase.SPATIAL_QUERY));
+        Assert.assertEquals(2, enhancer.getMetrics().getPoisReturned());
+    }
+
+    @Test
+    public void testEndpoint() throws Exception {
+        enhancer.enhance(dataUrl, request(46.0672, 11.12));
+        int port = findFreePort();
+        Server server = new Server(port);
+        server.setHandler(new MetricsHandler(enhancer.getMetrics()));
+        server.start();
+        try {
+            Response response = RestAssured.given().get("http://localhost:" + port + "/metrics");
+            Assert.assertEquals(200, response.getStatusCode());
+            String body = response.asString();
+            Assert.assertTrue(body.contains("geo_enricher_phase_seconds_count{phase=\"spatial_query\"} 1\n"));
+            Assert.assertTrue(body.contains("geo_enricher_phase_seconds_bucket{phase=\"knowledge_base_load\",le=\"+Inf\"} 1\n"));
+            Assert.assertTrue(body.contains("geo_enricher_graphs_loaded_total 1\n"));
+            Assert.assertTrue(body.contains("geo_enricher_pois_returned_total " + enhancer.getMetrics().getPoisReturned() + "\n"));
+            Assert.assertTrue(body.contains("geo_enricher_cache_misses_total 1\n"));
+            Assert.assertTrue(body.contains("geo_enricher_cache_hits_total 0\n"));
+            Assert.assertTrue(body.contains("geo_enricher_cache_evictions_total 0\n"));
+            Assert.assertTrue(body.contains("geo_enricher_graphs_evicted_total 0\n"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    private MGraph request(double lat, double lon) {
+        MGraph graph = new SimpleMGraph();
+        UriRef position = new UriRef("urn:place:" + lat + "," + lon);
+        graph.add(new TripleImpl(position, geo_lat, new TypedLiteralImpl(Double.toString(lat), XSD.double_)));
+        graph.add(new TripleImpl(position, geo_long, new TypedLiteralImpl(Double.toString(lon), XSD.double_)));
+        return graph;
+    }
+
+    private static int findFreePort() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+package eu.fusepool.p3.geo.enriching.test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.clerezza.rdf.core.Literal;
+import org.apache.clerezza.rdf.core.NonLiteral;
+import org.apache.clerezza.rdf.core.Triple;
+import org.apache.clerezza.rdf.core.TripleCollection;
+import org.apache.clerezza.rdf.core.UriRef;
+import org.apache.clerezza.rdf.core.serializedform.Parser;
+import org.apache.clerezza.rdf.core.serializedform.SupportedFormat;
+import org.apache.jena.atlas.lib.StrUtils;
+import org.apache.jena.riot.Lang;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import eu.fusepool.p3.geo.enriching.SpatialDataEnhancer;
+import eu.fusepool.p3.geo.enriching.WGS84Point;
+
+/**
+ * The nearest points of interest are found ordered by distance, the same with SPARQL and the in-memory index.
+ */
+public class NearestTest {
+
+    private static final UriRef POSITION = new UriRef("http://example.org/position");
+    private static final UriRef containedIn = new UriRef("http://schema.org/containedIn");
+    private static final UriRef fp3geo_distance = new UriRef("urn:fusepoolp3:geo:distance");
+    private static final UriRef fp3geo_position = new UriRef("urn:fusepoolp3:geo:position");
+    private static final UriRef fp3geo_meters = new UriRef("urn:fusepoolp3:geo:meters");
+    private static final UriRef fp3geo_rank = new UriRef("urn:fusepoolp3:geo:rank");
+    private static final double[][] CENTERS = { { 46.0672, 11.12 }, { 46.2, 11.2 }, { 45.89, 11.04 }, { 41.79, 12.24 } };
+
+    private static String pharmaciesUrl;
+    private static SpatialDataEnhancer sparql;
+    private static SpatialDataEnhancer inMemory;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        pharmaciesUrl = NearestTest.class.getResource("farmacie-trentino-uuid.ttl").toString();
+        sparql = new SpatialDataEnhancer();
+        sparql.ensureKnowledgeBase(pharmaciesUrl);
+        inMemory = new SpatialDataEnhancer();
+        inMemory.setInMemoryIndex(true);
+        inMemory.ensureKnowledgeBase(pharmaciesUrl);
+    }
+
+    @Test
+    public void testOrderedByDistance() throws Exception {
+        WGS84Point point = createPoint(46.07, 11.13);
+        TripleCollection result = sparql.queryNearest(point, pharmaciesUrl, 5, 100000);
+        List<NonLiteral> pois = new ArrayList<NonLiteral>();
+        List<Double> distances = new ArrayList<Double>();
+        ranked(result, pois, distances);
+        Assert.assertEquals(5, pois.size());
+        for (int i = 1; i < distances.size(); i++) {
+            Assert.assertTrue(distances.get(i - 1) <= distances.get(i));
+        }
+        // the same as the points of interest within the distance of the farthest
+        Set<NonLiteral> nearby = linked(sparql.queryNearby(point, pharmaciesUrl, distances.get(4) + 0.01));
+        Assert.assertEquals(new HashSet<NonLiteral>(pois), nearby);
+    }
+
+    @Test
+    public void testSameAsInMemoryIndex() throws Exception {
+        int[] ks = { 1, 5, 50 };
+        double[] maxRadiuses = { 1000, 20000, 1.0e8 };
+        for (double[] center : CENTERS) {
+            for (int k : ks) {
+                for (double maxRadius : maxRadiuses) {
+                    WGS84Point point = createPoint(center[0], center[1]);
+                    Assert.assertEquals("Different results around " + center[0] + " " + center[1] + " for " + k + " within " + maxRadius,
+                            describe(sparql.queryNearest(point, pharmaciesUrl, k, maxRadius)),
+                            describe(inMemory.queryNearest(point, pharmaciesUrl, k, maxRadius)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRequest() throws Exception {
+        String places = StrUtils.strjoinNL("@prefix geo: <http://www.w3.org/2003/01/geo/wgs84_pos#> .",
+                "@prefix xsd: <http://www.w3.org/2001/XMLSchema#> .",
+                "@prefix schema: <http://schema.org/> .",
+                "<urn:place:trento> geo:lat \"46.0672\"^^xsd:double ; geo:long \"11.12\"^^xsd:double ; schema:geo <urn:nearest:trento> .",
+                "<urn:nearest:trento> <urn:fusepoolp3:geo:nearest> \"3\" .",
+                // searched within its circle only
+                "<urn:place:sea> geo:lat \"0.0\"^^xsd:double ; geo:long \"0.0\"^^xsd:double ; schema:geo <urn:nearest:sea> .",
+                "<urn:nearest:sea> <urn:fusepoolp3:geo:nearest> \"3\" ; schema:circle \"0.0 0.0 1000\" .");
+        byte[] data = places.getBytes("UTF-8");
+        TripleCollection graph = Parser.getInstance().parse(new ByteArrayInputStream(data), SupportedFormat.TURTLE);
+        Assert.assertEquals(3, sparql.getPoints(graph).get(0).getNearest());
+        TripleCollection parsed = sparql.enhance(pharmaciesUrl, graph);
+        TripleCollection streamed = sparql.enhance(pharmaciesUrl, new ByteArrayInputStream(data), Lang.TURTLE);
+        for (TripleCollection result : new TripleCollection[] { parsed, streamed }) {
+            Assert.assertEquals(3, count(result.filter(null, containedIn, new UriRef("urn:place:trento"))));
+            Assert.assertEquals(0, count(result.filter(null, containedIn, new UriRef("urn:place:sea"))));
+        }
+        Assert.assertEquals(describe(parsed, new UriRef("urn:place:trento")), describe(streamed, new UriRef("urn:place:trento")));
+    }
+
+    /**
+     * The points of interest and their distances ordered by rank.
+     */
+    private static void ranked(TripleCollection result, UriRef position, List<NonLiteral> pois, List<Double> distances) {
+        TreeMap<Integer, Triple> byRank = new TreeMap<Integer, Triple>();
+        Iterator<Triple> links = result.filter(null, fp3geo_position, position);
+        while (links.hasNext()) {
+            NonLiteral distance = links.next().getSubject();
+            int rank = Integer.parseInt(((Literal) result.filter(distance, fp3geo_rank, null).next().getObject()).getLexicalForm());
+            Assert.assertNull("Rank " + rank + " given twice", byRank.put(rank, result.filter(null, fp3geo_distance, distance).next()));
+        }
+        int expectedRank = 1;
+        for (Map.Entry<Integer, Triple> entry : byRank.entrySet()) {
+            Assert.assertEquals(expectedRank++, entry.getKey().intValue());
+            NonLiteral distance = (NonLiteral) entry.getValue().getObject();
+            pois.add(entry.getValue().getSubject());
+            distances.add(Double.valueOf(((Literal) result.filter(distance, fp3geo_meters, null).next().getObject()).getLexicalForm()));
+        }
+    }
+
+    private static void ranked(TripleCollection result, List<NonLiteral> pois, List<Double> distances) {
+        ranked(result, POSITION, pois, distances);
+    }
+
+    private static List<String> describe(TripleCollection result) {
+        return describe(result, POSITION);
+    }
+
+    private static List<String> describe(TripleCollection result, UriRef position) {
+        List<NonLiteral> pois = new ArrayList<NonLiteral>();
+        List<Double> distances = new ArrayList<Double>();
+        ranked(result, position, pois, distances);
+        List<String> described = new ArrayList<String>();
+        for (int i = 0; i < pois.size(); i++) {
+            described.add(String.format(Locale.ROOT, "%s %.3f", pois.get(i), distances.get(i)));
+        }
+        return described;
+    }
+
+    private static Set<NonLiteral> linked(TripleCollection result) {
+        Set<NonLiteral> pois = new HashSet<NonLiteral>();
+        Iterator<Triple> links = result.filter(null, containedIn, POSITION);
+        while (links.hasNext()) {
+            pois.add(links.next().getSubject());
+        }
+        return pois;
+    }
+
+    private static int count(Iterator<Triple> triples) {
+        int count = 0;
+        while (triples.hasNext()) {
+            triples.next();
+            count++;
+        }
+        return count;
+    }
+
+    private static WGS84Point createPoint(double lat, double lon) {
+        WGS84Point point = new WGS84Point();
+        point.setUri(POSITION.getUnicodeString());
+        point.setLat(lat);
+        point.setLong(lon);
+        return point;
+    }
+
+}
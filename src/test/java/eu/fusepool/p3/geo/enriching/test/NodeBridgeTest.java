@@ -0,0 +1,82 @@
+package eu.fusepool.p3.geo.enriching.test;
+
+import org.apache.clerezza.rdf.core.UriRef;
+import org.apache.clerezza.rdf.core.impl.PlainLiteralImpl;
+import org.apache.clerezza.rdf.core.impl.TypedLiteralImpl;
+import org.apache.clerezza.rdf.ontologies.XSD;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+
+import eu.fusepool.p3.geo.enriching.NodeBridge;
+
+/**
+ * The nodes found by Jena become the resources of the result.
+ */
+public class NodeBridgeTest {
+
+    private final NodeBridge nodes = new NodeBridge(1);
+
+    @Test
+    public void testUri() {
+        Node poi = NodeFactory.createURI("urn:place:piazza-duomo");
+        Assert.assertEquals(new UriRef("urn:place:piazza-duomo"), nodes.uri(poi));
+    }
+
+    @Test
+    public void testSharedUri() {
+        Node place = NodeFactory.createURI("http://schema.org/Place");
+        Node park = NodeFactory.createURI("http://schema.org/Park");
+        Assert.assertEquals(new UriRef("http://schema.org/Place"), nodes.sharedUri(place));
+        Assert.assertSame(nodes.sharedUri(place), nodes.sharedUri(NodeFactory.createURI("http://schema.org/Place")));
+        // beyond the maximum the URIs are converted each time
+        Assert.assertEquals(new UriRef("http://schema.org/Park"), nodes.sharedUri(park));
+        Assert.assertNotSame(nodes.sharedUri(park), nodes.sharedUri(park));
+    }
+
+    @Test
+    public void testPlainLiteral() {
+        Assert.assertEquals(new PlainLiteralImpl("Piazza Duomo"), nodes.plainLiteral(NodeFactory.createLiteral("Piazza Duomo")));
+        Assert.assertEquals(new PlainLiteralImpl("Duomo"), nodes.plainLiteral(NodeFactory.createLiteral("Duomo", "it", false)));
+    }
+
+    @Test
+    public void testTypedLiteral() {
+        // the data type of the result replaces the one of the knowledge base
+        Node lat = NodeFactory.createLiteral("46.0671", XSDDatatype.XSDdouble);
+        Assert.assertEquals(new TypedLiteralImpl("46.0671", XSD.float_), nodes.typedLiteral(lat, XSD.float_));
+    }
+
+    @Test
+    public void testBlankNode() {
+        Node blank = NodeFactory.createAnon();
+        try {
+            nodes.uri(blank);
+            Assert.fail("A blank node was taken as a URI");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            nodes.sharedUri(blank);
+            Assert.fail("A blank node was taken as a shared URI");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            nodes.plainLiteral(blank);
+            Assert.fail("A blank node was taken as a plain literal");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            nodes.typedLiteral(blank, XSD.float_);
+            Assert.fail("A blank node was taken as a typed literal");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+}
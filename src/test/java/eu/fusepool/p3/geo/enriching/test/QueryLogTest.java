@@ -0,0 +1,55 @@
+package eu.fusepool.p3.geo.enriching.test;
+
+import java.util.HashSet;
+
+import org.apache.clerezza.rdf.core.Triple;
+import org.apache.clerezza.rdf.core.TripleCollection;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.fusepool.p3.geo.enriching.SpatialDataEnhancer;
+import eu.fusepool.p3.geo.enriching.WGS84Point;
+
+/**
+ * Searches are logged when slow or sampled without changing their result.
+ */
+public class QueryLogTest {
+
+    private SpatialDataEnhancer enhancer;
+    private String dataUrl;
+
+    @Before
+    public void setUp() throws Exception {
+        enhancer = new SpatialDataEnhancer();
+        dataUrl = getClass().getResource("farmacie-trentino-uuid.ttl").toString();
+        enhancer.ensureKnowledgeBase(dataUrl);
+    }
+
+    @Test
+    public void testEverySearchLogged() throws Exception {
+        TripleCollection unlogged = enhancer.queryNearby(createPoint(46.0672, 11.12), dataUrl, 1000);
+        // each search traced, and slow from a millisecond
+        enhancer.setQueryLog(1, 1);
+        TripleCollection logged = enhancer.queryNearby(createPoint(46.0672, 11.12), dataUrl, 1000);
+        Assert.assertFalse(unlogged.isEmpty());
+        Assert.assertEquals(new HashSet<Triple>(unlogged), new HashSet<Triple>(logged));
+        Assert.assertFalse(enhancer.queryNearest(createPoint(46.0672, 11.12), dataUrl, 3, 5000).isEmpty());
+        Assert.assertFalse(enhancer.queryWithin(createPoint(46.0672, 11.12), dataUrl,
+                "POLYGON((11.11 46.06, 11.13 46.06, 11.13 46.08, 11.11 46.08, 11.11 46.06))").isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeThreshold() {
+        enhancer.setQueryLog(0, -1);
+    }
+
+    private WGS84Point createPoint(double lat, double lon) {
+        WGS84Point point = new WGS84Point();
+        point.setUri("urn:place:test");
+        point.setLat(lat);
+        point.setLong(lon);
+        return point;
+    }
+
+}
@@ -0,0 +1,177 @@
+package eu.fusepool.p3.geo.enriching.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.clerezza.rdf.core.Literal;
+import org.apache.clerezza.rdf.core.NonLiteral;
+import org.apache.clerezza.rdf.core.Triple;
+import org.apache.clerezza.rdf.core.TripleCollection;
+import org.apache.clerezza.rdf.core.UriRef;
+import org.apache.clerezza.rdf.core.impl.TripleImpl;
+import org.apache.clerezza.rdf.core.impl.TypedLiteralImpl;
+import org.apache.clerezza.rdf.core.serializedform.Parser;
+import org.apache.clerezza.rdf.core.serializedform.SupportedFormat;
+import org.apache.jena.atlas.lib.StrUtils;
+import org.apache.jena.riot.Lang;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.jayway.restassured.path.json.JsonPath;
+
+import eu.fusepool.p3.geo.enriching.SpatialDataEnhancer;
+import eu.fusepool.p3.geo.enriching.WGS84Point;
+
+/**
+ * Points of interest are found within polygons, located by a latitude and a longitude or by a geometry in Well-Known Text.
+ */
+public class RegionTest {
+
+    private static final UriRef POSITION = new UriRef("http://example.org/position");
+    private static final UriRef containedIn = new UriRef("http://schema.org/containedIn");
+    private static final UriRef geo_lat = new UriRef("http://www.w3.org/2003/01/geo/wgs84_pos#lat");
+    private static final UriRef geo_long = new UriRef("http://www.w3.org/2003/01/geo/wgs84_pos#long");
+    private static final UriRef geo_geometry = new UriRef("http://www.w3.org/2003/01/geo/wgs84_pos#geometry");
+    private static final UriRef geosparql_wktLiteral = new UriRef("http://www.opengis.net/ont/geosparql#wktLiteral");
+    private static final String SQUARE = "POLYGON ((11.115 46.060, 11.135 46.060, 11.135 46.075, 11.115 46.075, 11.115 46.060))";
+    private static final String TRIANGLE = "POLYGON ((11.115 46.060, 11.135 46.060, 11.135 46.075, 11.115 46.060))";
+    private static final String LARGE_SQUARE = "POLYGON ((11.10 46.04, 11.15 46.04, 11.15 46.09, 11.10 46.09, 11.10 46.04))";
+    private static final String LARGE_TRIANGLE = "POLYGON ((11.10 46.04, 11.15 46.04, 11.15 46.09, 11.10 46.04))";
+
+    @Test
+    public void testWktKnowledgeBase() throws Exception {
+        String placesUrl = getClass().getResource("wkt-places-trento.ttl").toString();
+        SpatialDataEnhancer tripleByTriple = new SpatialDataEnhancer();
+        tripleByTriple.ensureKnowledgeBase(placesUrl);
+        SpatialDataEnhancer bulk = new SpatialDataEnhancer();
+        bulk.setBulkLoad(2);
+        bulk.ensureKnowledgeBase(placesUrl);
+        for (SpatialDataEnhancer enhancer : new SpatialDataEnhancer[] { tripleByTriple, bulk }) {
+            Assert.assertTrue(enhancer.checkConsistency(false).isEmpty());
+            TripleCollection square = enhancer.queryWithin(createPoint(), placesUrl, SQUARE);
+            Assert.assertEquals(uris("urn:place:piazza-duomo", "urn:place:parco-santa-chiara", "urn:place:castello-buonconsiglio",
+                    "urn:place:torre-vanga"), linked(square));
+            // a place with no other location than its geo:geometry
+            Assert.assertTrue(square.contains(new TripleImpl(new UriRef("urn:place:torre-vanga"), geo_geometry,
+                    new TypedLiteralImpl("POINT (11.1195 46.0695)", geosparql_wktLiteral))));
+            // within the bounding box of the triangle but not within the triangle
+            Assert.assertEquals(uris("urn:place:parco-santa-chiara"), linked(enhancer.queryWithin(createPoint(), placesUrl, TRIANGLE)));
+        }
+    }
+
+    @Test
+    public void testSameAsBoundingBox() throws Exception {
+        String pharmaciesUrl = getClass().getResource("farmacie-trentino-uuid.ttl").toString();
+        SpatialDataEnhancer enhancer = new SpatialDataEnhancer();
+        enhancer.ensureKnowledgeBase(pharmaciesUrl);
+        // the pharmacies nearby within the square, and within the triangle below its diagonal
+        TripleCollection nearby = enhancer.queryNearby(createPoint(), pharmaciesUrl, 5000);
+        Set<NonLiteral> inSquare = new HashSet<NonLiteral>();
+        Set<NonLiteral> inTriangle = new HashSet<NonLiteral>();
+        for (NonLiteral poi : linked(nearby)) {
+            double lat = Double.parseDouble(((Literal) nearby.filter(poi, geo_lat, null).next().getObject()).getLexicalForm());
+            double lon = Double.parseDouble(((Literal) nearby.filter(poi, geo_long, null).next().getObject()).getLexicalForm());
+            if (lat >= 46.04 && lat <= 46.09 && lon >= 11.10 && lon <= 11.15) {
+                inSquare.add(poi);
+                if (lat - 46.04 <= lon - 11.10) {
+                    inTriangle.add(poi);
+                }
+            }
+        }
+        Assert.assertTrue(inSquare.size() > inTriangle.size());
+        Assert.assertFalse(inTriangle.isEmpty());
+        Assert.assertEquals(inSquare, linked(enhancer.queryWithin(createPoint(), pharmaciesUrl, LARGE_SQUARE)));
+        Assert.assertEquals(inTriangle, linked(enhancer.queryWithin(createPoint(), pharmaciesUrl, LARGE_TRIANGLE)));
+        // the region prepared in the cache gives the same result
+        Assert.assertEquals(inTriangle, linked(enhancer.queryWithin(createPoint(), pharmaciesUrl, LARGE_TRIANGLE)));
+    }
+
+    @Test
+    public void testRequest() throws Exception {
+        String placesUrl = getClass().getResource("wkt-places-trento.ttl").toString();
+        SpatialDataEnhancer enhancer = new SpatialDataEnhancer();
+        String places = StrUtils.strjoinNL("@prefix geo: <http://www.w3.org/2003/01/geo/wgs84_pos#> .",
+                "@prefix xsd: <http://www.w3.org/2001/XMLSchema#> .",
+                "@prefix schema: <http://schema.org/> .",
+                "@prefix geosparql: <http://www.opengis.net/ont/geosparql#> .",
+                "<urn:place:district> geo:lat \"46.067\"^^xsd:double ; geo:long \"11.125\"^^xsd:double ; schema:geo <urn:polygon:district> .",
+                "<urn:polygon:district> schema:polygon \"46.060 11.115 46.060 11.135 46.075 11.135 46.060 11.115\" .",
+                "<urn:place:zone> geo:lat \"46.067\"^^xsd:double ; geo:long \"11.125\"^^xsd:double ; schema:geo <urn:polygon:zone> .",
+                "<urn:polygon:zone> geosparql:asWKT \"" + SQUARE + "\"^^geosparql:wktLiteral .");
+        byte[] data = places.getBytes("UTF-8");
+        TripleCollection parsed = enhancer.enhance(placesUrl, Parser.getInstance().parse(new ByteArrayInputStream(data), SupportedFormat.TURTLE));
+        TripleCollection streamed = enhancer.enhance(placesUrl, new ByteArrayInputStream(data), Lang.TURTLE);
+        Assert.assertEquals(new HashSet<Triple>(parsed), new HashSet<Triple>(streamed));
+        Assert.assertEquals(uris("urn:place:parco-santa-chiara"), linked(parsed, new UriRef("urn:place:district")));
+        Assert.assertEquals(4, linked(parsed, new UriRef("urn:place:zone")).size());
+    }
+
+    /**
+     * The features of a polygon in GeoJSON have the geometry of their point of interest, whatever locates it.
+     */
+    @Test
+    public void testGeoJson() throws Exception {
+        String placesUrl = getClass().getResource("wkt-places-trento.ttl").toString();
+        SpatialDataEnhancer enhancer = new SpatialDataEnhancer();
+        String places = StrUtils.strjoinNL("@prefix geo: <http://www.w3.org/2003/01/geo/wgs84_pos#> .",
+                "@prefix xsd: <http://www.w3.org/2001/XMLSchema#> .",
+                "@prefix schema: <http://schema.org/> .",
+                "@prefix geosparql: <http://www.opengis.net/ont/geosparql#> .",
+                "<urn:place:zone> geo:lat \"46.067\"^^xsd:double ; geo:long \"11.125\"^^xsd:double ; schema:geo <urn:polygon:zone> .",
+                "<urn:polygon:zone> geosparql:asWKT \"" + SQUARE + "\"^^geosparql:wktLiteral .");
+        TripleCollection request = Parser.getInstance().parse(new ByteArrayInputStream(places.getBytes("UTF-8")), SupportedFormat.TURTLE);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        enhancer.enhanceGeoJson(placesUrl, request).writeTo(out);
+        List<Map<String, Object>> features = JsonPath.from(out.toString("UTF-8")).getList("features");
+        Map<String, Map<?, ?>> geometries = new HashMap<String, Map<?, ?>>();
+        for (Map<String, Object> feature : features) {
+            geometries.put((String) feature.get("id"), (Map<?, ?>) feature.get("geometry"));
+        }
+        Assert.assertEquals(4, geometries.size());
+        // a place with no other location than its geo:geometry
+        Map<?, ?> torreVanga = geometries.get("urn:place:torre-vanga");
+        Assert.assertNotNull(torreVanga);
+        Assert.assertEquals("Point", torreVanga.get("type"));
+        Assert.assertEquals(11.1195, ((Number) ((List<?>) torreVanga.get("coordinates")).get(0)).doubleValue(), 1e-6);
+        Assert.assertEquals(46.0695, ((Number) ((List<?>) torreVanga.get("coordinates")).get(1)).doubleValue(), 1e-6);
+        for (Map<?, ?> geometry : geometries.values()) {
+            Assert.assertNotNull(geometry);
+        }
+    }
+
+    private static Set<NonLiteral> uris(String... uris) {
+        Set<NonLiteral> refs = new HashSet<NonLiteral>();
+        for (String uri : uris) {
+            refs.add(new UriRef(uri));
+        }
+        return refs;
+    }
+
+    private static Set<NonLiteral> linked(TripleCollection result) {
+        return linked(result, POSITION);
+    }
+
+    private static Set<NonLiteral> linked(TripleCollection result, UriRef position) {
+        Set<NonLiteral> pois = new HashSet<NonLiteral>();
+        Iterator<Triple> links = result.filter(null, containedIn, position);
+        while (links.hasNext()) {
+            pois.add(links.next().getSubject());
+        }
+        return pois;
+    }
+
+    private static WGS84Point createPoint() {
+        WGS84Point point = new WGS84Point();
+        point.setUri(POSITION.getUnicodeString());
+        point.setLat(46.067);
+        point.setLong(11.125);
+        return point;
+    }
+
+}
@@ -0,0 +1,84 @@
+package eu.fusepool.p3.geo.enriching.test;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.apache.clerezza.rdf.core.Triple;
+import org.apache.clerezza.rdf.core.TripleCollection;
+import org.apache.clerezza.rdf.core.UriRef;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.fusepool.p3.geo.enriching.SpatialDataEnhancer;
+import eu.fusepool.p3.geo.enriching.WGS84Point;
+
+/**
+ * Searches around positions close to each other share their result.
+ */
+public class ResultCacheTest {
+
+    private static final UriRef schema_containedIn = new UriRef("http://schema.org/containedIn");
+
+    private SpatialDataEnhancer enhancer;
+    private String dataUrl;
+
+    @Before
+    public void setUp() throws Exception {
+        enhancer = new SpatialDataEnhancer();
+        enhancer.setResultCache(2, 3);
+        dataUrl = getClass().getResource("farmacie-trentino-uuid.ttl").toString();
+        enhancer.ensureKnowledgeBase(dataUrl);
+    }
+
+    @Test
+    public void testHitForNearbyPosition() throws Exception {
+        TripleCollection first = enhancer.queryNearby(createPoint("urn:place:first", 46.0672, 11.12), dataUrl, 1000);
+        TripleCollection second = enhancer.queryNearby(createPoint("urn:place:second", 46.06721, 11.12001), dataUrl, 1000);
+        Assert.assertEquals(1, enhancer.getCacheMissCount());
+        Assert.assertEquals(1, enhancer.getCacheHitCount());
+        Assert.assertFalse(first.isEmpty());
+        // the same points of interest, each linked to the position of its own request
+        Assert.assertEquals(first.size(), second.size());
+        Assert.assertFalse(second.filter(null, schema_containedIn, new UriRef("urn:place:first")).hasNext());
+        Assert.assertEquals(subjects(first.filter(null, schema_containedIn, new UriRef("urn:place:first"))),
+                subjects(second.filter(null, schema_containedIn, new UriRef("urn:place:second"))));
+        // a different radius is a different search
+        enhancer.queryNearby(createPoint("urn:place:first", 46.0672, 11.12), dataUrl, 2000);
+        Assert.assertEquals(2, enhancer.getCacheMissCount());
+    }
+
+    @Test
+    public void testEvictionAndInvalidation() throws Exception {
+        enhancer.queryNearby(createPoint("urn:place:a", 46.0672, 11.12), dataUrl, 1000);
+        enhancer.queryNearby(createPoint("urn:place:b", 46.07, 11.13), dataUrl, 1000);
+        enhancer.queryNearby(createPoint("urn:place:c", 46.08, 11.14), dataUrl, 1000);
+        Assert.assertEquals(1, enhancer.getCacheEvictionCount());
+        enhancer.queryNearby(createPoint("urn:place:c", 46.08, 11.14), dataUrl, 1000);
+        Assert.assertEquals(1, enhancer.getCacheHitCount());
+        // the results of an evicted knowledge base are not used once it is loaded again
+        enhancer.evict(dataUrl);
+        enhancer.ensureKnowledgeBase(dataUrl);
+        enhancer.queryNearby(createPoint("urn:place:c", 46.08, 11.14), dataUrl, 1000);
+        Assert.assertEquals(1, enhancer.getCacheHitCount());
+        Assert.assertEquals(4, enhancer.getCacheMissCount());
+    }
+
+    private Set<Object> subjects(Iterator<Triple> triples) {
+        Set<Object> subjects = new HashSet<Object>();
+        while (triples.hasNext()) {
+            subjects.add(triples.next().getSubject());
+        }
+        return subjects;
+    }
+
+    private WGS84Point createPoint(String uri, double lat, double lon) {
+        WGS84Point point = new WGS84Point();
+        point.setUri(uri);
+        point.setLat(lat);
+        point.setLong(lon);
+        return point;
+    }
+
+}
@@ -0,0 +1,88 @@
+package eu.fusepool.p3.geo.enriching.test;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpStatus;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import eu.fusepool.p3.geo.enriching.SpatialDataEnhancer;
+import eu.fusepool.p3.geo.enriching.WGS84Point;
+
+/**
+ * Eviction of the least recently used knowledge bases.
+ */
+public class StorageBudgetTest {
+
+    private static int mockPort = 0;
+    private SpatialDataEnhancer enhancer;
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(mockPort);
+
+    @BeforeClass
+    public static void setMockPort() {
+        mockPort = GeoEnrichingTransformerTest.findFreePort();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        byte[] dataSet = IOUtils.toByteArray(getClass().getResourceAsStream("spatial-data-latlong.ttl"));
+        for (String name : new String[] {"a", "b", "c"}) {
+            stubFor(get(urlEqualTo("/data/" + name + ".ttl"))
+                    .willReturn(aResponse()
+                        .withStatus(HttpStatus.SC_OK)
+                        .withHeader("Content-Type", "text/turtle")
+                        .withBody(dataSet)));
+        }
+        enhancer = new SpatialDataEnhancer();
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws Exception {
+        enhancer.setStorageBudget(2, 0, 0);
+        String a = "http://localhost:" + mockPort + "/data/a.ttl";
+        String b = "http://localhost:" + mockPort + "/data/b.ttl";
+        String c = "http://localhost:" + mockPort + "/data/c.ttl";
+        enhancer.ensureKnowledgeBase(a);
+        Thread.sleep(5);
+        enhancer.ensureKnowledgeBase(b);
+        Thread.sleep(5);
+        enhancer.ensureKnowledgeBase(a);
+        Thread.sleep(5);
+        enhancer.ensureKnowledgeBase(c);
+        Assert.assertTrue(enhancer.isCachedGraph(enhancer.getDataset(), a));
+        Assert.assertFalse("Least recently used graph not evicted", enhancer.isCachedGraph(enhancer.getDataset(), b));
+        Assert.assertTrue(enhancer.isCachedGraph(enhancer.getDataset(), c));
+        Assert.assertEquals(1, enhancer.getEvictionCount());
+        Assert.assertEquals(2, enhancer.getGraphCount());
+        Assert.assertTrue(enhancer.checkConsistency(false).isEmpty());
+        // the points of interest shared with the evicted graph are still indexed
+        WGS84Point point = new WGS84Point();
+        point.setUri("http://geo.org/?lat=41.79,lon=12.24");
+        point.setLat(41.79);
+        point.setLong(12.24);
+        Assert.assertFalse(enhancer.queryNearby(point, a, 10000.0).isEmpty());
+        Assert.assertTrue(enhancer.queryNearby(point, b, 10000.0).isEmpty());
+    }
+
+    @Test
+    public void testTripleBudget() throws Exception {
+        String a = "http://localhost:" + mockPort + "/data/a.ttl";
+        String b = "http://localhost:" + mockPort + "/data/b.ttl";
+        enhancer.ensureKnowledgeBase(a);
+        long triplesPerGraph = enhancer.getTripleCount();
+        enhancer.setStorageBudget(0, triplesPerGraph, 0);
+        enhancer.ensureKnowledgeBase(b);
+        Assert.assertFalse(enhancer.isCachedGraph(enhancer.getDataset(), a));
+        Assert.assertTrue(enhancer.isCachedGraph(enhancer.getDataset(), b));
+        Assert.assertEquals(triplesPerGraph, enhancer.getTripleCount());
+    }
+
+}
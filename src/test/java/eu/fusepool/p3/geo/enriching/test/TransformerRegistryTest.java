@@ -0,0 +1,169 @@
+package eu.fusepool.p3.geo.enriching.test;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.clerezza.rdf.core.Triple;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpStatus;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import eu.fusepool.p3.geo.enriching.GeoEnrichingTransformerFactory;
+import eu.fusepool.p3.geo.enriching.SpatialDataEnhancer;
+import eu.fusepool.p3.geo.enriching.SpatialDataEnhancer.IndexDirectory;
+import eu.fusepool.p3.geo.enriching.WGS84Point;
+import eu.fusepool.p3.transformer.Transformer;
+
+/**
+ * Tests that the factory shares the transformers of equivalent URLs and keeps a bounded number of them,
+ * and that the catalog of the data directory lists the knowledge bases by their normalized URL.
+ */
+public class TransformerRegistryTest {
+
+    private static int mockPort = 0;
+
+    @Rule
+    public WireMockRule wireMockRule = new WireMockRule(mockPort);
+
+    private File dir;
+    private SpatialDataEnhancer enhancer;
+
+    @BeforeClass
+    public static void setMockPort() {
+        mockPort = GeoEnrichingTransformerTest.findFreePort();
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("geo-registry-").toFile();
+        enhancer = new SpatialDataEnhancer(dir, SpatialDataEnhancer.IndexDirectory.MEMORY);
+    }
+
+    @After
+    public void tearDown() {
+        enhancer.close();
+    }
+
+    @Test
+    public void testNormalizeUrl() {
+        Assert.assertEquals("http://example.org/data/pois.ttl",
+                GeoEnrichingTransformerFactory.normalizeUrl(" HTTP://Example.ORG:80/data/./x/../pois.ttl#top"));
+        Assert.assertEquals("https://example.org/", GeoEnrichingTransformerFactory.normalizeUrl("https://example.org:443"));
+        Assert.assertEquals("http://example.org:8080/pois.ttl?Format=TTL",
+                GeoEnrichingTransformerFactory.normalizeUrl("http://example.org:8080/pois.ttl?Format=TTL"));
+        Assert.assertEquals("file:/tmp/pois.ttl", GeoEnrichingTransformerFactory.normalizeUrl("file:/tmp/pois.ttl"));
+        Assert.assertEquals("not a url", GeoEnrichingTransformerFactory.normalizeUrl("not a url "));
+    }
+
+    @Test
+    public void testEquivalentUrlsShareTransformer() {
+        GeoEnrichingTransformerFactory factory = new GeoEnrichingTransformerFactory(enhancer);
+        Transformer transformer = factory.getTransfomerFor("http://example.org/pois.ttl");
+        Assert.assertSame(transformer, factory.getTransfomerFor("http://EXAMPLE.org:80/pois.ttl#fragment"));
+        Assert.assertFalse(transformer.equals(factory.getTransfomerFor("http://example.org/events.ttl")));
+        Assert.assertEquals(2, factory.getTransformerCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedDropped() {
+        GeoEnrichingTransformerFactory factory = new GeoEnrichingTransformerFactory(enhancer, false, 2);
+        Transformer first = factory.getTransfomerFor("http://example.org/1.ttl");
+        Transformer second = factory.getTransfomerFor("http://example.org/2.ttl");
+        Assert.assertSame(first, factory.getTransfomerFor("http://example.org/1.ttl"));
+        factory.getTransfomerFor("http://example.org/3.ttl");
+        Assert.assertEquals(2, factory.getTransformerCount());
+        Assert.assertSame(first, factory.getTransfomerFor("http://example.org/1.ttl"));
+        Assert.assertFalse(second.equals(factory.getTransfomerFor("http://example.org/2.ttl")));
+    }
+
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        final GeoEnrichingTransformerFactory factory = new GeoEnrichingTransformerFactory(enhancer, false, 16);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Transformer>> lookups = new ArrayList<Future<Transformer>>();
+            for (int i = 0; i < 2000; i++) {
+                final int n = i;
+                lookups.add(executor.submit(new Callable<Transformer>() {
+                    @Override
+                    public Transformer call() {
+                        factory.getTransfomerFor("http://example.org/" + n + ".ttl");
+                        return factory.getTransfomerFor("http://Example.org/shared.ttl");
+                    }
+                }));
+            }
+            for (Future<Transformer> lookup : lookups) {
+                lookup.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertEquals(16, factory.getTransformerCount());
+    }
+
+    @Test
+    public void testCatalogNormalized() throws Exception {
+        stubFor(get(urlEqualTo("/data/kb.ttl"))
+                .willReturn(aResponse()
+                    .withStatus(HttpStatus.SC_OK)
+                    .withHeader("Content-Type", "text/turtle")
+                    .withBody(IOUtils.toByteArray(getClass().getResourceAsStream("farmacie-trentino-uuid.ttl")))));
+        String url = "http://localhost:" + mockPort + "/data/kb.ttl";
+        File dataDir = File.createTempFile("geo-enricher-", "-data");
+        dataDir.delete();
+        SpatialDataEnhancer first = new SpatialDataEnhancer(dataDir, IndexDirectory.FS);
+        first.ensureKnowledgeBase(url);
+        Set<Triple> expected = new HashSet<Triple>(first.queryNearby(createPoint(), url, 5000));
+        first.close();
+        // a catalog written before the names were normalized lists the url as it was requested
+        File catalogFile = new File(dataDir, "catalog.properties");
+        Properties catalog = new Properties();
+        try (InputStream in = new FileInputStream(catalogFile)) {
+            catalog.load(in);
+        }
+        Assert.assertEquals(url, catalog.getProperty("0.graph"));
+        catalog.setProperty("0.graph", "HTTP://LocalHost:" + mockPort + "/data/kb.ttl#pharmacies");
+        try (OutputStream out = new FileOutputStream(catalogFile)) {
+            catalog.store(out, null);
+        }
+        SpatialDataEnhancer second = new SpatialDataEnhancer(dataDir, IndexDirectory.FS);
+        Assert.assertTrue(second.checkConsistency(false).isEmpty());
+        second.ensureKnowledgeBase(url);
+        Assert.assertEquals(0, second.getMetrics().getGraphsLoaded());
+        Assert.assertEquals(1, second.getGraphCount());
+        Assert.assertEquals(expected, new HashSet<Triple>(second.queryNearby(createPoint(), url, 5000)));
+        second.close();
+    }
+
+    private static WGS84Point createPoint() {
+        WGS84Point point = new WGS84Point();
+        point.setUri("http://example.org/position");
+        point.setLat(46.07);
+        point.setLong(11.13);
+        return point;
+    }
+
+}